@@ -0,0 +1,110 @@
+package com.example.codingexercise.benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.example.codingexercise.gateway.ProductCache;
+import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.repository.InMemoryPackageStore;
+import com.example.codingexercise.repository.PackageRepository;
+import com.example.codingexercise.service.CurrencyExchangeRateService;
+
+/**
+ * In-process replacements for the product service and the exchange service, so the benchmarks
+ * run offline and measure only this application's code.
+ * @author tomd
+ *
+ */
+public final class BenchmarkStubs {
+
+	/**
+	 * Number of distinct products known to the stub product service.
+	 */
+	public static final int PRODUCT_COUNT = 1000;
+
+	/**
+	 * Exchange rate returned by the stub exchange service for every currency pair.
+	 */
+	public static final double EXCHANGE_RATE = 0.79d;
+
+	private BenchmarkStubs() {
+	}
+
+	/**
+	 * Product service that knows every id of the form "product-N", answering straight away.
+	 */
+	public static ProductServiceGateway productServiceGateway() {
+		return new ProductServiceGateway(null, null, false, new SimpleMeterRegistry(),
+			CircuitBreaker.ofDefaults("product"), Bulkhead.ofDefaults("product")) {
+			@Override
+			public Product getProduct(String id) {
+				return id.startsWith("product-") ? new Product(id, "Product " + id, 100 + id.length()) : null;
+			}
+		};
+	}
+
+	/**
+	 * Exchange service that converts between any two currencies at EXCHANGE_RATE.
+	 */
+	public static CurrencyExchangeRateService currencyExchangeRateService() {
+		return new CurrencyExchangeRateService(null, null, false, Runnable::run, Duration.ofSeconds(30), new SimpleMeterRegistry(),
+			CircuitBreaker.ofDefaults("exchange"), Bulkhead.ofDefaults("exchange")) {
+			@Override
+			public double getCurrencyExchangeRate(String source, String target) {
+				return source.equalsIgnoreCase(target) ? 1.0d : EXCHANGE_RATE;
+			}
+		};
+	}
+
+	/**
+	 * Creates an in memory repository holding size packages of three products each. The product cache
+	 * is already warm, so creating or updating packages does not wait on product lookups.
+	 */
+	public static PackageRepository packageRepository(int size, ExecutorService productLookupExecutor) {
+		ProductCache productCache = new ProductCache(productServiceGateway(), PRODUCT_COUNT * 2L, Duration.ofHours(1),
+				Duration.ofHours(1), Duration.ofMinutes(1), false);
+		for (int i = 0; i < PRODUCT_COUNT; i++) {
+			productCache.getProduct(productId(i));
+		}
+		PackageRepository packageRepository = new PackageRepository(productCache, new InMemoryPackageStore(),
+				productLookupExecutor, Duration.ofSeconds(5), new SimpleMeterRegistry(), true, 100000);
+		for (int i = 0; i < size; i++) {
+			packageRepository.create("Package " + i, "Benchmark package " + i, productIds(i));
+		}
+		return packageRepository;
+	}
+
+	/**
+	 * Thread pool for the repository's product lookups.
+	 */
+	public static ExecutorService productLookupExecutor() {
+		return Executors.newFixedThreadPool(4, runnable -> {
+			Thread thread = new Thread(runnable, "benchmark-lookup");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Gets the ids of the three products used by the n'th package.
+	 */
+	public static List<String> productIds(int n) {
+		List<String> productIds = new ArrayList<>(3);
+		for (int i = 0; i < 3; i++) {
+			productIds.add(productId(n * 3 + i));
+		}
+		return productIds;
+	}
+
+	private static String productId(int n) {
+		return "product-" + (n % PRODUCT_COUNT);
+	}
+}
@@ -0,0 +1,66 @@
+package com.example.codingexercise.controller;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.example.codingexercise.benchmark.BenchmarkStubs;
+import com.example.codingexercise.model.ProductPackage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Measures converting the total prices of a list of packages to another currency at several list sizes.
+ * The exchange service is stubbed, so only the conversion itself is measured.
+ * @author tomd
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackageConversionBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	private int listSize;
+
+	private PackageController packageController;
+
+	private List<ProductPackage> productPackages;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		packageController = new PackageController(null, new ObjectMapper(), new SimpleMeterRegistry(),
+				DataSize.ofMegabytes(64), Duration.ofMinutes(10), DataSize.ofKilobytes(2));
+		ReflectionTestUtils.setField(packageController, "currencyExchangeRateService",
+				BenchmarkStubs.currencyExchangeRateService());
+		productPackages = new ArrayList<>(listSize);
+		for (int i = 0; i < listSize; i++) {
+			productPackages.add(new ProductPackage("id-" + i, "Package " + i, "Benchmark package " + i,
+					BenchmarkStubs.productIds(i), 1000 + i));
+		}
+	}
+
+	@Benchmark
+	public List<ProductPackage> convertToOtherCurrency() {
+		return packageController.convertListOfProductPackagePrice(productPackages, "GBP");
+	}
+
+	@Benchmark
+	public List<ProductPackage> convertToBaseCurrency() {
+		return packageController.convertListOfProductPackagePrice(productPackages, "USD");
+	}
+}
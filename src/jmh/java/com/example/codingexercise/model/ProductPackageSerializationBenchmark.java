@@ -0,0 +1,94 @@
+package com.example.codingexercise.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.example.codingexercise.benchmark.BenchmarkStubs;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+
+/**
+ * Measures serialization of lists of packages, as written in GET /packages responses, in each of the encodings
+ * clients can ask for (JSON, CBOR and Smile), with and without gzip, and parsing them again as a client would.
+ * The size of each encoding, plain and gzipped, is printed at the start of each trial.
+ * @author tomd
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProductPackageSerializationBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	private int listSize;
+
+	@Param({ "json", "cbor", "smile" })
+	private String format;
+
+	private ObjectWriter listWriter;
+
+	private ObjectReader listReader;
+
+	private byte[] serialized;
+
+	private List<ProductPackage> productPackages;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// Configured the same way as the ObjectMappers Spring Boot creates for the controllers.
+		// Spring Boot also adds the ParameterNamesModule, which ProductPackage needs to be read.
+		Jackson2ObjectMapperBuilder builder = switch (format) {
+			case "cbor" -> Jackson2ObjectMapperBuilder.cbor();
+			case "smile" -> Jackson2ObjectMapperBuilder.smile();
+			default -> Jackson2ObjectMapperBuilder.json();
+		};
+		ObjectMapper objectMapper = builder.modulesToInstall(new ParameterNamesModule()).build();
+		listWriter = objectMapper.writerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, ProductPackage.class));
+		listReader = objectMapper.readerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, ProductPackage.class));
+		productPackages = new ArrayList<>(listSize);
+		for (int i = 0; i < listSize; i++) {
+			productPackages.add(new ProductPackage("id-" + i, "Package " + i, "Benchmark package " + i,
+					BenchmarkStubs.productIds(i), 1000 + i));
+		}
+		serialized = serialize();
+		System.out.printf("%n%s, %d packages: %d bytes, %d bytes gzipped%n", format, listSize, serialized.length,
+				serializeGzipped().length);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws JsonProcessingException {
+		return listWriter.writeValueAsBytes(productPackages);
+	}
+
+	@Benchmark
+	public byte[] serializeGzipped() throws IOException {
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		try (GZIPOutputStream outputStream = new GZIPOutputStream(gzipped)) {
+			listWriter.writeValue(outputStream, productPackages);
+		}
+		return gzipped.toByteArray();
+	}
+
+	@Benchmark
+	public List<ProductPackage> deserialize() throws IOException {
+		return listReader.readValue(serialized);
+	}
+}
@@ -0,0 +1,104 @@
+package com.example.codingexercise.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.example.codingexercise.benchmark.BenchmarkStubs;
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Measures PackageRepository get, create, update and delete at several repository sizes.
+ * Delete is measured together with the create that replaces the deleted package (createThenDelete).
+ * Product lookups are answered by a warm product cache, so the figures are for the repository itself.
+ * @author tomd
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PackageRepositoryBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	private int size;
+
+	private ExecutorService productLookupExecutor;
+
+	private PackageRepository packageRepository;
+
+	private String[] ids;
+
+	private final List<String> createdIds = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		productLookupExecutor = BenchmarkStubs.productLookupExecutor();
+		packageRepository = BenchmarkStubs.packageRepository(size, productLookupExecutor);
+		ids = packageRepository.getAll().stream().map(ProductPackage::getId).toArray(String[]::new);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		productLookupExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public ProductPackage get() {
+		return packageRepository.get(randomId());
+	}
+
+	/**
+	 * Creates packages, which are deleted again after each iteration.
+	 */
+	@Benchmark
+	public ProductPackage create() {
+		ProductPackage created = packageRepository.create("New package", "Created by the benchmark",
+				BenchmarkStubs.productIds(ThreadLocalRandom.current().nextInt(BenchmarkStubs.PRODUCT_COUNT)));
+		createdIds.add(created.getId());
+		return created;
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteCreated() {
+		createdIds.forEach(packageRepository::delete);
+		createdIds.clear();
+	}
+
+	@Benchmark
+	public List<ProductPackage> getAll() {
+		return packageRepository.getAll();
+	}
+
+	/**
+	 * Creates a package and deletes it again so the repository stays at the configured size.
+	 */
+	@Benchmark
+	public ProductPackage createThenDelete() {
+		ProductPackage created = packageRepository.create("New package", "Created by the benchmark",
+				BenchmarkStubs.productIds(ThreadLocalRandom.current().nextInt(BenchmarkStubs.PRODUCT_COUNT)));
+		return packageRepository.delete(created.getId());
+	}
+
+	@Benchmark
+	public ProductPackage update() {
+		int n = ThreadLocalRandom.current().nextInt(BenchmarkStubs.PRODUCT_COUNT);
+		return packageRepository.update(randomId(), "Updated " + n, "Updated by the benchmark", BenchmarkStubs.productIds(n));
+	}
+
+	private String randomId() {
+		return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+	}
+}
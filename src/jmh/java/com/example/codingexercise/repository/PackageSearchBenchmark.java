@@ -0,0 +1,105 @@
+package com.example.codingexercise.repository;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.example.codingexercise.benchmark.BenchmarkStubs;
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Measures PackageRepository.search() at several repository sizes. Package names are 3 and descriptions
+ * 8 words drawn from a vocabulary of made up words, and each query is picked at random from the same
+ * vocabulary: a whole word, two whole words, the first 3 letters of a word (typeahead, matching many words)
+ * and 4 letters from the middle of a word (infix).
+ * @author tomd
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackageSearchBenchmark {
+
+	private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "sa", "ti", "vo", "be", "da", "fu",
+			"go", "hi", "ja", "pe", "zo" };
+
+	@Param({ "100000", "1000000" })
+	private int size;
+
+	@Param({ "20000" })
+	private int vocabularySize;
+
+	private ExecutorService productLookupExecutor;
+
+	private PackageRepository packageRepository;
+
+	private String[] vocabulary;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		productLookupExecutor = BenchmarkStubs.productLookupExecutor();
+		packageRepository = BenchmarkStubs.packageRepository(0, productLookupExecutor);
+		Random random = new Random(42);
+		vocabulary = new String[vocabularySize];
+		for (int i = 0; i < vocabularySize; i++) {
+			StringBuilder word = new StringBuilder();
+			for (int j = random.nextInt(3, 6); j > 0; j--) {
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			vocabulary[i] = word.append(i).toString();
+		}
+		for (int i = 0; i < size; i++) {
+			packageRepository.create(words(random, 3), words(random, 8), BenchmarkStubs.productIds(i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		productLookupExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public List<ProductPackage> word() {
+		return packageRepository.search(randomWord(), 0, 20);
+	}
+
+	@Benchmark
+	public List<ProductPackage> twoWords() {
+		return packageRepository.search(randomWord() + " " + randomWord(), 0, 20);
+	}
+
+	@Benchmark
+	public List<ProductPackage> prefix() {
+		return packageRepository.search(randomWord().substring(0, 3), 0, 20);
+	}
+
+	@Benchmark
+	public List<ProductPackage> infix() {
+		return packageRepository.search(randomWord().substring(2, 6), 0, 20);
+	}
+
+	private String words(Random random, int count) {
+		StringBuilder words = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			words.append(i == 0 ? "" : " ").append(vocabulary[random.nextInt(vocabulary.length)]);
+		}
+		return words.toString();
+	}
+
+	private String randomWord() {
+		return vocabulary[ThreadLocalRandom.current().nextInt(vocabulary.length)];
+	}
+}
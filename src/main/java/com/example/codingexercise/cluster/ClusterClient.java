@@ -0,0 +1,236 @@
+package com.example.codingexercise.cluster;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.example.codingexercise.dto.ClusterMembers;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageOperationResult;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Client for requests between the nodes of the cluster. Every request carries the FORWARDED_HEADER, so
+ * the receiving node answers from its own packages and never forwards it again, and the SECRET_HEADER that
+ * shows the receiving node it comes from a member.
+ * Requests are timed (cluster.peer.requests, tagged by operation) and failed requests are counted
+ * (cluster.peer.failures). A node that cannot be reached, or answers with an error where one is not
+ * expected, fails the request with PeerUnavailableException.
+ * @author tomd
+ *
+ */
+@Component
+public class ClusterClient {
+
+	/**
+	 * Request header marking a request sent by another node, holding that node's URL.
+	 */
+	public static final String FORWARDED_HEADER = "X-Cluster-Forwarded";
+
+	/**
+	 * Request header holding the secret shared by the nodes (cluster.secret).
+	 */
+	public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+	private static final ParameterizedTypeReference<List<ProductPackage>> PACKAGES = new ParameterizedTypeReference<>() {
+	};
+
+	private static final ParameterizedTypeReference<List<PackageOperationResult>> RESULTS = new ParameterizedTypeReference<>() {
+	};
+
+	private final RestTemplate restTemplate;
+
+	private final ClusterMembership membership;
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+	private final Counter failures;
+
+	@Autowired
+	public ClusterClient(@Qualifier("clusterRestTemplate") RestTemplate restTemplate, ClusterMembership membership,
+			MeterRegistry meterRegistry) {
+		this.restTemplate = restTemplate;
+		this.membership = membership;
+		this.meterRegistry = meterRegistry;
+		this.failures = Counter.builder("cluster.peer.failures")
+				.description("Requests to other nodes of the cluster that failed")
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Forwards a client request to the node that owns the package it is for. Any response status is returned
+	 * as it is.
+	 *
+	 * @param pathAndQuery encoded path and query string of the request.
+	 */
+	public ResponseEntity<byte[]> forward(String node, HttpMethod method, String pathAndQuery, HttpHeaders headers,
+			byte[] body) {
+		HttpHeaders forwarded = new HttpHeaders();
+		forwarded.putAll(headers);
+		forwarded.set(FORWARDED_HEADER, membership.getSelf());
+		forwarded.set(SECRET_HEADER, membership.getSecret());
+		return timer("forward").record(() -> {
+			try {
+				return restTemplate.exchange(URI.create(node + pathAndQuery), method,
+						new HttpEntity<>(body.length == 0 ? null : body, forwarded), byte[].class);
+			} catch (RestClientException ex) {
+				failures.increment();
+				throw new PeerUnavailableException(node, "forward failed", ex);
+			}
+		});
+	}
+
+	/**
+	 * Sends writes, in order, to a node holding copies of this node's packages.
+	 */
+	public void replicate(String node, List<ReplicatedWrite> writes) {
+		exchange("replicate", node, HttpMethod.POST, path("/cluster/replication"), writes, type(Void.class));
+	}
+
+	/**
+	 * Tells a node about a new list of members.
+	 */
+	public void announce(String node, ClusterMembers members) {
+		exchange("announce", node, HttpMethod.PUT, path("/cluster/members"), members, type(Void.class));
+	}
+
+	/**
+	 * Asks a member of a cluster to add this node to it.
+	 *
+	 * @return the new members.
+	 */
+	public ClusterMembers join(String node) {
+		return exchange("join", node, HttpMethod.POST, path("/cluster/members").queryParam("url", membership.getSelf()),
+				null, type(ClusterMembers.class));
+	}
+
+	/**
+	 * Gets the version of a node's repository.
+	 */
+	public long getVersion(String node) {
+		Long version = exchange("version", node, HttpMethod.GET, path("/cluster/version"), null, type(Long.class));
+		return version == null ? 0 : version;
+	}
+
+	/**
+	 * Gets the statistics of the packages a node is primary for.
+	 */
+	public PackageStatistics getStatistics(String node) {
+		return exchange("statistics", node, HttpMethod.GET, path("/cluster/statistics"), null, type(PackageStatistics.class));
+	}
+
+	/**
+	 * Gets packages from a node, which only answers from its own packages.
+	 *
+	 * @param path GET /packages, /packages/search or /products/{id}/packages request.
+	 */
+	public List<ProductPackage> getPackages(String node, UriComponentsBuilder path) {
+		List<ProductPackage> packages = exchange("packages", node, HttpMethod.GET, path, null, PACKAGES);
+		return packages == null ? List.of() : packages;
+	}
+
+	/**
+	 * Copies the newline delimited JSON packages a node streams for GET /packages to an output stream.
+	 */
+	public void streamPackages(String node, UriComponentsBuilder path, OutputStream outputStream) {
+		timer("stream").record(() -> {
+			try {
+				restTemplate.execute(URI.create(node + path.build().encode().toUriString()), HttpMethod.GET,
+						request -> {
+							request.getHeaders().set(FORWARDED_HEADER, membership.getSelf());
+							request.getHeaders().set(SECRET_HEADER, membership.getSecret());
+							request.getHeaders().setAccept(List.of(MediaType.APPLICATION_NDJSON));
+						}, response -> {
+							if (!response.getStatusCode().is2xxSuccessful()) {
+								throw new PeerUnavailableException(node, "status " + response.getStatusCode().value(), null);
+							}
+							return response.getBody().transferTo(outputStream);
+						});
+			} catch (RestClientException ex) {
+				failures.increment();
+				throw new PeerUnavailableException(node, "stream failed", ex);
+			}
+		});
+	}
+
+	/**
+	 * Applies bulk operations on a node, which owns the packages they are for.
+	 */
+	public List<PackageOperationResult> applyBatch(String node, List<PackageOperation> operations) {
+		return exchange("bulk", node, HttpMethod.POST, path("/packages/bulk"), operations, RESULTS);
+	}
+
+	/**
+	 * Tells a node that the price of a product has changed, so it reprices its packages.
+	 */
+	public void priceChanged(String node, Product product) {
+		exchange("price", node, HttpMethod.POST, path("/products/{id}/price").uriVariables(Map.of("id", product.id())), product,
+				type(Integer.class));
+	}
+
+	private <T> T exchange(String operation, String node, HttpMethod method, UriComponentsBuilder path, Object body,
+			ParameterizedTypeReference<T> type) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(FORWARDED_HEADER, membership.getSelf());
+		headers.set(SECRET_HEADER, membership.getSecret());
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		URI uri = URI.create(node + path.build().encode().toUriString());
+		return timer(operation).record(() -> {
+			ResponseEntity<T> response;
+			try {
+				response = restTemplate.exchange(uri, method, new HttpEntity<>(body, headers), type);
+			} catch (RestClientException ex) {
+				failures.increment();
+				throw new PeerUnavailableException(node, operation + " failed", ex);
+			}
+			if (!response.getStatusCode().is2xxSuccessful()) {
+				failures.increment();
+				throw new PeerUnavailableException(node, operation + " returned status " + response.getStatusCode().value(), null);
+			}
+			return response.getBody();
+		});
+	}
+
+	/**
+	 * Starts building the path and query of a request to another node.
+	 */
+	public static UriComponentsBuilder path(String path) {
+		return UriComponentsBuilder.fromPath(path);
+	}
+
+	private static <T> ParameterizedTypeReference<T> type(Class<T> type) {
+		return ParameterizedTypeReference.forType(type);
+	}
+
+	private Timer timer(String operation) {
+		return timers.computeIfAbsent(operation, k -> Timer.builder("cluster.peer.requests")
+				.description("Time taken by requests to other nodes of the cluster")
+				.tag("operation", k)
+				.publishPercentileHistogram()
+				.register(meterRegistry));
+	}
+}
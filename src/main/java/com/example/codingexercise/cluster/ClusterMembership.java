@@ -0,0 +1,170 @@
+package com.example.codingexercise.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.codingexercise.dto.ClusterMembers;
+
+/**
+ * Members of the cluster (see cluster.properties) and the ConsistentHashRing that assigns packages to them.
+ * Nodes are identified by their base URL. The members start as cluster.members and are replaced when a
+ * newer list (with a higher epoch) is announced by the node that handled a join or leave.
+ * When cluster mode is disabled this node is the only member and owns every package.
+ * The nodes share a secret (cluster.secret), sent with every request between them, so a node can tell the
+ * requests of the other members from those of clients.
+ * @author tomd
+ *
+ */
+@Component
+public class ClusterMembership {
+
+	private final boolean enabled;
+
+	private final String self;
+
+	private final int virtualNodes;
+
+	private final int replicas;
+
+	private final byte[] secret;
+
+	private final List<BiConsumer<ConsistentHashRing, ConsistentHashRing>> listeners = new CopyOnWriteArrayList<>();
+
+	private volatile Members members;
+
+	@Autowired
+	public ClusterMembership(@Value("${cluster.enabled}") boolean enabled, @Value("${cluster.self-url}") String selfUrl,
+			@Value("${cluster.members}") String[] initialMembers, @Value("${cluster.virtual-nodes}") int virtualNodes,
+			@Value("${cluster.replicas}") int replicas, @Value("${cluster.secret}") String secret) {
+		if (enabled && secret.isBlank()) {
+			throw new IllegalArgumentException("cluster.secret must be set in cluster mode");
+		}
+		this.enabled = enabled;
+		this.self = normalize(selfUrl);
+		this.virtualNodes = virtualNodes;
+		this.replicas = replicas;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+		List<String> nodes = new ArrayList<>();
+		nodes.add(self);
+		if (enabled) {
+			for (String member : initialMembers) {
+				if (!member.isBlank() && !nodes.contains(normalize(member))) {
+					nodes.add(normalize(member));
+				}
+			}
+		}
+		this.members = new Members(0, new ConsistentHashRing(nodes, virtualNodes, replicas));
+	}
+
+	/**
+	 * Gets a node URL in the form used to identify it: trimmed and without a trailing slash.
+	 */
+	public static String normalize(String url) {
+		String trimmed = url.trim();
+		return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the URL of this node.
+	 */
+	public String getSelf() {
+		return self;
+	}
+
+	/**
+	 * Gets the secret shared by the nodes, sent with every request to another node.
+	 */
+	public String getSecret() {
+		return new String(secret, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Whether a request marked as sent by another node really was: it carries the shared secret and names a
+	 * member of the cluster. Always false when cluster mode is disabled.
+	 *
+	 * @param forwardedBy URL of the node that sent the request, from ClusterClient.FORWARDED_HEADER.
+	 * @param secret      secret sent with the request, from ClusterClient.SECRET_HEADER, or null.
+	 */
+	public boolean isTrusted(String forwardedBy, String secret) {
+		// Compared in constant time, so the secret cannot be guessed from how long a rejection takes.
+		return enabled && forwardedBy != null && secret != null
+				&& MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8))
+				&& members.ring().getNodes().contains(normalize(forwardedBy));
+	}
+
+	public ConsistentHashRing getRing() {
+		return members.ring();
+	}
+
+	public ClusterMembers getMembers() {
+		Members current = members;
+		return new ClusterMembers(current.epoch(), current.ring().getNodes());
+	}
+
+	/**
+	 * Gets the other members of the cluster.
+	 */
+	public List<String> getPeers() {
+		List<String> peers = new ArrayList<>(members.ring().getNodes());
+		peers.remove(self);
+		return peers;
+	}
+
+	/**
+	 * Whether this node takes the writes of a package.
+	 */
+	public boolean isPrimary(UUID id) {
+		return !enabled || members.ring().primary(id).equals(self);
+	}
+
+	/**
+	 * Whether this node holds a package, as its primary or a replica.
+	 */
+	public boolean isOwner(UUID id) {
+		return !enabled || members.ring().owners(id).contains(self);
+	}
+
+	/**
+	 * Replaces the members if the list is newer than the current one, and tells the listeners.
+	 *
+	 * @return true if the members were replaced.
+	 */
+	public synchronized boolean update(ClusterMembers newMembers) {
+		Members current = members;
+		if (!enabled || newMembers.epoch() <= current.epoch() || newMembers.members().isEmpty()) {
+			return false;
+		}
+		List<String> nodes = new ArrayList<>();
+		for (String member : newMembers.members()) {
+			nodes.add(normalize(member));
+		}
+		members = new Members(newMembers.epoch(), new ConsistentHashRing(nodes, virtualNodes, replicas));
+		for (BiConsumer<ConsistentHashRing, ConsistentHashRing> listener : listeners) {
+			listener.accept(current.ring(), members.ring());
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a listener called with the previous and the new ring after the members change.
+	 */
+	public void addListener(BiConsumer<ConsistentHashRing, ConsistentHashRing> listener) {
+		listeners.add(listener);
+	}
+
+	private record Members(long epoch, ConsistentHashRing ring) {
+	}
+}
@@ -0,0 +1,166 @@
+package com.example.codingexercise.cluster;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Forwards requests for a single package (GET, PUT, PATCH and DELETE /packages/{id}) to the package's primary
+ * node when that is not this node, and returns its response. If the primary cannot be reached a GET is answered
+ * from this node's copy, when it holds one, and anything else gets HttpStatus.SERVICE_UNAVAILABLE.
+ * Requests forwarded by another node are answered here, except writes of a package this node is not the primary
+ * of (the nodes disagree on the members while one joins or leaves), which get HttpStatus.SERVICE_UNAVAILABLE so
+ * the write is not made where it would not be replicated.
+ * The ClusterClient.FORWARDED_HEADER and SECRET_HEADER of a request are hidden from the rest of the application
+ * unless the request comes from a member (see ClusterMembership.isTrusted()), so a client cannot use them to
+ * skip the routing or the limits on client requests. Nothing else is done unless cluster mode is enabled.
+ * @author tomd
+ *
+ */
+@Component
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+
+	private static final Pattern PACKAGE_PATH = Pattern.compile("/packages/([0-9a-fA-F-]{36})");
+
+	private static final Set<String> METHODS = Set.of("GET", "PUT", "PATCH", "DELETE");
+
+	/**
+	 * Request headers passed on to the primary. Accept and Accept-Encoding choose the encoding and compression
+	 * of the primary's response, which is passed back as it is.
+	 */
+	private static final List<String> FORWARDED_HEADERS = List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.ACCEPT,
+			HttpHeaders.ACCEPT_ENCODING, HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH);
+
+	/**
+	 * Response headers passed back from the primary.
+	 */
+	private static final List<String> RETURNED_HEADERS = List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_ENCODING,
+			HttpHeaders.ETAG, HttpHeaders.VARY);
+
+	private final ClusterMembership membership;
+
+	private final ClusterClient clusterClient;
+
+	@Autowired
+	public ClusterRoutingFilter(ClusterMembership membership, ClusterClient clusterClient) {
+		this.membership = membership;
+		this.clusterClient = clusterClient;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		boolean fromMember = request.getHeader(ClusterClient.FORWARDED_HEADER) != null;
+		if (fromMember && !membership.isTrusted(request.getHeader(ClusterClient.FORWARDED_HEADER),
+				request.getHeader(ClusterClient.SECRET_HEADER))) {
+			request = new ClientRequest(request);
+			fromMember = false;
+		}
+		if (!membership.isEnabled() || !METHODS.contains(request.getMethod())) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		Matcher matcher = PACKAGE_PATH.matcher(request.getRequestURI().substring(request.getContextPath().length()));
+		UUID id = matcher.matches() ? parseId(matcher.group(1)) : null;
+		if (id == null || membership.isPrimary(id)) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		if (fromMember) {
+			if (request.getMethod().equals("GET")) {
+				filterChain.doFilter(request, response);
+			} else {
+				response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+			}
+			return;
+		}
+		HttpHeaders headers = new HttpHeaders();
+		for (String name : FORWARDED_HEADERS) {
+			String value = request.getHeader(name);
+			if (value != null) {
+				headers.set(name, value);
+			}
+		}
+		String pathAndQuery = request.getRequestURI() + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+		ResponseEntity<byte[]> forwarded;
+		try {
+			forwarded = clusterClient.forward(membership.getRing().primary(id), HttpMethod.valueOf(request.getMethod()),
+					pathAndQuery, headers, request.getInputStream().readAllBytes());
+		} catch (PeerUnavailableException ex) {
+			if (request.getMethod().equals("GET") && membership.isOwner(id)) {
+				filterChain.doFilter(request, response);
+			} else {
+				response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+			}
+			return;
+		}
+		response.setStatus(forwarded.getStatusCode().value());
+		for (String name : RETURNED_HEADERS) {
+			List<String> values = forwarded.getHeaders().get(name);
+			if (values != null) {
+				response.setHeader(name, String.join(", ", values));
+			}
+		}
+		if (forwarded.getBody() != null) {
+			response.getOutputStream().write(forwarded.getBody());
+		}
+	}
+
+	private static UUID parseId(String id) {
+		try {
+			return UUID.fromString(id);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * A request that claims to come from another node but does not, with the cluster headers hidden.
+	 */
+	private static final class ClientRequest extends HttpServletRequestWrapper {
+
+		ClientRequest(HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return isClusterHeader(name) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name) {
+			return isClusterHeader(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			List<String> names = Collections.list(super.getHeaderNames());
+			names.removeIf(ClientRequest::isClusterHeader);
+			return Collections.enumeration(names);
+		}
+
+		private static boolean isClusterHeader(String name) {
+			return ClusterClient.FORWARDED_HEADER.equalsIgnoreCase(name) || ClusterClient.SECRET_HEADER.equalsIgnoreCase(name);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.example.codingexercise.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Consistent hash ring assigning package ids to the nodes of a cluster. Each node is placed on the ring at
+ * virtualNodes points, so packages are spread evenly and adding or removing a node only moves the packages
+ * next to its points (about 1/n of them), all to or from that node.
+ * The owners of a package are the first replicas distinct nodes found going clockwise from the hash of its id.
+ * The first owner is the primary, which takes the writes; the others hold copies.
+ * Immutable, a membership change builds a new ring.
+ * @author tomd
+ *
+ */
+public final class ConsistentHashRing {
+
+	private final List<String> nodes;
+
+	/**
+	 * Hashes of the points in ascending order, and the node at each point.
+	 */
+	private final long[] points;
+	private final String[] pointNodes;
+
+	private final int replicas;
+
+	/**
+	 * @param nodes        non-empty collection of node URLs.
+	 * @param virtualNodes number of points per node.
+	 * @param replicas     number of owners of each package, capped at the number of nodes.
+	 */
+	public ConsistentHashRing(Collection<String> nodes, int virtualNodes, int replicas) {
+		if (nodes.isEmpty() || virtualNodes < 1 || replicas < 1) {
+			throw new IllegalArgumentException("A ring needs at least one node, point and replica");
+		}
+		this.nodes = List.copyOf(new TreeSet<>(nodes));
+		this.replicas = Math.min(replicas, this.nodes.size());
+		Point[] sorted = new Point[this.nodes.size() * virtualNodes];
+		int i = 0;
+		for (String node : this.nodes) {
+			for (int v = 0; v < virtualNodes; v++) {
+				sorted[i++] = new Point(hash(UUID.nameUUIDFromBytes((node + "#" + v).getBytes(StandardCharsets.UTF_8))), node);
+			}
+		}
+		Arrays.sort(sorted, (a, b) -> a.hash() != b.hash() ? Long.compare(a.hash(), b.hash()) : a.node().compareTo(b.node()));
+		this.points = new long[sorted.length];
+		this.pointNodes = new String[sorted.length];
+		for (i = 0; i < sorted.length; i++) {
+			points[i] = sorted[i].hash();
+			pointNodes[i] = sorted[i].node();
+		}
+	}
+
+	/**
+	 * Gets the nodes of the ring in sorted order.
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Gets the number of nodes holding each package.
+	 */
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Gets the node that takes the writes of a package.
+	 */
+	public String primary(UUID id) {
+		return pointNodes[index(hash(id))];
+	}
+
+	/**
+	 * Gets the nodes that hold a package, primary first.
+	 */
+	public List<String> owners(UUID id) {
+		List<String> owners = new ArrayList<>(replicas);
+		int i = index(hash(id));
+		for (int seen = 0; owners.size() < replicas && seen < points.length; seen++) {
+			if (!owners.contains(pointNodes[i])) {
+				owners.add(pointNodes[i]);
+			}
+			i = i + 1 == points.length ? 0 : i + 1;
+		}
+		return owners;
+	}
+
+	/**
+	 * Gets the index of the first point at or after a hash, wrapping round to the first point.
+	 */
+	private int index(long hash) {
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return i == points.length ? 0 : i;
+	}
+
+	/**
+	 * Hashes a UUID to a position on the ring. Random (version 4) UUIDs have a few fixed bits, so the bits
+	 * are mixed (with the MurmurHash3 finalizer) rather than used as they are.
+	 */
+	static long hash(UUID id) {
+		long h = id.getMostSignificantBits() ^ Long.rotateLeft(id.getLeastSignificantBits(), 32);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private record Point(long hash, String node) {
+	}
+}
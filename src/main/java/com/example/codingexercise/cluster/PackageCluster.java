@@ -0,0 +1,649 @@
+package com.example.codingexercise.cluster;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.example.codingexercise.dto.ClusterMembers;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageOperationResult;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.model.ProductPackage;
+import com.example.codingexercise.repository.PackageRepository;
+import com.example.codingexercise.repository.PackageStore;
+
+/**
+ * Spreads the packages over the nodes of a cluster (see ClusterMembership) and answers requests that need
+ * packages from more than one node.
+ * New packages are created on the node that receives the request, with an id chosen so that node is their
+ * primary. Requests for one package are forwarded to its primary by the ClusterRoutingFilter, bulk operations
+ * are split by primary, and lists of packages are gathered from every node and merged. A read still succeeds
+ * while fewer nodes than cluster.replicas are unavailable, as every package is also held by another node.
+ * When the members change each node copies the packages it is responsible for to their new owners and drops
+ * those it no longer owns, counted by cluster.rebalance.packages (tagged action=copied or dropped).
+ * Each node's statistics only count the packages it is primary for, so the statistics of the cluster are the
+ * sum of those of its nodes. The versions of the other nodes, which make up the version of the cluster, are read
+ * at most once every cluster.version-ttl rather than for every request.
+ * @author tomd
+ *
+ */
+@Component
+public class PackageCluster {
+
+	private final ClusterMembership membership;
+
+	private final ClusterClient clusterClient;
+
+	private final PackageRepository packageRepository;
+
+	private final ReplicatingPackageStore replicatingStore;
+
+	private final ExecutorService clusterExecutor;
+
+	private final ExecutorService rebalanceExecutor;
+
+	private final String seedUrl;
+
+	private final Duration versionTtl;
+
+	/**
+	 * Versions of the other nodes last read, or null.
+	 */
+	private volatile PeerVersions peerVersions;
+
+	private final Counter copiedPackages;
+
+	private final Counter droppedPackages;
+
+	@Autowired
+	public PackageCluster(ClusterMembership membership, ClusterClient clusterClient, PackageRepository packageRepository,
+			PackageStore packageStore, @Qualifier("clusterExecutor") ExecutorService clusterExecutor,
+			@Qualifier("clusterRebalanceExecutor") ExecutorService rebalanceExecutor,
+			@Value("${cluster.seed-url}") String seedUrl, @Value("${cluster.version-ttl}") Duration versionTtl,
+			MeterRegistry meterRegistry) {
+		this.membership = membership;
+		this.clusterClient = clusterClient;
+		this.packageRepository = packageRepository;
+		this.replicatingStore = packageStore instanceof ReplicatingPackageStore store ? store : null;
+		this.clusterExecutor = clusterExecutor;
+		this.rebalanceExecutor = rebalanceExecutor;
+		this.seedUrl = seedUrl;
+		this.versionTtl = versionTtl;
+		this.copiedPackages = rebalanceCounter(meterRegistry, "copied");
+		this.droppedPackages = rebalanceCounter(meterRegistry, "dropped");
+		if (membership.isEnabled()) {
+			packageRepository.setIdGenerator(this::newPackageId);
+			packageRepository.setStatisticsFilter(membership::isPrimary);
+			// A new list with the same nodes comes from a node joining again, which may have lost its packages.
+			membership.addListener((previous, current) -> rebalanceExecutor.execute(() -> {
+				packageRepository.setStatisticsFilter(membership::isPrimary);
+				rebalance(previous, current, previous.getNodes().equals(current.getNodes()));
+			}));
+		}
+	}
+
+	private static Counter rebalanceCounter(MeterRegistry meterRegistry, String action) {
+		return Counter.builder("cluster.rebalance.packages")
+				.description("Packages copied to or dropped from this node when the members of the cluster changed")
+				.tag("action", action)
+				.register(meterRegistry);
+	}
+
+	public boolean isEnabled() {
+		return membership.isEnabled();
+	}
+
+	/**
+	 * Whether this node takes the writes of a package, so lists built from every node include its copy.
+	 */
+	public boolean isPrimary(ProductPackage productPackage) {
+		return membership.isPrimary(UUID.fromString(productPackage.getId()));
+	}
+
+	/**
+	 * Joins the cluster through cluster.seed-url, if set, once this node can answer requests.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void joinSeed() {
+		if (membership.isEnabled() && !seedUrl.isBlank()) {
+			membership.update(clusterClient.join(ClusterMembership.normalize(seedUrl)));
+		}
+	}
+
+	/**
+	 * Adds a node to the cluster and tells every member. A node already in the cluster is announced again,
+	 * which makes every node copy its packages to their owners again.
+	 *
+	 * @return the new members.
+	 */
+	public synchronized ClusterMembers join(String url) {
+		ClusterMembers current = membership.getMembers();
+		String node = ClusterMembership.normalize(url);
+		List<String> nodes = new ArrayList<>(current.members());
+		if (!nodes.contains(node)) {
+			nodes.add(node);
+		}
+		return change(current, new ClusterMembers(current.epoch() + 1, nodes));
+	}
+
+	/**
+	 * Removes a node from the cluster and tells every member, including the node removed.
+	 *
+	 * @return the new members.
+	 *
+	 * @throws IllegalArgumentException if it is the last node.
+	 */
+	public synchronized ClusterMembers leave(String url) {
+		ClusterMembers current = membership.getMembers();
+		List<String> nodes = new ArrayList<>(current.members());
+		nodes.remove(ClusterMembership.normalize(url));
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Cannot remove the last node of the cluster");
+		}
+		return change(current, new ClusterMembers(current.epoch() + 1, nodes));
+	}
+
+	private ClusterMembers change(ClusterMembers current, ClusterMembers next) {
+		membership.update(next);
+		Set<String> nodes = new TreeSet<>(current.members());
+		nodes.addAll(next.members());
+		nodes.remove(membership.getSelf());
+		for (String node : nodes) {
+			try {
+				clusterClient.announce(node, next);
+			} catch (PeerUnavailableException ex) {
+				// The node gets the members when it joins again.
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Copies every package this node is responsible for to all of its owners, repairing copies missed while a
+	 * node was unavailable, and drops the packages this node does not own. Runs in the background.
+	 */
+	public void resync() {
+		ConsistentHashRing ring = membership.getRing();
+		rebalanceExecutor.execute(() -> rebalance(ring, ring, true));
+	}
+
+	/**
+	 * Moves packages after the members change. The node responsible for copying a package is the first of its
+	 * previous owners still in the cluster, or this node if none are left. Packages are copied through the
+	 * replication logs, so a copy never overtakes a later write of the package. A package this node no longer
+	 * owns is dropped once it has been copied, and kept if the copy failed.
+	 *
+	 * @param all whether to copy packages to every owner, rather than only to new owners.
+	 */
+	void rebalance(ConsistentHashRing previous, ConsistentHashRing current, boolean all) {
+		if (replicatingStore == null) {
+			return;
+		}
+		String self = membership.getSelf();
+		Set<String> members = new HashSet<>(current.getNodes());
+		List<ReplicatedWrite> prices = new ArrayList<>();
+		Map<String, List<CompletableFuture<Void>>> copies = new HashMap<>();
+		Map<String, List<String>> dropped = new LinkedHashMap<>();
+		packageRepository.exportCopies(write -> {
+			if (write.type() == ReplicatedWrite.Type.PRICE) {
+				prices.add(write);
+				return;
+			}
+			UUID id = UUID.fromString(write.id());
+			List<String> owners = current.owners(id);
+			List<String> previousOwners = previous.owners(id);
+			String copier = self;
+			for (String node : previousOwners) {
+				if (members.contains(node)) {
+					copier = node;
+					break;
+				}
+			}
+			List<String> targets = new ArrayList<>();
+			if (copier.equals(self)) {
+				for (String node : owners) {
+					if (!node.equals(self) && (all || !previousOwners.contains(node))) {
+						copies.computeIfAbsent(node, k -> copyPrices(k, prices)).add(replicatingStore.copy(node, write));
+						targets.add(node);
+					}
+				}
+			}
+			if (!owners.contains(self)) {
+				dropped.put(write.id(), targets);
+			}
+		});
+		Set<String> failed = new HashSet<>();
+		copies.forEach((node, sent) -> {
+			try {
+				CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)).join();
+			} catch (CompletionException ex) {
+				failed.add(node);
+			}
+			copiedPackages.increment(sent.size() - prices.size());
+		});
+		List<ReplicatedWrite> drops = new ArrayList<>();
+		dropped.forEach((id, targets) -> {
+			if (targets.stream().noneMatch(failed::contains)) {
+				drops.add(ReplicatedWrite.delete(id));
+			}
+		});
+		if (!drops.isEmpty()) {
+			packageRepository.applyCopies(drops);
+			droppedPackages.increment(drops.size());
+		}
+	}
+
+	/**
+	 * Sends the product prices to a node before the first package copied to it, so it can reprice the package.
+	 */
+	private List<CompletableFuture<Void>> copyPrices(String node, List<ReplicatedWrite> prices) {
+		List<CompletableFuture<Void>> sent = new ArrayList<>();
+		for (ReplicatedWrite price : prices) {
+			sent.add(replicatingStore.copy(node, price));
+		}
+		return sent;
+	}
+
+	/**
+	 * Makes the id of a new package so that this node is its primary.
+	 */
+	private UUID newPackageId() {
+		ConsistentHashRing ring = membership.getRing();
+		String self = membership.getSelf();
+		UUID id = UUID.randomUUID();
+		if (ring.getNodes().contains(self)) {
+			while (!ring.primary(id).equals(self)) {
+				id = UUID.randomUUID();
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Gets the version of the packages of the whole cluster: a hash of the epoch of the members and the version
+	 * of every node, so it changes after every write on any node and does not return to a version given out
+	 * before. Writes on other nodes are only seen once their versions are read again, at most cluster.version-ttl
+	 * later.
+	 *
+	 * @return the version, or empty if the version of a node could not be read.
+	 */
+	public OptionalLong getVersion() {
+		ClusterMembers members = membership.getMembers();
+		PeerVersions peers = peerVersions(members);
+		if (peers.versions() == null) {
+			return OptionalLong.empty();
+		}
+		Map<String, Long> versions = new TreeMap<>(peers.versions());
+		versions.put(membership.getSelf(), packageRepository.getVersion());
+		StringBuilder vector = new StringBuilder().append(members.epoch());
+		versions.forEach((node, version) -> vector.append(' ').append(node).append('=').append(version));
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(vector.toString().getBytes(StandardCharsets.UTF_8));
+			return OptionalLong.of(ByteBuffer.wrap(hash).getLong() & Long.MAX_VALUE);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Gets the versions of the other members, reading them again if they are older than cluster.version-ttl
+	 * or were read for other members. A failed read is also kept that long, so an unavailable node does not
+	 * slow every request down.
+	 */
+	private PeerVersions peerVersions(ClusterMembers members) {
+		PeerVersions peers = peerVersions;
+		if (peers != null && peers.isCurrent(members.epoch(), versionTtl)) {
+			return peers;
+		}
+		synchronized (this) {
+			peers = peerVersions;
+			if (peers != null && peers.isCurrent(members.epoch(), versionTtl)) {
+				return peers;
+			}
+			List<String> nodes = membership.getPeers();
+			Map<String, Long> versions = new HashMap<>();
+			for (NodeResult<Long> result : gather(clusterClient::getVersion, nodes.size())) {
+				versions.put(result.node(), result.value());
+			}
+			peers = new PeerVersions(members.epoch(), versions.keySet().containsAll(nodes) ? versions : null,
+					System.nanoTime());
+			peerVersions = peers;
+			return peers;
+		}
+	}
+
+	/**
+	 * Gets the statistics of every package of the cluster, adding up those of each node. Unlike other reads this
+	 * needs every node, as a node's statistics only count the packages it is primary for.
+	 */
+	public PackageStatistics getStatistics() {
+		PackageStatistics statistics = packageRepository.getStatistics();
+		for (NodeResult<PackageStatistics> result : gather(clusterClient::getStatistics, 0)) {
+			statistics = statistics.merge(result.value());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Gets every package of the cluster, in no particular order.
+	 */
+	public List<ProductPackage> getAll() {
+		return List.copyOf(merge(packageRepository.getAll(),
+				gather(node -> clusterClient.getPackages(node, ClusterClient.path("/packages"))), new HashMap<>()).values());
+	}
+
+	/**
+	 * Gets a page of packages of the cluster ordered by package id, as PackageRepository.getPage() does.
+	 */
+	public List<ProductPackage> getPage(String cursor, int limit, String namePrefix, String productId) {
+		UriComponentsBuilder path = ClusterClient.path("/packages").queryParam("limit", limit);
+		addParam(path, "cursor", cursor);
+		addParam(path, "namePrefix", namePrefix);
+		addParam(path, "productId", productId);
+		Map<String, ProductPackage> merged = merge(packageRepository.getPage(cursor, limit, namePrefix, productId),
+				gather(node -> clusterClient.getPackages(node, path.cloneBuilder())), new TreeMap<>());
+		List<ProductPackage> page = new ArrayList<>(Math.min(limit, merged.size()));
+		for (ProductPackage productPackage : merged.values()) {
+			if (page.size() == limit) {
+				break;
+			}
+			page.add(productPackage);
+		}
+		return page;
+	}
+
+	/**
+	 * Gets the packages of the cluster containing a product, ordered by package id.
+	 */
+	public List<ProductPackage> getByProductId(String productId) {
+		return List.copyOf(merge(packageRepository.getByProductId(productId),
+				gather(node -> clusterClient.getPackages(node, ClusterClient.path("/products/{id}/packages")
+						.uriVariables(Map.of("id", productId)))), new TreeMap<>()).values());
+	}
+
+	/**
+	 * Searches the packages of the cluster. Each node ranks its own packages, so the results are taken from each
+	 * node in turn (in node order) rather than ranked together.
+	 */
+	public List<ProductPackage> search(String query, int offset, int limit) {
+		int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+		UriComponentsBuilder path = ClusterClient.path("/packages/search").queryParam("q", query)
+				.queryParam("limit", wanted);
+		Map<String, List<ProductPackage>> results = new TreeMap<>();
+		results.put(membership.getSelf(), packageRepository.search(query, 0, wanted));
+		for (NodeResult<List<ProductPackage>> result : gather(node -> clusterClient.getPackages(node, path.cloneBuilder()))) {
+			results.put(result.node(), result.value());
+		}
+		Set<String> seen = new HashSet<>();
+		List<ProductPackage> page = new ArrayList<>(Math.min(limit, 64));
+		int skipped = 0;
+		for (int rank = 0; page.size() < limit; rank++) {
+			boolean more = false;
+			for (List<ProductPackage> packages : results.values()) {
+				if (rank < packages.size()) {
+					more = true;
+					ProductPackage productPackage = packages.get(rank);
+					if (page.size() < limit && seen.add(productPackage.getId()) && skipped++ >= offset) {
+						page.add(productPackage);
+					}
+				}
+			}
+			if (!more) {
+				break;
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Writes the packages other nodes are primary for to a newline delimited JSON stream, after this node's.
+	 *
+	 * @throws PeerUnavailableException if a node fails, leaving the stream incomplete.
+	 */
+	public void streamPeers(String currencyToUse, String namePrefix, String productId, OutputStream outputStream) {
+		UriComponentsBuilder path = ClusterClient.path("/packages");
+		addParam(path, "currencyToUse", currencyToUse);
+		addParam(path, "namePrefix", namePrefix);
+		addParam(path, "productId", productId);
+		for (String node : membership.getPeers()) {
+			clusterClient.streamPackages(node, path.cloneBuilder(), outputStream);
+		}
+	}
+
+	/**
+	 * Applies bulk operations on the nodes that are primary for the packages they change, in parallel. Creates
+	 * (and operations that cannot succeed) are applied by this node.
+	 *
+	 * @param local applies operations on this node.
+	 *
+	 * @return a result for each operation, in the same order.
+	 *
+	 * @throws PeerUnavailableException if a node fails, in which case the operations sent to other nodes may
+	 *         have been applied.
+	 */
+	public List<PackageOperationResult> applyBatch(List<PackageOperation> operations,
+			Function<List<PackageOperation>, List<PackageOperationResult>> local) {
+		String self = membership.getSelf();
+		ConsistentHashRing ring = membership.getRing();
+		Map<String, List<Integer>> indexesByNode = new LinkedHashMap<>();
+		for (int i = 0; i < operations.size(); i++) {
+			PackageOperation operation = operations.get(i);
+			String node = self;
+			if (operation != null && operation.op() != null && operation.op() != PackageOperation.Type.CREATE) {
+				UUID id = parseId(operation.id());
+				node = id == null ? self : ring.primary(id);
+			}
+			indexesByNode.computeIfAbsent(node, k -> new ArrayList<>()).add(i);
+		}
+		Map<String, CompletableFuture<List<PackageOperationResult>>> applied = new HashMap<>();
+		indexesByNode.forEach((node, indexes) -> {
+			List<PackageOperation> nodeOperations = new ArrayList<>(indexes.size());
+			for (int index : indexes) {
+				nodeOperations.add(operations.get(index));
+			}
+			if (!node.equals(self)) {
+				applied.put(node, CompletableFuture.supplyAsync(() -> clusterClient.applyBatch(node, nodeOperations),
+						clusterExecutor));
+			}
+		});
+		List<Integer> localIndexes = indexesByNode.get(self);
+		if (localIndexes != null) {
+			List<PackageOperation> localOperations = new ArrayList<>(localIndexes.size());
+			for (int index : localIndexes) {
+				localOperations.add(operations.get(index));
+			}
+			applied.put(self, CompletableFuture.completedFuture(local.apply(localOperations)));
+		}
+		PackageOperationResult[] results = new PackageOperationResult[operations.size()];
+		indexesByNode.forEach((node, indexes) -> {
+			List<PackageOperationResult> nodeResults = join(applied.get(node));
+			for (int i = 0; i < indexes.size(); i++) {
+				results[indexes.get(i)] = nodeResults.get(i);
+			}
+		});
+		return List.of(results);
+	}
+
+	/**
+	 * Applies bulk operations forwarded by another node, which sent this node the operations it is primary for.
+	 * Updates and deletes of packages this node is not the primary of (the nodes disagree on the members while
+	 * one joins or leaves) are not applied and get HttpStatus.SERVICE_UNAVAILABLE, as they would not be replicated.
+	 *
+	 * @param local applies operations on this node.
+	 *
+	 * @return a result for each operation, in the same order.
+	 */
+	public List<PackageOperationResult> applyForwardedBatch(List<PackageOperation> operations,
+			Function<List<PackageOperation>, List<PackageOperationResult>> local) {
+		PackageOperationResult[] results = new PackageOperationResult[operations.size()];
+		List<Integer> localIndexes = new ArrayList<>(operations.size());
+		List<PackageOperation> localOperations = new ArrayList<>(operations.size());
+		for (int i = 0; i < operations.size(); i++) {
+			PackageOperation operation = operations.get(i);
+			if (operation != null && operation.op() != null && operation.op() != PackageOperation.Type.CREATE) {
+				UUID id = parseId(operation.id());
+				if (id != null && !membership.isPrimary(id)) {
+					results[i] = new PackageOperationResult(HttpStatus.SERVICE_UNAVAILABLE.value(), null);
+					continue;
+				}
+			}
+			localIndexes.add(i);
+			localOperations.add(operation);
+		}
+		if (!localOperations.isEmpty()) {
+			List<PackageOperationResult> localResults = local.apply(localOperations);
+			for (int i = 0; i < localIndexes.size(); i++) {
+				results[localIndexes.get(i)] = localResults.get(i);
+			}
+		}
+		return List.of(results);
+	}
+
+	/**
+	 * Tells the other nodes that the price of a product has changed, in the background. Each node reprices its
+	 * own packages.
+	 */
+	public void priceChanged(Product product) {
+		for (String node : membership.getPeers()) {
+			clusterExecutor.execute(() -> {
+				try {
+					clusterClient.priceChanged(node, product);
+				} catch (PeerUnavailableException ex) {
+					// The node finds the new price when it next polls the product service.
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs a request on every other node in parallel.
+	 *
+	 * @return the results of the nodes that answered.
+	 *
+	 * @throws PeerUnavailableException if as many nodes failed as hold each package, so some packages may be missing.
+	 */
+	private <T> List<NodeResult<T>> gather(Function<String, T> request) {
+		return gather(request, membership.getRing().getReplicas() - 1);
+	}
+
+	/**
+	 * Runs a request on every other node in parallel.
+	 *
+	 * @param tolerated number of nodes that may fail without failing the request.
+	 *
+	 * @throws PeerUnavailableException if more nodes failed.
+	 */
+	private <T> List<NodeResult<T>> gather(Function<String, T> request, int tolerated) {
+		Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+		for (String node : membership.getPeers()) {
+			futures.put(node, CompletableFuture.supplyAsync(() -> request.apply(node), clusterExecutor));
+		}
+		List<NodeResult<T>> results = new ArrayList<>(futures.size());
+		PeerUnavailableException failure = null;
+		int failed = 0;
+		for (Map.Entry<String, CompletableFuture<T>> future : futures.entrySet()) {
+			try {
+				results.add(new NodeResult<>(future.getKey(), join(future.getValue())));
+			} catch (PeerUnavailableException ex) {
+				failure = ex;
+				failed++;
+			}
+		}
+		if (failed > tolerated) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Merges this node's packages with those of other nodes, keeping one copy of each package: the primary's
+	 * if it answered.
+	 */
+	private Map<String, ProductPackage> merge(List<ProductPackage> local, List<NodeResult<List<ProductPackage>>> peers,
+			Map<String, ProductPackage> merged) {
+		ConsistentHashRing ring = membership.getRing();
+		for (ProductPackage productPackage : local) {
+			merged.put(productPackage.getId(), productPackage);
+		}
+		for (NodeResult<List<ProductPackage>> result : peers) {
+			for (ProductPackage productPackage : result.value()) {
+				if (ring.primary(UUID.fromString(productPackage.getId())).equals(result.node())) {
+					merged.put(productPackage.getId(), productPackage);
+				} else {
+					merged.putIfAbsent(productPackage.getId(), productPackage);
+				}
+			}
+		}
+		return merged;
+	}
+
+	private static void addParam(UriComponentsBuilder path, String name, String value) {
+		if (value != null) {
+			path.queryParam(name, value);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException ex) {
+			throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+		}
+	}
+
+	private static UUID parseId(String id) {
+		try {
+			return id == null ? null : UUID.fromString(id);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Result of a request to another node.
+	 */
+	private record NodeResult<T>(String node, T value) {
+	}
+
+	/**
+	 * Versions of the other members of a list of members (null if a node did not answer), and when they were read.
+	 */
+	private record PeerVersions(long epoch, Map<String, Long> versions, long readAt) {
+
+		boolean isCurrent(long currentEpoch, Duration ttl) {
+			return epoch == currentEpoch && System.nanoTime() - readAt < ttl.toNanos();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.example.codingexercise.cluster;
+
+/**
+ * Thrown when another node of the cluster could not be reached or failed a request.
+ * @author tomd
+ *
+ */
+public class PeerUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String node;
+
+	public PeerUnavailableException(String node, String message, Throwable cause) {
+		super("Node " + node + ": " + message, cause);
+		this.node = node;
+	}
+
+	public String getNode() {
+		return node;
+	}
+}
@@ -0,0 +1,322 @@
+package com.example.codingexercise.cluster;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.model.ProductPackage;
+import com.example.codingexercise.repository.PackageStore;
+
+/**
+ * Package store used in cluster mode. Writes are recorded by the store it wraps and, when this node is the
+ * primary of the package, copied to the other nodes holding it. Product prices are copied to every other node.
+ * Each node has a ReplicationLog that sends its writes in the order they were made, batching the writes made
+ * while the previous batch was in flight. The future returned by a write completes once the local store and
+ * the nodes it was copied to have it, so the PackageRepository answers a write only after it is replicated;
+ * writes to other nodes are not waited for.
+ * A batch that still fails after one retry marks its node unavailable. Its writes are kept (hinted handoff) and
+ * sent again, with the writes made since, every cluster.replication.retry-interval until the node takes them,
+ * so the node catches up in order. Writes are not waited for while their node is unavailable, so an unavailable
+ * node does not block writes. At most cluster.replication.max-hints writes are kept per node; writes past that
+ * are counted (cluster.replication.failures) and dropped, leaving copies to be repaired by a rebalance
+ * (POST /cluster/rebalance). The writes kept are gauged (cluster.replication.hints) and batches are timed
+ * (cluster.replication.batches).
+ * @author tomd
+ *
+ */
+public class ReplicatingPackageStore implements PackageStore {
+
+	private final PackageStore delegate;
+
+	private final ClusterMembership membership;
+
+	private final ClusterClient clusterClient;
+
+	private final Executor executor;
+
+	private final int maxBatch;
+
+	private final Duration retryInterval;
+
+	private final int maxHints;
+
+	private final Map<String, ReplicationLog> logs = new ConcurrentHashMap<>();
+
+	/**
+	 * The last write made by each thread, so the writes of one repository operation (all made by the thread
+	 * holding the write lock) are waited for together.
+	 */
+	private final ThreadLocal<CompletableFuture<Void>> lastWrite = new ThreadLocal<>();
+
+	private final Timer batchTimer;
+
+	private final Counter failures;
+
+	public ReplicatingPackageStore(PackageStore delegate, ClusterMembership membership, ClusterClient clusterClient,
+			Executor executor, int maxBatch, Duration retryInterval, int maxHints, MeterRegistry meterRegistry) {
+		this.delegate = delegate;
+		this.membership = membership;
+		this.clusterClient = clusterClient;
+		this.executor = executor;
+		this.maxBatch = maxBatch;
+		this.retryInterval = retryInterval;
+		this.maxHints = maxHints;
+		this.batchTimer = Timer.builder("cluster.replication.batches")
+				.description("Time taken to send a batch of writes to another node")
+				.publishPercentileHistogram()
+				.register(meterRegistry);
+		this.failures = Counter.builder("cluster.replication.failures")
+				.description("Writes dropped without being copied to another node")
+				.register(meterRegistry);
+		Gauge.builder("cluster.replication.hints", logs,
+				nodeLogs -> nodeLogs.values().stream().mapToInt(ReplicationLog::hints).sum())
+				.description("Writes kept to send again to unavailable nodes")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public StoredPackages load() {
+		return delegate.load();
+	}
+
+	@Override
+	public CompletableFuture<Void> save(ProductPackage productPackage) {
+		CompletableFuture<Void> stored = delegate.save(productPackage);
+		UUID id = UUID.fromString(productPackage.getId());
+		return membership.isPrimary(id) ? replicate(stored, ReplicatedWrite.save(productPackage), replicaNodes(id)) : stored;
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String id) {
+		CompletableFuture<Void> stored = delegate.delete(id);
+		UUID key = UUID.fromString(id);
+		return membership.isPrimary(key) ? replicate(stored, ReplicatedWrite.delete(id), replicaNodes(key)) : stored;
+	}
+
+	@Override
+	public CompletableFuture<Void> savePrice(String productId, int usdPrice) {
+		return replicate(delegate.savePrice(productId, usdPrice), ReplicatedWrite.price(productId, usdPrice),
+				membership.getPeers());
+	}
+
+	@Override
+	public CompletableFuture<Void> saveCopy(ProductPackage productPackage) {
+		return delegate.saveCopy(productPackage);
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteCopy(String id) {
+		return delegate.deleteCopy(id);
+	}
+
+	@Override
+	public CompletableFuture<Void> savePriceCopy(String productId, int usdPrice) {
+		return delegate.savePriceCopy(productId, usdPrice);
+	}
+
+	@Override
+	public boolean isDurable() {
+		return delegate.isDurable();
+	}
+
+	@Override
+	public long startSnapshot() {
+		return delegate.startSnapshot();
+	}
+
+	@Override
+	public void writeSnapshot(long checkpoint, Collection<ProductPackage> productPackages, Map<String, Integer> productPrices) {
+		delegate.writeSnapshot(checkpoint, productPackages, productPrices);
+	}
+
+	/**
+	 * Sends a write to a node after the writes already sent to it. Used to copy packages to a node when the
+	 * members change; call it while the repository write lock is held so the copy is not overtaken by a later write.
+	 *
+	 * @return future that completes once the node has the write, or completes exceptionally if it could not be sent
+	 *         straight away, in which case it is kept and sent again (see the class description).
+	 */
+	public CompletableFuture<Void> copy(String node, ReplicatedWrite write) {
+		return log(node).append(write);
+	}
+
+	private List<String> replicaNodes(UUID id) {
+		List<String> nodes = new ArrayList<>(membership.getRing().owners(id));
+		nodes.remove(membership.getSelf());
+		return nodes;
+	}
+
+	/**
+	 * Sends a write to nodes. Must hold the repository write lock.
+	 *
+	 * @return future that completes once the write is stored locally and sent to the nodes (or kept for one that is
+	 *         unavailable), after the other writes made by this thread that are still pending, as the repository only
+	 *         waits for the last write of an operation. Never completes exceptionally because of the nodes.
+	 */
+	private CompletableFuture<Void> replicate(CompletableFuture<Void> stored, ReplicatedWrite write, List<String> nodes) {
+		List<CompletableFuture<Void>> pending = new ArrayList<>(nodes.size() + 2);
+		pending.add(stored);
+		for (String node : nodes) {
+			pending.add(log(node).append(write).exceptionally(ex -> null));
+		}
+		CompletableFuture<Void> previous = lastWrite.get();
+		if (previous != null && !previous.isDone()) {
+			pending.add(previous);
+		}
+		CompletableFuture<Void> replicated = pending.size() == 1 ? stored
+				: CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new));
+		lastWrite.set(replicated);
+		return replicated;
+	}
+
+	private ReplicationLog log(String node) {
+		return logs.computeIfAbsent(node, ReplicationLog::new);
+	}
+
+	/**
+	 * Writes waiting to be sent to one node, in order. At most one batch is in flight at a time. A batch is only
+	 * taken off the queue once the node has it, so while the node is unavailable its writes stay queued (hints).
+	 */
+	private class ReplicationLog {
+
+		private final String node;
+
+		private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+		private boolean sending;
+
+		/**
+		 * Set while the node is unavailable, from a failed batch to the next batch it takes.
+		 */
+		private boolean unavailable;
+
+		ReplicationLog(String node) {
+			this.node = node;
+		}
+
+		synchronized CompletableFuture<Void> append(ReplicatedWrite write) {
+			Pending pending = new Pending(write, new CompletableFuture<>());
+			if (!unavailable) {
+				queue.add(pending);
+				if (!sending) {
+					sending = true;
+					executor.execute(this::drain);
+				}
+			} else if (queue.size() < maxHints) {
+				queue.add(pending);
+				pending.sent().completeExceptionally(new PeerUnavailableException(node, "write kept to send again", null));
+			} else {
+				failures.increment();
+				pending.sent().completeExceptionally(new PeerUnavailableException(node, "write dropped", null));
+			}
+			return pending.sent();
+		}
+
+		/**
+		 * Gets the number of writes kept while the node is unavailable.
+		 */
+		synchronized int hints() {
+			return unavailable ? queue.size() : 0;
+		}
+
+		private void drain() {
+			while (true) {
+				List<Pending> batch;
+				synchronized (this) {
+					if (queue.isEmpty()) {
+						sending = false;
+						return;
+					}
+					batch = new ArrayList<>(Math.min(queue.size(), maxBatch));
+					Iterator<Pending> queued = queue.iterator();
+					while (queued.hasNext() && batch.size() < maxBatch) {
+						batch.add(queued.next());
+					}
+				}
+				List<ReplicatedWrite> writes = new ArrayList<>(batch.size());
+				for (Pending pending : batch) {
+					writes.add(pending.write());
+				}
+				RuntimeException failure = batchTimer.record(() -> send(writes));
+				if (failure != null) {
+					retryLater(failure);
+					return;
+				}
+				synchronized (this) {
+					// Only appends happen while a batch is in flight, so the batch is still at the head of the queue.
+					for (int i = 0; i < batch.size(); i++) {
+						queue.poll();
+					}
+					// Available once the writes kept while it was not have been sent, the writes made since are waited for.
+					unavailable = unavailable && !queue.isEmpty() && queue.peek().sent().isDone();
+				}
+				for (Pending pending : batch) {
+					pending.sent().complete(null);
+				}
+			}
+		}
+
+		/**
+		 * Marks the node unavailable and sends the queue again after the retry interval, or drops it if the node
+		 * has left the cluster.
+		 */
+		private void retryLater(RuntimeException failure) {
+			List<Pending> waiting;
+			synchronized (this) {
+				if (!membership.getRing().getNodes().contains(node)) {
+					failures.increment(queue.size());
+					waiting = new ArrayList<>(queue);
+					queue.clear();
+					unavailable = false;
+					sending = false;
+					logs.remove(node, this);
+				} else {
+					waiting = new ArrayList<>(queue);
+					unavailable = true;
+					CompletableFuture.delayedExecutor(retryInterval.toMillis(), TimeUnit.MILLISECONDS, executor)
+							.execute(this::drain);
+				}
+			}
+			for (Pending pending : waiting) {
+				pending.sent().completeExceptionally(failure);
+			}
+		}
+
+		/**
+		 * Sends a batch, retrying once.
+		 *
+		 * @return null if the batch was sent, otherwise why it failed.
+		 */
+		private RuntimeException send(List<ReplicatedWrite> writes) {
+			try {
+				clusterClient.replicate(node, writes);
+				return null;
+			} catch (RuntimeException ex) {
+				try {
+					clusterClient.replicate(node, writes);
+					return null;
+				} catch (RuntimeException retryEx) {
+					return retryEx;
+				}
+			}
+		}
+	}
+
+	private record Pending(ReplicatedWrite write, CompletableFuture<Void> sent) {
+	}
+}
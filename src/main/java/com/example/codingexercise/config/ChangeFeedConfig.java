@@ -0,0 +1,41 @@
+package com.example.codingexercise.config;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+/**
+ * Configures the package change feed (see packagechanges.properties).
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:packagechanges.properties")
+public class ChangeFeedConfig {
+
+	@Value("${threads.virtual.enabled}")
+	private boolean virtualThreadsEnabled;
+
+	/**
+	 * Threads writing changes to subscribers, one per subscriber. A subscriber's thread blocks while its
+	 * connection is full, so a slow subscriber only holds up itself. The number of threads is bounded by
+	 * package.changes.max-subscribers. If threads.virtual.enabled is set each subscriber gets a virtual thread.
+	 */
+	@Bean(name = "packageChangesExecutor", destroyMethod = "shutdownNow")
+	public ExecutorService packageChangesExecutor() {
+		if (virtualThreadsEnabled) {
+			return VirtualThreads.newThreadPerTaskExecutor("package-changes-");
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "package-changes-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,99 @@
+package com.example.codingexercise.config;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Configures the client and threads used for requests between the nodes of a cluster (see cluster.properties).
+ * The rest template keeps pooled connections to every node and leaves error statuses to the ClusterClient,
+ * so a forwarded request gets the owning node's response whatever its status.
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:cluster.properties")
+public class ClusterConfig {
+
+	@Value("${cluster.connect-timeout}")
+	private Duration connectTimeout;
+	@Value("${cluster.read-timeout}")
+	private Duration readTimeout;
+	@Value("${cluster.max-connections-per-node}")
+	private int maxConnectionsPerNode;
+
+	/**
+	 * Built from Spring Boot's RestTemplateBuilder, so packages are read with the same ObjectMapper the
+	 * controllers write them with. Content compression is off, so a gzipped response to a forwarded request
+	 * reaches the client as the primary sent it, Content-Encoding and all.
+	 */
+	@Bean(name = "clusterRestTemplate")
+	public RestTemplate clusterRestTemplate(RestTemplateBuilder restTemplateBuilder) {
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(HttpClients.custom()
+				.setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+						.setMaxConnTotal(maxConnectionsPerNode * 16)
+						.setMaxConnPerRoute(maxConnectionsPerNode)
+						.setDefaultConnectionConfig(ConnectionConfig.custom()
+								.setConnectTimeout(Timeout.of(connectTimeout))
+								.setSocketTimeout(Timeout.of(readTimeout))
+								.setValidateAfterInactivity(TimeValue.ofSeconds(1))
+								.build())
+						.build())
+				.disableContentCompression()
+				.build());
+		return restTemplateBuilder.requestFactory(() -> requestFactory)
+				.errorHandler(new ResponseErrorHandler() {
+					@Override
+					public boolean hasError(ClientHttpResponse response) {
+						return false;
+					}
+
+					@Override
+					public void handleError(ClientHttpResponse response) {
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Threads sending replicated writes and fanning reads out to the other nodes.
+	 */
+	@Bean(name = "clusterExecutor", destroyMethod = "shutdownNow")
+	public ExecutorService clusterExecutor() {
+		return Executors.newCachedThreadPool(daemonThreads("cluster-"));
+	}
+
+	/**
+	 * Single thread moving packages between nodes after the members change, one change at a time.
+	 */
+	@Bean(name = "clusterRebalanceExecutor", destroyMethod = "shutdownNow")
+	public ExecutorService clusterRebalanceExecutor() {
+		return Executors.newSingleThreadExecutor(daemonThreads("cluster-rebalance-"));
+	}
+
+	private static ThreadFactory daemonThreads(String namePrefix) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -1,20 +1,70 @@
 package com.example.codingexercise.config;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ClientHttpConnector;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 /**
- * Configures the rest template used for accessing currency exchange rates.
+ * Configures the rest template and web client used for accessing currency exchange rates.
+ * Requests are relative to currency.exchange.base-url.
+ * Scheduling is enabled so cached exchange rate tables are refreshed in the background.
+ * If gateway.client.async-enabled is not set, fetches for the non-blocking lookups are made with the rest
+ * template on the exchangeFetchExecutor.
  * @author tomd
  *
  */
 @Configuration
+@EnableScheduling
+@PropertySource("classpath:currencyexchange.properties")
 public class CurrencyExchangeConfig {
 
+	@Value("${currency.exchange.base-url}")
+	private String baseUrl;
+
+	@Value("${threads.virtual.enabled}")
+	private boolean virtualThreadsEnabled;
+
 	@Bean(name = "currencyExchangeRateRestTemplate")
-	public RestTemplate restTemplate() {
-		return new RestTemplate();
+	public RestTemplate restTemplate(@Qualifier("gatewayBlockingHttpClient") CloseableHttpClient httpClient) {
+		return new RestTemplateBuilder().requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+				.rootUri(baseUrl).build();
+	}
+
+	@Bean(name = "currencyExchangeRateWebClient")
+	public WebClient webClient(WebClient.Builder builder, @Qualifier("gatewayConnector") ClientHttpConnector connector) {
+		return builder.clientConnector(connector).baseUrl(baseUrl).build();
+	}
+
+	/**
+	 * Threads fetching exchange rate tables with the rest template for the non-blocking lookups, so they do not
+	 * block the calling thread. Concurrent fetches of the same currency are shared, so the number of threads is
+	 * bounded by the number of source currencies being fetched at once. If threads.virtual.enabled is set each
+	 * fetch gets a virtual thread.
+	 */
+	@Bean(name = "exchangeFetchExecutor", destroyMethod = "shutdownNow")
+	public ExecutorService exchangeFetchExecutor() {
+		if (virtualThreadsEnabled) {
+			return VirtualThreads.newThreadPerTaskExecutor("exchange-fetch-");
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "exchange-fetch-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
-}
\ No newline at end of file
+}
@@ -1,16 +1,25 @@
 package com.example.codingexercise.config;
 
 
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ClientHttpConnector;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Configures the rest template used to access the Product gateway.
- * Uses basic authentication.
+ * Configures the rest template and web client used to access the Product gateway.
+ * Uses basic authentication. Requests are relative to product.gateway.base-url.
  * @author tomd
  *
  */
@@ -18,13 +27,44 @@ import org.springframework.web.client.RestTemplate;
 @PropertySource("classpath:productgateway.properties")
 public class GatewayConfig {
 
+	@Value("${product.gateway.base-url}")
+	private String baseUrl;
 	@Value("${product.gateway.user}")
 	private String user;
 	@Value("${product.gateway.password}")
 	private String pass;
+	@Value("${product.gateway.max-concurrent-lookups}")
+	private int maxConcurrentLookups;
+	@Value("${threads.virtual.enabled}")
+	private boolean virtualThreadsEnabled;
 
 	@Bean(name = "productBasicAutoRestTemplate")
-	public RestTemplate restTemplate() {
-		return new RestTemplateBuilder().basicAuthentication(user, pass).build();
+	public RestTemplate restTemplate(@Qualifier("gatewayBlockingHttpClient") CloseableHttpClient httpClient) {
+		return new RestTemplateBuilder().requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+				.rootUri(baseUrl).basicAuthentication(user, pass).build();
+	}
+
+	@Bean(name = "productWebClient")
+	public WebClient webClient(WebClient.Builder builder, @Qualifier("gatewayConnector") ClientHttpConnector connector) {
+		return builder.clientConnector(connector).baseUrl(baseUrl).defaultHeaders(headers -> headers.setBasicAuth(user, pass)).build();
+	}
+
+	/**
+	 * Thread pool used to look up product ids in parallel. Its size bounds the number of
+	 * concurrent requests made to the product service.
+	 * If threads.virtual.enabled is set each lookup runs on its own virtual thread instead and the
+	 * gateway connection pool (gateway.client.max-connections-per-route) is the bound.
+	 */
+	@Bean(name = "productLookupExecutor", destroyMethod = "shutdownNow")
+	public ExecutorService productLookupExecutor() {
+		if (virtualThreadsEnabled) {
+			return VirtualThreads.newThreadPerTaskExecutor("product-lookup-");
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(maxConcurrentLookups, runnable -> {
+			Thread thread = new Thread(runnable, "product-lookup-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 }
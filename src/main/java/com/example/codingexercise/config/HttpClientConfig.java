@@ -0,0 +1,93 @@
+package com.example.codingexercise.config;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Configures the HTTP clients shared by the gateways to the product service and the exchange service.
+ * Both the blocking client (used by the RestTemplates) and the non-blocking client (used by the WebClients)
+ * pool and keep alive their connections and have explicit connect and read timeouts.
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:gatewayclient.properties")
+public class HttpClientConfig {
+
+	@Value("${gateway.client.connect-timeout}")
+	private Duration connectTimeout;
+	@Value("${gateway.client.read-timeout}")
+	private Duration readTimeout;
+	@Value("${gateway.client.max-connections}")
+	private int maxConnections;
+	@Value("${gateway.client.max-connections-per-route}")
+	private int maxConnectionsPerRoute;
+	@Value("${gateway.client.pending-acquire-timeout}")
+	private Duration pendingAcquireTimeout;
+	@Value("${gateway.client.max-idle-time}")
+	private Duration maxIdleTime;
+	@Value("${gateway.client.http2-enabled}")
+	private boolean http2Enabled;
+
+	/**
+	 * Blocking HTTP client with a connection pool, used by the RestTemplates.
+	 */
+	@Bean(name = "gatewayBlockingHttpClient")
+	public CloseableHttpClient gatewayBlockingHttpClient() {
+		return HttpClients.custom()
+				.setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+						.setMaxConnTotal(maxConnections)
+						.setMaxConnPerRoute(maxConnectionsPerRoute)
+						.setDefaultConnectionConfig(ConnectionConfig.custom()
+								.setConnectTimeout(Timeout.of(connectTimeout))
+								.setSocketTimeout(Timeout.of(readTimeout))
+								// Check connections the server may have closed while they sat in the pool.
+								.setValidateAfterInactivity(TimeValue.ofSeconds(1))
+								.build())
+						.build())
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectionRequestTimeout(Timeout.of(pendingAcquireTimeout))
+						.build())
+				.evictIdleConnections(TimeValue.of(maxIdleTime.toMillis(), TimeUnit.MILLISECONDS))
+				.build();
+	}
+
+	/**
+	 * Non-blocking HTTP client used by the WebClients. Negotiates HTTP/2 over TLS where the server supports it.
+	 */
+	@Bean(name = "gatewayConnector")
+	public ClientHttpConnector gatewayConnector() {
+		ConnectionProvider connectionProvider = ConnectionProvider.builder("gateway")
+				.maxConnections(maxConnections)
+				.pendingAcquireTimeout(pendingAcquireTimeout)
+				.maxIdleTime(maxIdleTime)
+				.build();
+		HttpClient httpClient = HttpClient.create(connectionProvider)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+				.option(ChannelOption.SO_KEEPALIVE, true)
+				.responseTimeout(readTimeout);
+		if (http2Enabled) {
+			httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+		}
+		return new ReactorClientHttpConnector(httpClient);
+	}
+}
@@ -0,0 +1,15 @@
+package com.example.codingexercise.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+/**
+ * Loads the settings used to expose metrics through Actuator (see metrics.properties).
+ * The meters themselves are registered by the components they measure.
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:metrics.properties")
+public class MetricsConfig {
+}
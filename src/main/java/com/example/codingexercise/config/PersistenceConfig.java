@@ -0,0 +1,55 @@
+package com.example.codingexercise.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+import com.example.codingexercise.cluster.ClusterClient;
+import com.example.codingexercise.cluster.ClusterMembership;
+import com.example.codingexercise.cluster.ReplicatingPackageStore;
+import com.example.codingexercise.repository.FilePackageStore;
+import com.example.codingexercise.repository.InMemoryPackageStore;
+import com.example.codingexercise.repository.PackageStore;
+
+/**
+ * Configures the store used to keep product packages across restarts.
+ * Packages are only kept in memory unless package.persistence.enabled is set. In cluster mode the store
+ * also copies the writes of this node's packages to the other nodes holding them.
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:packagepersistence.properties")
+public class PersistenceConfig {
+
+	@Value("${package.persistence.enabled}")
+	private boolean enabled;
+	@Value("${package.persistence.directory}")
+	private Path directory;
+	@Value("${cluster.replication.max-batch}")
+	private int replicationMaxBatch;
+	@Value("${cluster.replication.retry-interval}")
+	private Duration replicationRetryInterval;
+	@Value("${cluster.replication.max-hints}")
+	private int replicationMaxHints;
+
+	@Bean
+	public PackageStore packageStore(ClusterMembership membership, ClusterClient clusterClient,
+			@Qualifier("clusterExecutor") ExecutorService clusterExecutor, MeterRegistry meterRegistry) throws IOException {
+		PackageStore packageStore = enabled ? new FilePackageStore(directory) : new InMemoryPackageStore();
+		if (membership.isEnabled()) {
+			return new ReplicatingPackageStore(packageStore, membership, clusterClient, clusterExecutor, replicationMaxBatch,
+					replicationRetryInterval, replicationMaxHints, meterRegistry);
+		}
+		return packageStore;
+	}
+}
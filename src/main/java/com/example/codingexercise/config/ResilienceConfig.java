@@ -0,0 +1,100 @@
+package com.example.codingexercise.config;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Configures a circuit breaker and a bulkhead for each upstream service (product and exchange), so a slow or
+ * failing service makes calls to it fail at once instead of holding request threads for the full timeout.
+ * Breaker states and bulkhead usage are published as metrics (resilience4j.circuitbreaker.*, resilience4j.bulkhead.*).
+ * Settings are in gatewayclient.properties.
+ * @author tomd
+ *
+ */
+@Configuration
+public class ResilienceConfig {
+
+	@Value("${gateway.resilience.sliding-window-size}")
+	private int slidingWindowSize;
+	@Value("${gateway.resilience.minimum-calls}")
+	private int minimumCalls;
+	@Value("${gateway.resilience.failure-rate-threshold}")
+	private float failureRateThreshold;
+	@Value("${gateway.resilience.slow-call-duration}")
+	private Duration slowCallDuration;
+	@Value("${gateway.resilience.slow-call-rate-threshold}")
+	private float slowCallRateThreshold;
+	@Value("${gateway.resilience.wait-in-open-state}")
+	private Duration waitInOpenState;
+	@Value("${gateway.resilience.product.max-concurrent-calls}")
+	private int productMaxConcurrentCalls;
+	@Value("${gateway.resilience.exchange.max-concurrent-calls}")
+	private int exchangeMaxConcurrentCalls;
+
+	@Bean
+	public CircuitBreakerRegistry circuitBreakerRegistry(MeterRegistry meterRegistry) {
+		CircuitBreakerRegistry registry = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+				.slidingWindowSize(slidingWindowSize)
+				.minimumNumberOfCalls(minimumCalls)
+				.failureRateThreshold(failureRateThreshold)
+				.slowCallDurationThreshold(slowCallDuration)
+				.slowCallRateThreshold(slowCallRateThreshold)
+				.waitDurationInOpenState(waitInOpenState)
+				.automaticTransitionFromOpenToHalfOpenEnabled(true)
+				// A full bulkhead means this instance is busy, not that the upstream service is failing, and a
+				// cancelled call was given up by the caller.
+				.ignoreExceptions(BulkheadFullException.class, CancellationException.class)
+				.build());
+		TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+		return registry;
+	}
+
+	@Bean
+	public BulkheadRegistry bulkheadRegistry(MeterRegistry meterRegistry) {
+		BulkheadRegistry registry = BulkheadRegistry.ofDefaults();
+		TaggedBulkheadMetrics.ofBulkheadRegistry(registry).bindTo(meterRegistry);
+		return registry;
+	}
+
+	@Bean(name = "productCircuitBreaker")
+	public CircuitBreaker productCircuitBreaker(CircuitBreakerRegistry registry) {
+		return registry.circuitBreaker("product");
+	}
+
+	@Bean(name = "exchangeCircuitBreaker")
+	public CircuitBreaker exchangeCircuitBreaker(CircuitBreakerRegistry registry) {
+		return registry.circuitBreaker("exchange");
+	}
+
+	@Bean(name = "productBulkhead")
+	public Bulkhead productBulkhead(BulkheadRegistry registry) {
+		return registry.bulkhead("product", bulkheadConfig(productMaxConcurrentCalls));
+	}
+
+	@Bean(name = "exchangeBulkhead")
+	public Bulkhead exchangeBulkhead(BulkheadRegistry registry) {
+		return registry.bulkhead("exchange", bulkheadConfig(exchangeMaxConcurrentCalls));
+	}
+
+	private static BulkheadConfig bulkheadConfig(int maxConcurrentCalls) {
+		return BulkheadConfig.custom()
+				.maxConcurrentCalls(maxConcurrentCalls)
+				.maxWaitDuration(Duration.ZERO)
+				.build();
+	}
+}
@@ -0,0 +1,14 @@
+package com.example.codingexercise.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+/**
+ * Loads the settings of the PackageController's cache of serialized responses (see responsecache.properties).
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:responsecache.properties")
+public class ResponseCacheConfig {
+}
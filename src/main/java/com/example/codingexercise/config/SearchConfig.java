@@ -0,0 +1,14 @@
+package com.example.codingexercise.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+/**
+ * Loads the settings of the PackageRepository's search index (see search.properties).
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:search.properties")
+public class SearchConfig {
+}
@@ -0,0 +1,35 @@
+package com.example.codingexercise.config;
+
+import java.util.concurrent.ExecutorService;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+
+/**
+ * Configures the threads used to handle requests.
+ * If threads.virtual.enabled is set Tomcat runs each request on its own virtual thread, so a request
+ * blocked on the product or exchange service no longer holds one of a fixed number of worker threads.
+ * @author tomd
+ *
+ */
+@Configuration
+@PropertySource("classpath:threading.properties")
+public class ThreadingConfig {
+
+	@Value("${threads.virtual.enabled}")
+	private boolean virtualThreadsEnabled;
+
+	@Bean
+	public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer() {
+		return protocolHandler -> {
+			if (virtualThreadsEnabled) {
+				ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+				protocolHandler.setExecutor(executor);
+			}
+		};
+	}
+}
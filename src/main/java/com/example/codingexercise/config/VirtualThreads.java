@@ -0,0 +1,63 @@
+package com.example.codingexercise.config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that start a new virtual thread for each task.
+ * The application is built for Java 17, so the Java 21 API is looked up reflectively and
+ * {@link #isSupported()} is false on older runtimes.
+ * @author tomd
+ *
+ */
+public final class VirtualThreads {
+
+	private static final Method OF_VIRTUAL = findMethod("java.lang.Thread", "ofVirtual");
+	private static final Method NAME = findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+	private static final Method FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod("java.util.concurrent.Executors",
+			"newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the running JVM supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread.
+	 * 
+	 * @param namePrefix prefix of the thread names, which are numbered from 1.
+	 * @return the executor.
+	 * @throws IllegalStateException if the running JVM does not support virtual threads.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+		if (!isSupported()) {
+			throw new IllegalStateException("Virtual threads require Java 21 or later, running on " + Runtime.version());
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+			ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+		} catch (IllegalAccessException | InvocationTargetException ex) {
+			throw new IllegalStateException("Unable to create a virtual thread executor", ex);
+		}
+	}
+
+	/**
+	 * Looks up a public method by name, returning null if the class or method does not exist.
+	 */
+	private static Method findMethod(String className, String name, Class<?>... parameterTypes) {
+		try {
+			return Class.forName(className).getMethod(name, parameterTypes);
+		} catch (ClassNotFoundException | NoSuchMethodException ex) {
+			return null;
+		}
+	}
+}
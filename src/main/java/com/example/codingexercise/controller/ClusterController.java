@@ -0,0 +1,156 @@
+package com.example.codingexercise.controller;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.codingexercise.cluster.ClusterMembership;
+import com.example.codingexercise.cluster.PackageCluster;
+import com.example.codingexercise.dto.ClusterMembers;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.repository.PackageRepository;
+
+/**
+ * Rest controller for the members of a cluster and the requests its nodes make to each other.
+ * Every request gets HttpStatus.BAD_REQUEST unless cluster mode is enabled (cluster.enabled).
+ * @author tomd
+ *
+ */
+@RestController
+public class ClusterController {
+
+	private final ClusterMembership membership;
+
+	private final PackageCluster packageCluster;
+
+	private final PackageRepository packageRepository;
+
+	@Autowired
+	public ClusterController(ClusterMembership membership, PackageCluster packageCluster,
+			PackageRepository packageRepository) {
+		this.membership = membership;
+		this.packageCluster = packageCluster;
+		this.packageRepository = packageRepository;
+	}
+
+	/**
+	 * Gets the members of the cluster as this node knows them.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/cluster/members")
+	public ResponseEntity<ClusterMembers> getMembers() {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(membership.getMembers(), HttpStatus.OK);
+	}
+
+	/**
+	 * Adds a node to the cluster. Packages are moved to the new node in the background.
+	 *
+	 * @param url base URL of the node.
+	 *
+	 * @return the new members with HttpStatus.OK.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/cluster/members")
+	public ResponseEntity<ClusterMembers> join(@RequestParam String url) {
+		if (!membership.isEnabled() || url.isBlank()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(packageCluster.join(url), HttpStatus.OK);
+	}
+
+	/**
+	 * Removes a node from the cluster. Its packages are moved to the other nodes in the background.
+	 *
+	 * @param url base URL of the node.
+	 *
+	 * @return the new members with HttpStatus.OK. Returns HttpStatus.BAD_REQUEST for the last node.
+	 */
+	@RequestMapping(method = RequestMethod.DELETE, value = "/cluster/members")
+	public ResponseEntity<ClusterMembers> leave(@RequestParam String url) {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(packageCluster.leave(url), HttpStatus.OK);
+	}
+
+	/**
+	 * Replaces the members of the cluster, if the list is newer than the one this node has. Sent by the node
+	 * that handled a join or leave.
+	 */
+	@RequestMapping(method = RequestMethod.PUT, value = "/cluster/members")
+	public ResponseEntity<Void> announce(@RequestBody ClusterMembers members) {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		membership.update(members);
+		return new ResponseEntity<>(HttpStatus.OK);
+	}
+
+	/**
+	 * Applies writes copied from another node, in order.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/cluster/replication")
+	public ResponseEntity<Void> replicate(@RequestBody List<ReplicatedWrite> writes) {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		packageRepository.applyCopies(writes);
+		return new ResponseEntity<>(HttpStatus.OK);
+	}
+
+	/**
+	 * Copies this node's packages to all of their owners again, e.g. after a node was unavailable.
+	 *
+	 * @return HttpStatus.ACCEPTED, the packages are copied in the background.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/cluster/rebalance")
+	public ResponseEntity<Void> rebalance() {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		packageCluster.resync();
+		return new ResponseEntity<>(HttpStatus.ACCEPTED);
+	}
+
+	/**
+	 * Gets the version of this node's packages.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/cluster/version")
+	public ResponseEntity<Long> getVersion() {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(packageRepository.getVersion(), HttpStatus.OK);
+	}
+
+	/**
+	 * Gets the statistics of the packages this node is primary for.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/cluster/statistics")
+	public ResponseEntity<PackageStatistics> getStatistics() {
+		if (!membership.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(packageRepository.getStatistics(), HttpStatus.OK);
+	}
+
+	/**
+	 * Rejects removing the last node of the cluster.
+	 *
+	 * @return empty response body with HttpStatus.BAD_REQUEST.
+	 */
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<Void> invalidMembers() {
+		return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+	}
+}
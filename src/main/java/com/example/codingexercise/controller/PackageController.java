@@ -1,26 +1,104 @@
 package com.example.codingexercise.controller;
 
+import com.example.codingexercise.cluster.ClusterClient;
+import com.example.codingexercise.cluster.PackageCluster;
+import com.example.codingexercise.cluster.PeerUnavailableException;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageOperationResult;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.PackageStatisticsSummary;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.model.Money;
 import com.example.codingexercise.model.ProductPackage;
 import com.example.codingexercise.repository.PackageRepository;
+import com.example.codingexercise.repository.VersionMismatchException;
 import com.example.codingexercise.service.CurrencyExchangeRateService;
+import com.example.codingexercise.service.PackageChangeFeed;
+import com.example.codingexercise.service.PackageRepricingService;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * Rest controller for Product Packages.
+ * Request times are recorded by Spring Boot (http.server.requests). Converting package prices
+ * to another currency is timed separately (package.price.conversions, tagged packages=single or list).
+ * Requests that need the product service while its circuit breaker is open (or its bulkhead is full)
+ * get HttpStatus.SERVICE_UNAVAILABLE straight away.
+ * GET /packages and GET /packages/{id} responses carry an ETag built from the repository (or package)
+ * version and, when converted, the exchange rate version. A matching If-None-Match gets
+ * HttpStatus.NOT_MODIFIED without reading or converting any packages, and serialized responses are
+ * cached (responsecache.properties) so repeating an unchanged request does not convert or serialize again.
+ * In cluster mode lists and statistics get no ETag, and are not cached, while a node's version cannot be read.
+ * Prices are converted as Money (whole hundredths of a currency unit).
+ * In cluster mode lists of packages, searches and bulk operations go through the PackageCluster, unless the
+ * request was sent by another node (ClusterClient.FORWARDED_HEADER), which only wants this node's packages.
+ * The ClusterRoutingFilter hides that header unless the request really comes from a member of the cluster.
+ * Changes to the packages can be followed with GET /packages/changes (see PackageChangeFeed), and their
+ * statistics read with GET /packages/statistics, which is answered from running totals kept by the repository.
+ * GET /packages, GET /packages/{id} and GET /packages/statistics are sent as CBOR or Smile instead of JSON when
+ * the Accept header asks for them (see ResponseEncoding); each encoding has its own ETag and cached response.
+ * Cached responses of at least response.compression.min-response-size are gzipped once when cached, and sent
+ * gzipped to requests accepting gzip (responseencoding.properties). Tomcat's own compression
+ * (server.compression) leaves responses with strong ETags alone, so it only compresses the other responses.
  *
  */
 @RestController
@@ -28,26 +106,346 @@ public class PackageController {
 	/**
 	 * The base currency used for product prices.
 	 */
-	private static String BASE_CURRENCY = "USD";
+	private static String BASE_CURRENCY = Money.USD;
+
+	/**
+	 * Page size used when paging is requested without a limit.
+	 */
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	/**
+	 * Largest page size a client may ask for.
+	 */
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * Largest search offset a client may ask for. A node asked for a page of a search asks every other node for
+	 * all of their results up to the end of the page, so this bounds the results each search reads.
+	 */
+	private static final int MAX_SEARCH_OFFSET = 10000;
+
+	/**
+	 * Largest number of operations a client may send in one bulk request.
+	 */
+	private static final int MAX_BULK_OPERATIONS = 10000;
+
+	/**
+	 * Response header holding the cursor to use for the next page.
+	 */
+	static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	/**
+	 * Response header holding the offset to use for the next page of search results.
+	 */
+	static final String NEXT_OFFSET_HEADER = "X-Next-Offset";
+
+	/**
+	 * Request headers negotiated GET responses depend on, sent in Vary (including on NOT_MODIFIED) so shared
+	 * caches never give a client an encoding or compression it did not ask for.
+	 */
+	private static final String[] VARY_HEADERS = { HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING };
 	
 	private final PackageRepository packageRepository;
 
+	private final ObjectMapper objectMapper;
+
+	private final Timer singleConversionTimer;
+
+	private final Timer listConversionTimer;
+
+	/**
+	 * Serialized GET responses. Keys include the ETag, so entries for old versions are never used again
+	 * and are left to expire.
+	 */
+	private final Cache<ResponseKey, SerializedResponse> responseCache;
+
+	/**
+	 * Size of the smallest cached response that is also kept gzipped.
+	 */
+	private final long compressionMinSize;
+
 	@Autowired
 	private CurrencyExchangeRateService currencyExchangeRateService;
 
 	@Autowired
-	public PackageController(PackageRepository packageRepository) {
+	private PackageRepricingService packageRepricingService;
+
+	@Autowired
+	private PackageCluster packageCluster;
+
+	@Autowired
+	private PackageChangeFeed packageChangeFeed;
+
+	@Autowired
+	private MappingJackson2CborHttpMessageConverter cborConverter;
+
+	@Autowired
+	private MappingJackson2SmileHttpMessageConverter smileConverter;
+
+	@Autowired
+	public PackageController(PackageRepository packageRepository, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+			@Value("${response.cache.maximum-size}") DataSize responseCacheSize,
+			@Value("${response.cache.expire-after-access}") Duration responseCacheExpiry,
+			@Value("${response.compression.min-response-size}") DataSize compressionMinSize) {
 		this.packageRepository = packageRepository;
+		this.objectMapper = objectMapper;
+		this.singleConversionTimer = conversionTimer(meterRegistry, "single");
+		this.listConversionTimer = conversionTimer(meterRegistry, "list");
+		this.responseCache = Caffeine.newBuilder()
+				.maximumWeight(responseCacheSize.toBytes())
+				.<ResponseKey, SerializedResponse>weigher((key, response) -> response.body().length
+						+ (response.gzipped() == null ? 0 : response.gzipped().length))
+				.expireAfterAccess(responseCacheExpiry)
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, responseCache, "responses");
+		this.compressionMinSize = compressionMinSize.toBytes();
+	}
+
+	private static Timer conversionTimer(MeterRegistry meterRegistry, String packages) {
+		return Timer.builder("package.price.conversions")
+				.description("Time taken to convert package prices to another currency, including finding the exchange rate")
+				.tag("packages", packages)
+				.publishPercentileHistogram()
+				.register(meterRegistry);
 	}
 
 	/**
 	 * Gets a list of all ProductPackages in the ProductPackate repository.
+	 * If any of cursor, limit, namePrefix or productId are given then a single page of packages
+	 * is returned instead, ordered by package id. When more packages may follow, the response
+	 * header X-Next-Cursor holds the cursor to pass to get the next page.
+	 * 
+	 * @param cursor     value of X-Next-Cursor from the previous page.
+	 * @param limit      page size, at most MAX_PAGE_SIZE. Defaults to DEFAULT_PAGE_SIZE.
+	 * @param namePrefix only return packages whose name starts with this prefix.
+	 * @param productId  only return packages containing this product id.
 	 * 
-	 * @return the full list of ProductPackages in the product package repository.
+	 * @return the full list of ProductPackages in the product package repository, or the requested page.
+	 *         Returns HttpStatus.NOT_MODIFIED if If-None-Match holds the current ETag.
 	 */
 	@RequestMapping(method = RequestMethod.GET, value = "/packages")
-	public ResponseEntity<List<ProductPackage>> getAllPackages(@RequestBody @RequestParam(required = false) String currencyToUse) {
-		return new ResponseEntity<>(convertListOfProductPackagePrice(packageRepository.getAll(), currencyToUse), HttpStatus.OK);
+	@ApiResponse(responseCode = "200", content = @Content(mediaType = MediaType.APPLICATION_JSON_VALUE,
+			array = @ArraySchema(schema = @Schema(implementation = ProductPackage.class))))
+	public ResponseEntity<byte[]> getAllPackages(@RequestBody @RequestParam(required = false) String currencyToUse,
+			@RequestParam(required = false) String cursor, @RequestParam(required = false) Integer limit,
+			@RequestParam(required = false) String namePrefix, @RequestParam(required = false) String productId,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy,
+			@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+			@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, WebRequest request) {
+		boolean paged = cursor != null || limit != null || namePrefix != null || productId != null;
+		int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+		if (paged && (pageSize < 1 || pageSize > MAX_PAGE_SIZE)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		boolean clustered = isClustered(forwardedBy);
+		ResponseEncoding encoding = ResponseEncoding.negotiate(accept);
+		boolean gzip = ResponseEncoding.acceptsGzip(acceptEncoding);
+		OptionalLong version = packagesVersion(clustered);
+		String etag = version.isPresent() ? etag(version.getAsLong(), currencyToUse, encoding, gzip) : null;
+		if (etag != null && request.checkNotModified(etag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).varyBy(VARY_HEADERS).build();
+		}
+		OptionalDouble exchangeRate = getExchangeRate(currencyToUse);
+		Function<ResponseKey, SerializedResponse> read = k -> {
+			if (!paged) {
+				List<ProductPackage> productPackages = clustered ? packageCluster.getAll() : packageRepository.getAll();
+				List<ProductPackage> converted = convertProductPackagePrices(productPackages, currencyToUse, exchangeRate);
+				return serializedResponse(converted, encoding, null);
+			}
+			List<ProductPackage> page = clustered ? packageCluster.getPage(cursor, pageSize, namePrefix, productId)
+					: packageRepository.getPage(cursor, pageSize, namePrefix, productId);
+			String nextCursor = page.size() == pageSize ? page.get(page.size() - 1).getId() : null;
+			List<ProductPackage> converted = convertProductPackagePrices(page, currencyToUse, exchangeRate);
+			return serializedResponse(converted, encoding, nextCursor);
+		};
+		SerializedResponse serialized;
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		if (etag == null) {
+			// Without a version there is nothing to tell a cached response from a changed one.
+			serialized = read.apply(null);
+		} else {
+			String versionTag = etag(version.getAsLong(), currencyToUse);
+			ResponseKey key = paged
+					? new ResponseKey(null, currencyToUse, cursor, pageSize, namePrefix, productId, versionTag, encoding, clustered)
+					: new ResponseKey(null, currencyToUse, null, 0, null, null, versionTag, encoding, clustered);
+			serialized = responseCache.get(key, read);
+			response.eTag(etag);
+		}
+		if (serialized.nextCursor() != null) {
+			response.header(NEXT_CURSOR_HEADER, serialized.nextCursor());
+		}
+		return body(response, serialized, encoding, gzip);
+	}
+
+	/**
+	 * Streams the ProductPackages as newline delimited JSON (one package per line). Packages are
+	 * written as they are read from the repository, so the full list is never held in memory. In cluster mode
+	 * each node writes the packages it is primary for, one node after another.
+	 * 
+	 * @param namePrefix only return packages whose name starts with this prefix.
+	 * @param productId  only return packages containing this product id.
+	 * 
+	 * @return the stream of packages with HttpStatus.OK.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/packages", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamPackages(@RequestParam(required = false) String currencyToUse,
+			@RequestParam(required = false) String namePrefix, @RequestParam(required = false) String productId,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy) {
+		OptionalDouble exchangeRate = getExchangeRate(currencyToUse);
+		// Let the generator buffer packages instead of flushing the response after every one.
+		ObjectWriter writer = objectMapper.writerFor(ProductPackage.class)
+				.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		StreamingResponseBody body = outputStream -> {
+			try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+				generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				generator.setRootValueSeparator(new SerializedString("\n"));
+				Stream<ProductPackage> stream = packageRepository.stream(namePrefix, productId);
+				if (packageCluster.isEnabled()) {
+					stream = stream.filter(packageCluster::isPrimary);
+				}
+				Iterator<ProductPackage> productPackages = stream.iterator();
+				while (productPackages.hasNext()) {
+					writer.writeValue(generator, convertProductPackagePrice(productPackages.next(), currencyToUse, exchangeRate));
+				}
+				generator.writeRaw('\n');
+			}
+			if (isClustered(forwardedBy)) {
+				packageCluster.streamPeers(currencyToUse, namePrefix, productId, outputStream);
+			}
+		};
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+	}
+
+	/**
+	 * Streams the changes made to the ProductPackages as Server-Sent Events, starting after a sequence number,
+	 * so a client can follow the packages without reading them all again. The stream starts with a reset event
+	 * if no sequence number is given or its changes are no longer held; the client should then read the
+	 * packages (GET /packages) and apply the changes that follow. In cluster mode the stream holds the changes
+	 * to the packages held by this node.
+	 * 
+	 * @param since       sequence number of the last change the client has (the id of its last event).
+	 * @param lastEventId sent by EventSource clients when they reconnect, used instead of since.
+	 * 
+	 * @return the stream of changes with HttpStatus.OK, or HttpStatus.SERVICE_UNAVAILABLE if there are already
+	 *         package.changes.max-subscribers subscribers.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/packages/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<ResponseBodyEmitter> streamChanges(@RequestParam(required = false) Long since,
+			@RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+		ResponseBodyEmitter emitter = packageChangeFeed.subscribe(lastEventId != null ? lastEventId : since);
+		if (emitter == null) {
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		return ResponseEntity.ok().contentType(MediaType.TEXT_EVENT_STREAM).cacheControl(CacheControl.noCache()).body(emitter);
+	}
+
+	/**
+	 * Gets statistics of the ProductPackages: their number, the average, lowest, highest and percentile total
+	 * prices, and the products used by the most packages. The statistics are kept up to date by the repository as
+	 * packages are written, so no packages are read. The lowest, highest and percentile prices are taken from a
+	 * PriceSketch and are within 1% of the true prices.
+	 * 
+	 * @param percentiles percentiles of the total prices to return, between 0 and 100. Defaults to 50, 90 and 99.
+	 * @param top         number of the most used products to return, at most MAX_PAGE_SIZE. Defaults to 10.
+	 * 
+	 * @return the statistics with HttpStatus.OK, HttpStatus.NOT_MODIFIED if If-None-Match holds the current ETag,
+	 *         or HttpStatus.BAD_REQUEST if a percentile or top is out of range.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/packages/statistics")
+	public ResponseEntity<PackageStatisticsSummary> getStatistics(@RequestParam(required = false) String currencyToUse,
+			@RequestParam(defaultValue = "50,90,99") List<Double> percentiles, @RequestParam(defaultValue = "10") int top,
+			@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept, WebRequest request) {
+		if (top < 0 || top > MAX_PAGE_SIZE || percentiles.stream().anyMatch(p -> p == null || p < 0 || p > 100)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		boolean clustered = packageCluster.isEnabled();
+		ResponseEncoding encoding = ResponseEncoding.negotiate(accept);
+		OptionalLong version = packagesVersion(clustered);
+		String etag = version.isPresent() ? etag(version.getAsLong(), currencyToUse, encoding, false) : null;
+		if (etag != null && request.checkNotModified(etag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).varyBy(VARY_HEADERS).build();
+		}
+		PackageStatistics statistics = clustered ? packageCluster.getStatistics() : packageRepository.getStatistics();
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		if (etag != null) {
+			response.eTag(etag);
+		}
+		return response.varyBy(VARY_HEADERS).contentType(encoding.getMediaType())
+				.body(summarize(statistics, currencyToUse, getExchangeRate(currencyToUse), percentiles, top));
+	}
+
+	/**
+	 * Searches the names and descriptions of the ProductPackages. Every word of the query must match the
+	 * start of a word of the package (or, if search.ngram-enabled is set, any part of one), so a partly typed
+	 * query can be sent as it is typed. When more packages may follow, the response header X-Next-Offset holds
+	 * the offset to pass to get the next page; it is not set past MAX_SEARCH_OFFSET.
+	 * 
+	 * @param q      non-empty free text query.
+	 * @param offset number of ranked packages to skip, at most MAX_SEARCH_OFFSET. Defaults to 0.
+	 * @param limit  page size, at most MAX_PAGE_SIZE. Defaults to DEFAULT_PAGE_SIZE.
+	 * 
+	 * @return the matching ProductPackages, best match first, with HttpStatus.OK. Returns
+	 *         HttpStatus.BAD_REQUEST if the query is empty or the offset or limit are out of range.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/packages/search")
+	public ResponseEntity<List<ProductPackage>> search(@RequestParam String q,
+			@RequestParam(required = false) Integer offset, @RequestParam(required = false) Integer limit,
+			@RequestParam(required = false) String currencyToUse,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy) {
+		int first = offset == null ? 0 : offset;
+		int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+		// Another node asks for every result up to the end of the page it was asked for.
+		int maxPageSize = forwardedBy == null ? MAX_PAGE_SIZE : MAX_SEARCH_OFFSET + MAX_PAGE_SIZE;
+		if (q.isBlank() || first < 0 || first > MAX_SEARCH_OFFSET || pageSize < 1 || pageSize > maxPageSize) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		List<ProductPackage> page = isClustered(forwardedBy) ? packageCluster.search(q, first, pageSize)
+				: packageRepository.search(q, first, pageSize);
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		if (page.size() == pageSize && first + pageSize <= MAX_SEARCH_OFFSET) {
+			response.header(NEXT_OFFSET_HEADER, Integer.toString(first + pageSize));
+		}
+		return response.body(convertListOfProductPackagePrice(page, currencyToUse));
+	}
+
+	/**
+	 * Gets the ProductPackages that contain a product.
+	 * 
+	 * @param id String representing the product id.
+	 * 
+	 * @return the list of ProductPackages containing the product, ordered by package id, with HttpStatus.OK.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/products/{id}/packages")
+	public ResponseEntity<List<ProductPackage>> getPackagesForProduct(@PathVariable String id,
+			@RequestParam(required = false) String currencyToUse,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy) {
+		List<ProductPackage> productPackages = isClustered(forwardedBy) ? packageCluster.getByProductId(id)
+				: packageRepository.getByProductId(id);
+		return new ResponseEntity<>(convertListOfProductPackagePrice(productPackages, currencyToUse), HttpStatus.OK);
+	}
+
+	/**
+	 * Notifies the service that the price of a product has changed. The total price of every
+	 * package containing the product is updated.
+	 * 
+	 * @param id      String representing the product id.
+	 * @param product the product with its new usdPrice.
+	 * 
+	 * @return the number of packages repriced (on this node, in cluster mode) with HttpStatus.OK. Returns
+	 *         HttpStatus.BAD_REQUEST if the product id in the body does not match the path.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/products/{id}/price")
+	public ResponseEntity<Integer> productPriceChanged(@PathVariable String id, @RequestBody Product product,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy) {
+		if (product.id() != null && !product.id().equals(id)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		Product changed = new Product(id, product.name(), product.usdPrice());
+		if (isClustered(forwardedBy)) {
+			packageCluster.priceChanged(changed);
+		}
+		return new ResponseEntity<>(packageRepricingService.priceChanged(changed), HttpStatus.OK);
 	}
 
 	/**
@@ -74,29 +472,87 @@ public class PackageController {
 	 * 
 	 * @return On success returns the ProductProduct package with HttpStatus.OK. *
 	 *         On failure, returns an empty response body with status
-	 *         HttpStatus.BAD_REQUEST.
+	 *         HttpStatus.BAD_REQUEST. Returns HttpStatus.NOT_MODIFIED if
+	 *         If-None-Match holds the current ETag.
 	 */
 	@RequestMapping(method = RequestMethod.GET, value = "/packages/{id}")
-	public ResponseEntity<ProductPackage> get(@PathVariable String id, @RequestParam(required = false) String currencyToUse) {
-		ProductPackage productPackage = convertProductPackagePrice(packageRepository.get(id), currencyToUse);
-		return new ResponseEntity<>(productPackage, productPackage == null ? HttpStatus.BAD_REQUEST : HttpStatus.OK);
+	@ApiResponse(responseCode = "200", content = @Content(mediaType = MediaType.APPLICATION_JSON_VALUE,
+			schema = @Schema(implementation = ProductPackage.class)))
+	public ResponseEntity<byte[]> get(@PathVariable String id, @RequestParam(required = false) String currencyToUse,
+			@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+			@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, WebRequest request) {
+		ProductPackage productPackage = packageRepository.get(id);
+		if (productPackage == null) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		ResponseEncoding encoding = ResponseEncoding.negotiate(accept);
+		boolean gzip = ResponseEncoding.acceptsGzip(acceptEncoding);
+		String etag = etag(productPackage.getVersion(), currencyToUse, encoding, gzip);
+		if (request.checkNotModified(etag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).varyBy(VARY_HEADERS).build();
+		}
+		OptionalDouble exchangeRate = getExchangeRate(currencyToUse);
+		ResponseKey key = new ResponseKey(id, currencyToUse, null, 0, null, null, etag(productPackage.getVersion(), currencyToUse),
+				encoding, false);
+		SerializedResponse serialized = responseCache.get(key, k -> {
+			ProductPackage converted = productPackage;
+			if (currencyToUse != null) {
+				Timer.Sample sample = Timer.start();
+				converted = convertProductPackagePrice(productPackage, currencyToUse, exchangeRate);
+				sample.stop(singleConversionTimer);
+			}
+			return serializedResponse(converted, encoding, null);
+		});
+		return body(ResponseEntity.ok().eTag(etag), serialized, encoding, gzip);
 	}
 
 	/**
 	 * Uses the package id to update the attributes of existing ProductPackage.
+	 * If an If-Match header is given (an ETag from GET /packages/{id}), the update is only applied if the
+	 * package has not changed since.
 	 * 
-	 * @param updatedProductPackage new productPackage details that will be added.
+	 * @param id String representing the package id of the package to be updated.
+	 * @param updatedProductPackage new productPackage details that will be added. Its id may be left out, and
+	 *                              must be the path id if given.
+	 * @param ifMatch optional ETag the package must still match.
 	 * 
-	 * @return On success, returns the updated ProductPackage with HttpStatus.OK. On
+	 * @return On success, returns the updated ProductPackage and its new ETag with HttpStatus.OK. On
 	 *         failure, returns an empty response body with status
-	 *         HttpStatus.BAD_REQUEST.
+	 *         HttpStatus.BAD_REQUEST (also if the body's id differs from the path id), or
+	 *         HttpStatus.PRECONDITION_FAILED if the package has changed.
 	 */
 	@RequestMapping(method = RequestMethod.PUT, value = "/packages/{id}")
-	public ResponseEntity<ProductPackage> put(@RequestBody ProductPackage updatedProductPackage) {
-		ProductPackage productPackage = packageRepository.update(updatedProductPackage.getId(),
+	public ResponseEntity<ProductPackage> put(@PathVariable String id, @RequestBody ProductPackage updatedProductPackage,
+			@RequestHeader(value = "If-Match", required = false) String ifMatch) {
+		// The request was routed to the primary of the path id, so that is the only package it may write.
+		if (updatedProductPackage.getId() != null && !updatedProductPackage.getId().equals(id)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		ProductPackage productPackage = packageRepository.update(id,
 				updatedProductPackage.getName(), updatedProductPackage.getDescription(),
-				updatedProductPackage.getProductIds());
-		return new ResponseEntity<>(productPackage, productPackage == null ? HttpStatus.BAD_REQUEST : HttpStatus.OK);
+				updatedProductPackage.getProductIds(), parseVersion(ifMatch));
+		return updated(productPackage);
+	}
+
+	/**
+	 * Changes only the attributes of a ProductPackage that are given in the request body. Only product ids
+	 * that were not already in the package are validated with the product service.
+	 * If an If-Match header is given, the change is only applied if the package has not changed since.
+	 * 
+	 * @param id String representing the package id of the package to be changed.
+	 * @param changes name, description and/or productIds to change. Missing attributes are left unchanged.
+	 * @param ifMatch optional ETag the package must still match.
+	 * 
+	 * @return On success, returns the changed ProductPackage and its new ETag with HttpStatus.OK. On
+	 *         failure, returns an empty response body with status
+	 *         HttpStatus.BAD_REQUEST, or HttpStatus.PRECONDITION_FAILED if the package has changed.
+	 */
+	@RequestMapping(method = RequestMethod.PATCH, value = "/packages/{id}")
+	public ResponseEntity<ProductPackage> patch(@PathVariable String id, @RequestBody ProductPackage changes,
+			@RequestHeader(value = "If-Match", required = false) String ifMatch) {
+		ProductPackage productPackage = packageRepository.patch(id, changes.getName(), changes.getDescription(),
+				changes.getProductIds(), parseVersion(ifMatch));
+		return updated(productPackage);
 	}
 
 	/**
@@ -115,24 +571,238 @@ public class PackageController {
 	}
 
 	/**
-	 * Converts a given amount of BASE_CURRENCY to the target currency. Currency
+	 * Applies a batch of package creates, updates and deletes in one request. The product ids used by the
+	 * whole batch are validated together, so each unique product is only looked up once.
+	 * 
+	 * @param operations list of at most MAX_BULK_OPERATIONS operations, applied in order.
+	 * 
+	 * @return a result for each operation, in the same order, with HttpStatus.OK. Each result holds the
+	 *         status the operation would have returned on its own (OK, BAD_REQUEST or, for deletes of
+	 *         unknown ids, NO_CONTENT) and the created, updated or deleted package. Returns an empty
+	 *         response body with HttpStatus.BAD_REQUEST if there are no operations or too many.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/packages/bulk")
+	public ResponseEntity<List<PackageOperationResult>> bulk(@RequestBody List<PackageOperation> operations,
+			@RequestHeader(value = ClusterClient.FORWARDED_HEADER, required = false) String forwardedBy) {
+		if (operations == null || operations.isEmpty() || operations.size() > MAX_BULK_OPERATIONS) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		List<PackageOperationResult> results;
+		if (!packageCluster.isEnabled()) {
+			results = applyBatch(operations);
+		} else if (forwardedBy == null) {
+			results = packageCluster.applyBatch(operations, this::applyBatch);
+		} else {
+			results = packageCluster.applyForwardedBatch(operations, this::applyBatch);
+		}
+		return new ResponseEntity<>(results, HttpStatus.OK);
+	}
+
+	private List<PackageOperationResult> applyBatch(List<PackageOperation> operations) {
+		List<ProductPackage> applied = packageRepository.applyBatch(operations);
+		List<PackageOperationResult> results = new ArrayList<>(applied.size());
+		for (int i = 0; i < applied.size(); i++) {
+			ProductPackage productPackage = applied.get(i);
+			HttpStatus status = HttpStatus.OK;
+			if (productPackage == null) {
+				PackageOperation operation = operations.get(i);
+				boolean delete = operation != null && operation.op() == PackageOperation.Type.DELETE;
+				status = delete ? HttpStatus.NO_CONTENT : HttpStatus.BAD_REQUEST;
+			}
+			results.add(new PackageOperationResult(status.value(), productPackage));
+		}
+		return results;
+	}
+
+	/**
+	 * Fails requests fast while an upstream service (or too many other nodes of the cluster) is unavailable,
+	 * instead of with HttpStatus.INTERNAL_SERVER_ERROR.
+	 * 
+	 * @return empty response body with HttpStatus.SERVICE_UNAVAILABLE.
+	 */
+	@ExceptionHandler({ CallNotPermittedException.class, BulkheadFullException.class, PeerUnavailableException.class })
+	public ResponseEntity<Void> upstreamUnavailable() {
+		return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * Rejects a conditional update of a package that has changed since the If-Match ETag was read.
+	 * 
+	 * @return empty response body with HttpStatus.PRECONDITION_FAILED.
+	 */
+	@ExceptionHandler(VersionMismatchException.class)
+	public ResponseEntity<Void> versionMismatch() {
+		return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
+	}
+
+	/**
+	 * Gets the version of the packages of this node, or of the cluster.
+	 * 
+	 * @return the version, or empty if the version of a node of the cluster could not be read, in which case
+	 *         the response gets no ETag and is never NOT_MODIFIED.
+	 */
+	private OptionalLong packagesVersion(boolean clustered) {
+		return clustered ? packageCluster.getVersion() : OptionalLong.of(packageRepository.getVersion());
+	}
+
+	/**
+	 * Whether a request is answered by the whole cluster rather than only this node.
+	 */
+	private boolean isClustered(String forwardedBy) {
+		return packageCluster.isEnabled() && forwardedBy == null;
+	}
+
+	private ResponseEntity<ProductPackage> updated(ProductPackage productPackage) {
+		if (productPackage == null) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return ResponseEntity.ok().eTag(etag(productPackage.getVersion(), null)).body(productPackage);
+	}
+
+	/**
+	 * Gets the package version from an If-Match header. Accepts any ETag of the package, whatever
+	 * currency or encoding it was read in, and "*" for any version. If-Match uses the strong comparison
+	 * (RFC 9110), so a weak ETag never matches.
+	 * 
+	 * @return the version, PackageRepository.ANY_VERSION if there is no header, or a version that
+	 *         never matches if the header is not a strong ETag this controller made.
+	 */
+	private static long parseVersion(String ifMatch) {
+		if (ifMatch == null || ifMatch.isBlank() || ifMatch.trim().equals("*")) {
+			return PackageRepository.ANY_VERSION;
+		}
+		String etag = ifMatch.trim();
+		if (etag.startsWith("W/")) {
+			return Long.MIN_VALUE;
+		}
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			etag = etag.substring(1, etag.length() - 1);
+		}
+		int separator = etag.indexOf('-');
+		try {
+			return Long.parseLong(separator < 0 ? etag : etag.substring(0, separator));
+		} catch (NumberFormatException ex) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Gets the exchange rate used to convert BASE_CURRENCY to the target currency. Currency
 	 * names are as given by https://www.frankfurter.app/latest?from=
+	 * Called once per request so every package in a response is converted at the same rate.
 	 * 
 	 * @param targetCurrency String defining the currency name.
 	 * 
-	 * @return returns the amount converted to the new currency. If the new currency
-	 *         is unknown or not defined then the amount is returned without
-	 *         conversion.
+	 * @return returns the exchange rate, or empty if prices are not converted: the target currency is null,
+	 *         the base currency, or an unknown currency.
+	 */
+	private OptionalDouble getExchangeRate(String targetCurrency) {
+		if (targetCurrency == null || BASE_CURRENCY.equalsIgnoreCase(targetCurrency)) {
+			return OptionalDouble.empty();
+		}
+		double exchangeRate = currencyExchangeRateService.getCurrencyExchangeRate(BASE_CURRENCY, targetCurrency);
+		return exchangeRate < 0 ? OptionalDouble.empty() : OptionalDouble.of(exchangeRate);
+	}
+
+	/**
+	 * Works out the prices and most used products from statistics, converting the prices from USD cents.
+	 */
+	private PackageStatisticsSummary summarize(PackageStatistics statistics, String currencyToUse,
+			OptionalDouble exchangeRate, List<Double> percentiles, int top) {
+		String currency = exchangeRate.isPresent() ? currencyToUse : BASE_CURRENCY;
+		List<PackageStatisticsSummary.ProductUsage> topProducts = statistics.productUsage().entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+				.limit(top)
+				.map(usage -> new PackageStatisticsSummary.ProductUsage(usage.getKey(), usage.getValue()))
+				.toList();
+		if (statistics.count() == 0) {
+			return new PackageStatisticsSummary(0, currency, null, null, null, Map.of(), topProducts);
+		}
+		Map<String, Double> percentilePrices = new LinkedHashMap<>();
+		for (double percentile : percentiles) {
+			percentilePrices.put("p" + BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString(),
+					convertCents(statistics.prices().quantile(percentile / 100), exchangeRate, currency));
+		}
+		return new PackageStatisticsSummary(statistics.count(), currency,
+				convertCents(Math.round((double) statistics.totalCents() / statistics.count()), exchangeRate, currency),
+				convertCents(statistics.prices().quantile(0), exchangeRate, currency),
+				convertCents(statistics.prices().quantile(1), exchangeRate, currency), percentilePrices, topProducts);
+	}
+
+	private static double convertCents(long usdCents, OptionalDouble exchangeRate, String currency) {
+		Money price = new Money(usdCents, BASE_CURRENCY);
+		return (exchangeRate.isPresent() ? price.convert(exchangeRate.getAsDouble(), currency) : price).toDouble();
+	}
+
+	/**
+	 * Builds the ETag of a GET response. Only compared with If-None-Match for the same URL, so
+	 * the currency itself does not need to be part of it.
+	 * 
+	 * @param version version of the package, or of the repository for a list of packages.
+	 * @param currencyToUse currency prices are converted to, or null.
+	 */
+	private String etag(long version, String currencyToUse) {
+		if (currencyToUse == null || BASE_CURRENCY.equalsIgnoreCase(currencyToUse)) {
+			return "\"" + version + "\"";
+		}
+		return "\"" + version + "-" + currencyExchangeRateService.getExchangeRatesVersion() + "\"";
+	}
+
+	/**
+	 * Builds the ETag of a GET response in an encoding, and gzipped if the client accepts gzip, so a cache
+	 * holding the JSON never answers a request for CBOR with Not Modified. The version stays first, so the
+	 * ETag still works with If-Match.
+	 */
+	private String etag(long version, String currencyToUse, ResponseEncoding encoding, boolean gzip) {
+		String etag = etag(version, currencyToUse);
+		String suffix = (encoding.getEtagSuffix() == null ? "" : "-" + encoding.getEtagSuffix()) + (gzip ? "-gzip" : "");
+		if (suffix.isEmpty()) {
+			return etag;
+		}
+		return etag.substring(0, etag.length() - 1) + suffix + "\"";
+	}
+
+	/**
+	 * Serializes a GET response for the response cache, gzipping it too if it is at least compressionMinSize.
+	 */
+	private SerializedResponse serializedResponse(Object body, ResponseEncoding encoding, String nextCursor) {
+		byte[] serialized = serialize(body, encoding);
+		if (serialized.length < compressionMinSize) {
+			return new SerializedResponse(serialized, null, nextCursor);
+		}
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream(serialized.length / 4);
+		try (GZIPOutputStream outputStream = new GZIPOutputStream(gzipped)) {
+			outputStream.write(serialized);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return new SerializedResponse(serialized, gzipped.toByteArray(), nextCursor);
+	}
+
+	/**
+	 * Finishes a GET response with a cached body, sending it gzipped if the client accepts gzip and it was
+	 * large enough to be gzipped.
 	 */
-	private double convertBaseCurrency(double amount, String targetCurrency) {
+	private static ResponseEntity<byte[]> body(ResponseEntity.BodyBuilder response, SerializedResponse serialized,
+			ResponseEncoding encoding, boolean gzip) {
+		response.varyBy(VARY_HEADERS).contentType(encoding.getMediaType());
+		if (gzip && serialized.gzipped() != null) {
+			return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(serialized.gzipped());
+		}
+		return response.body(serialized.body());
+	}
 
-		if (targetCurrency == null || BASE_CURRENCY.equals(targetCurrency.toUpperCase())) {
-			return amount;
+	private byte[] serialize(Object body, ResponseEncoding encoding) {
+		ObjectMapper mapper = switch (encoding) {
+			case CBOR -> cborConverter.getObjectMapper();
+			case SMILE -> smileConverter.getObjectMapper();
+			default -> objectMapper;
+		};
+		try {
+			return mapper.writeValueAsBytes(body);
+		} catch (JsonProcessingException ex) {
+			throw new IllegalStateException("Could not serialize response", ex);
 		}
-		// Round result to 2 decimal places.
-		return Math.round(amount
-				* currencyExchangeRateService.getCurrencyExchangeRate(BASE_CURRENCY, targetCurrency.toUpperCase())
-				* 100.0) / 100.0;
 	}
 
 	/**
@@ -144,14 +814,34 @@ public class PackageController {
 	 * 
 	 * @return List of product packages with the total prices of each package updated to the new currency.
 	 */
-	private List<ProductPackage> convertListOfProductPackagePrice(List<ProductPackage> productPackages,
+	List<ProductPackage> convertListOfProductPackagePrice(List<ProductPackage> productPackages,
 			String currencyToUse) {
-		List<ProductPackage> updatedProductPackages = new ArrayList<>();
+		if (currencyToUse == null) {
+			return productPackages;
+		}
+		return convertProductPackagePrices(productPackages, currencyToUse, getExchangeRate(currencyToUse));
+	}
+
+	/**
+	 * Converts the total prices of a list of product packages using an exchange rate.
+	 * 
+	 * @param productPackages List of product packages.
+	 * @param currencyToUse currency the exchange rate converts to.
+	 * @param exchangeRate rate returned by getExchangeRate().
+	 * 
+	 * @return List of product packages with the total prices of each package updated to the new currency.
+	 */
+	private List<ProductPackage> convertProductPackagePrices(List<ProductPackage> productPackages, String currencyToUse,
+			OptionalDouble exchangeRate) {
+		if (exchangeRate.isEmpty()) {
+			return productPackages;
+		}
+		Timer.Sample sample = Timer.start();
+		List<ProductPackage> updatedProductPackages = new ArrayList<>(productPackages.size());
 		for (ProductPackage p : productPackages) {
-			if (p != null) {
-				updatedProductPackages.add(convertProductPackagePrice(p, currencyToUse));
-			}
+			updatedProductPackages.add(convertProductPackagePrice(p, currencyToUse, exchangeRate));
 		}
+		sample.stop(listConversionTimer);
 		return updatedProductPackages;
 	}
 
@@ -159,22 +849,40 @@ public class PackageController {
 	 * Given a single product packages with total product price in the base currency, this
 	 * method converts the price to a different currency.
 	 * 
+	 * The converted price is rounded to the nearest hundredth.
+	 * 
 	 * @param productPackage product packages who's total price will be converted.
-	 * @param currencyToUse String value names are as given by https://www.frankfurter.app/latest?from=
+	 * @param currencyToUse currency the exchange rate converts to.
+	 * @param exchangeRate rate returned by getExchangeRate().
 	 * 
 	 * @return A product package with the total prices of each package updated to the new currency.
 	 */
-	private ProductPackage convertProductPackagePrice(ProductPackage productPackage, String currencyToUse) {
+	private ProductPackage convertProductPackagePrice(ProductPackage productPackage, String currencyToUse,
+			OptionalDouble exchangeRate) {
 		// Note Cannot change the product package directly as we have a reference to it.
-		if (productPackage == null || currencyToUse == null) {
+		if (productPackage == null || exchangeRate.isEmpty()) {
 			return productPackage; // don't convert.
 		}
-		double convertedProductPrice = convertBaseCurrency(productPackage.getTotalPrice(), currencyToUse);
-		if (convertedProductPrice < 0) {
-			return productPackage; // conversion failed so return original.
-		}
+		ProductPackage converted = new ProductPackage(productPackage.getId(), productPackage.getName(),
+				productPackage.getDescription(), productPackage.getProductIds(),
+				productPackage.getTotal().convert(exchangeRate.getAsDouble(), currencyToUse));
+		converted.setVersion(productPackage.getVersion());
+		return converted;
+	}
 
-		return new ProductPackage(productPackage.getId(), productPackage.getName(), productPackage.getDescription(),
-				productPackage.getProductIds(), convertedProductPrice);
+	/**
+	 * Identifies a cached GET response. id is null for lists of packages, limit is 0 unless paged. clustered is
+	 * set for lists gathered from every node of a cluster. etag is the JSON ETag, so requests accepting gzip and
+	 * requests that do not share the entry, which holds both forms of the body.
+	 */
+	private record ResponseKey(String id, String currency, String cursor, int limit, String namePrefix, String productId,
+			String etag, ResponseEncoding encoding, boolean clustered) {
+	}
+
+	/**
+	 * Serialized response body, the body gzipped (null if too small to be worth it) and, for a page of packages,
+	 * the cursor of the next page.
+	 */
+	private record SerializedResponse(byte[] body, byte[] gzipped, String nextCursor) {
 	}
 }
@@ -0,0 +1,98 @@
+package com.example.codingexercise.controller;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+/**
+ * Encodings the PackageController serializes GET responses in, chosen by the request's Accept header.
+ * CBOR and Smile are binary forms of the same data as the JSON, so they take less space and are quicker
+ * to write and parse (see ProductPackageSerializationBenchmark). Responses in any encoding may also be gzip
+ * compressed, if the request's Accept-Encoding header accepts gzip.
+ * @author tomd
+ *
+ */
+enum ResponseEncoding {
+	JSON(MediaType.APPLICATION_JSON, null),
+	CBOR(MediaType.APPLICATION_CBOR, "cbor"),
+	SMILE(new MediaType("application", "x-jackson-smile"), "smile");
+
+	private final MediaType mediaType;
+
+	private final String etagSuffix;
+
+	ResponseEncoding(MediaType mediaType, String etagSuffix) {
+		this.mediaType = mediaType;
+		this.etagSuffix = etagSuffix;
+	}
+
+	MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * Gets the suffix added to ETags of responses in this encoding, so each encoding of a response has its own
+	 * ETag, or null for JSON.
+	 */
+	String getEtagSuffix() {
+		return etagSuffix;
+	}
+
+	/**
+	 * Chooses the encoding with the highest quality in an Accept header, JSON if it does not matter or
+	 * none of the encodings are accepted.
+	 *
+	 * @param accept Accept header of the request, or null.
+	 */
+	static ResponseEncoding negotiate(String accept) {
+		if (accept == null || accept.isBlank()) {
+			return JSON;
+		}
+		List<MediaType> accepted;
+		try {
+			accepted = MediaType.parseMediaTypes(accept);
+		} catch (InvalidMediaTypeException ex) {
+			return JSON;
+		}
+		// A stable sort keeps the order of the header for media types of the same quality.
+		accepted.sort(Comparator.comparingDouble(MediaType::getQualityValue).reversed());
+		for (MediaType mediaType : accepted) {
+			if (mediaType.getQualityValue() == 0) {
+				break;
+			}
+			for (ResponseEncoding encoding : values()) {
+				if (mediaType.includes(encoding.mediaType)) {
+					return encoding;
+				}
+			}
+		}
+		return JSON;
+	}
+
+	/**
+	 * Checks an Accept-Encoding header accepts gzip, i.e. names gzip (or *) without q=0.
+	 *
+	 * @param acceptEncoding Accept-Encoding header of the request, or null.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+				for (int i = 1; i < parts.length; i++) {
+					String parameter = parts[i].trim();
+					if (parameter.startsWith("q=") && parameter.substring(2).trim().matches("0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+}
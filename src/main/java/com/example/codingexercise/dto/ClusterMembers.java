@@ -0,0 +1,12 @@
+package com.example.codingexercise.dto;
+
+import java.util.List;
+
+/**
+ * Record for the members of a cluster, as returned by GET /cluster/members and sent to every node when
+ * they change. The epoch is incremented by every change, so a node never goes back to an older list.
+ * @author tomd
+ *
+ */
+public record ClusterMembers(long epoch, List<String> members) {
+}
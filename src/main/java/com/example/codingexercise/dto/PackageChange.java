@@ -0,0 +1,16 @@
+package com.example.codingexercise.dto;
+
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Record for one change to the packages, as sent by GET /packages/changes: its sequence number in the change
+ * log, the id of the package and, unless it was deleted, the package and its version as of the change.
+ * @author tomd
+ *
+ */
+public record PackageChange(long sequence, Type type, String id, long version, ProductPackage productPackage) {
+
+	public enum Type {
+		CREATED, UPDATED, DELETED
+	}
+}
@@ -0,0 +1,16 @@
+package com.example.codingexercise.dto;
+
+import java.util.List;
+
+/**
+ * Record for one create, update or delete in a bulk request to POST /packages/bulk.
+ * Creates use name, description and productIds, updates also use id and deletes only use id.
+ * @author tomd
+ *
+ */
+public record PackageOperation(Type op, String id, String name, String description, List<String> productIds) {
+
+	public enum Type {
+		CREATE, UPDATE, DELETE
+	}
+}
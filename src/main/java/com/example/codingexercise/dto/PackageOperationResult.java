@@ -0,0 +1,13 @@
+package com.example.codingexercise.dto;
+
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Record for the result of one operation in a bulk request. The status is the HTTP status code the
+ * operation would have returned on its own, productPackage is the created, updated or deleted package
+ * (null if the operation failed).
+ * @author tomd
+ *
+ */
+public record PackageOperationResult(int status, ProductPackage productPackage) {
+}
@@ -0,0 +1,29 @@
+package com.example.codingexercise.dto;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.example.codingexercise.model.PriceSketch;
+
+/**
+ * Record for the statistics of a set of packages, in a form that can be merged with the statistics of
+ * other packages: the number of packages, the sum of their total prices in USD cents, a sketch of their
+ * total prices and the number of packages using each product.
+ * @author tomd
+ *
+ */
+public record PackageStatistics(long count, long totalCents, PriceSketch prices, Map<String, Long> productUsage) {
+
+	/**
+	 * Adds the statistics of other packages, e.g. those of another node of the cluster.
+	 *
+	 * @return new statistics covering both sets of packages.
+	 */
+	public PackageStatistics merge(PackageStatistics other) {
+		PriceSketch mergedPrices = prices.copy();
+		mergedPrices.merge(other.prices);
+		Map<String, Long> mergedUsage = new HashMap<>(productUsage);
+		other.productUsage.forEach((productId, packages) -> mergedUsage.merge(productId, packages, Long::sum));
+		return new PackageStatistics(count + other.count, totalCents + other.totalCents, mergedPrices, mergedUsage);
+	}
+}
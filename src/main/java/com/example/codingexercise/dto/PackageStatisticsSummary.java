@@ -0,0 +1,21 @@
+package com.example.codingexercise.dto;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Record for the response of GET /packages/statistics: the number of packages, the average, lowest, highest and
+ * percentile total prices in the currency asked for, and the products used by the most packages. The prices
+ * are null if there are no packages. The lowest, highest and percentile prices are within 1% of the true prices.
+ * @author tomd
+ *
+ */
+public record PackageStatisticsSummary(long count, String currency, Double averagePrice, Double minPrice, Double maxPrice,
+		Map<String, Double> percentiles, List<ProductUsage> topProducts) {
+
+	/**
+	 * Number of packages using a product.
+	 */
+	public record ProductUsage(String productId, long packages) {
+	}
+}
@@ -0,0 +1,29 @@
+package com.example.codingexercise.dto;
+
+import com.example.codingexercise.model.ProductPackage;
+
+/**
+ * Record for one write copied from one node of a cluster to another (POST /cluster/replication): a saved
+ * package and its version, the id of a deleted package, or the last known price of a product.
+ * @author tomd
+ *
+ */
+public record ReplicatedWrite(Type type, ProductPackage productPackage, long version, String id, String productId,
+		int usdPrice) {
+
+	public enum Type {
+		SAVE, DELETE, PRICE
+	}
+
+	public static ReplicatedWrite save(ProductPackage productPackage) {
+		return new ReplicatedWrite(Type.SAVE, productPackage, productPackage.getVersion(), productPackage.getId(), null, 0);
+	}
+
+	public static ReplicatedWrite delete(String id) {
+		return new ReplicatedWrite(Type.DELETE, null, 0, id, null, 0);
+	}
+
+	public static ReplicatedWrite price(String productId, int usdPrice) {
+		return new ReplicatedWrite(Type.PRICE, null, 0, null, productId, usdPrice);
+	}
+}
@@ -0,0 +1,377 @@
+package com.example.codingexercise.gateway;
+
+import com.example.codingexercise.gateway.dto.Product;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.reactive.function.client.WebClientException;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Size bounded cache in front of the ProductServiceGateway.
+ * Products are kept for a configurable time to live and are refreshed in the background
+ * once they are older than the refresh time, so popular products never wait on the product service.
+ * Unknown product ids are cached as well (for a shorter time) so repeated requests for them are
+ * also answered without calling the product service.
+ * A product that is not cached is fetched by the first thread to ask for it, outside of any lock, and
+ * concurrent requests for the same id wait for that fetch (so virtual threads are never pinned while
+ * the product service responds).
+ * A non-blocking fetch is cancelled, along with its call to the product service, once every caller waiting
+ * on it has cancelled.
+ * Products that expire or are evicted are remembered (up to the same maximum size) as a last known
+ * good copy, which is returned if the product service is failing or its circuit breaker is open.
+ * @author tomd
+ *
+ */
+@Component
+public class ProductCache {
+
+	private final AsyncLoadingCache<String, Optional<Product>> products;
+
+	private final Cache<String, Product> lastKnown;
+
+	private final boolean multiGetEnabled;
+
+	private final ProductServiceGateway productServiceGateway;
+
+	/**
+	 * Number of getProductAsync() callers still waiting on each non-blocking fetch in progress.
+	 */
+	private final Map<CompletableFuture<Optional<Product>>, AtomicInteger> waiters = new ConcurrentHashMap<>();
+
+	@Autowired
+	public ProductCache(ProductServiceGateway productServiceGateway,
+			@Value("${product.cache.maximum-size}") long maximumSize,
+			@Value("${product.cache.ttl}") Duration ttl,
+			@Value("${product.cache.refresh-after}") Duration refreshAfter,
+			@Value("${product.cache.negative-ttl}") Duration negativeTtl,
+			@Value("${product.gateway.multi-get-enabled}") boolean multiGetEnabled) {
+		this.multiGetEnabled = multiGetEnabled;
+		this.productServiceGateway = productServiceGateway;
+		this.lastKnown = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.build();
+		this.products = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfter(new ProductExpiry(ttl, negativeTtl))
+				.<String, Optional<Product>>evictionListener((id, product, cause) -> {
+					if (id != null && product != null) {
+						product.ifPresent(p -> lastKnown.put(id, p));
+					}
+				})
+				.refreshAfterWrite(refreshAfter)
+				.recordStats()
+				.buildAsync(new ProductLoader(productServiceGateway));
+	}
+
+	/**
+	 * Gets a product using its id, only calling the product service if the id is not cached.
+	 * 
+	 * @param id non-null String product id.
+	 * 
+	 * @return the product or null if the product service does not know the product id.
+	 */
+	public Product getProduct(String id) {
+		CompletableFuture<Optional<Product>> fetch = new CompletableFuture<>();
+		CompletableFuture<Optional<Product>> cached = products.get(id, (key, executor) -> fetch);
+		try {
+			if (cached != fetch) {
+				try {
+					return join(cached).orElse(null);
+				} catch (CancellationException ex) {
+					// Every caller of getProductAsync() waiting on the fetch cancelled, so fetch again.
+					products.asMap().remove(id, cached);
+					return getProduct(id);
+				}
+			}
+			try {
+				Product product = productServiceGateway.getProduct(id);
+				fetch.complete(Optional.ofNullable(product));
+				return product;
+			} catch (RuntimeException | Error ex) {
+				// The failed fetch is removed from the cache, so the next request tries again.
+				fetch.completeExceptionally(ex);
+				throw ex;
+			}
+		} catch (RuntimeException ex) {
+			return lastKnown(id, ex);
+		}
+	}
+
+	/**
+	 * Gets a product using its id without blocking the calling thread. Cached products are
+	 * returned straight away, other ids are fetched with the non-blocking client.
+	 * 
+	 * @param id non-null String product id.
+	 * 
+	 * @return future completed with the product, or with null if the product service does not know the product id.
+	 *         Cancelling it cancels the call to the product service, unless other callers are waiting on the same fetch.
+	 */
+	public CompletableFuture<Product> getProductAsync(String id) {
+		CompletableFuture<Optional<Product>> fetch = products.get(id, (key, executor) -> fetchAsync(key));
+		CompletableFuture<Product> product = new CompletableFuture<>();
+		if (!fetch.isDone()) {
+			AtomicInteger count = waiters.computeIfAbsent(fetch, f -> new AtomicInteger());
+			count.incrementAndGet();
+			fetch.whenComplete((found, ex) -> waiters.remove(fetch));
+			product.whenComplete((found, ex) -> {
+				if (product.isCancelled() && count.decrementAndGet() == 0) {
+					fetch.cancel(true);
+				}
+			});
+		}
+		fetch.whenComplete((found, ex) -> {
+			if (ex == null) {
+				product.complete(found.orElse(null));
+			} else if (fetch.isCancelled()) {
+				if (!product.isDone()) {
+					// The other callers cancelled the fetch as this one started waiting on it, so fetch again.
+					products.asMap().remove(id, fetch);
+					CompletableFuture<Product> retry = getProductAsync(id);
+					retry.whenComplete((retried, retryEx) -> complete(product, retried, retryEx));
+					product.whenComplete((retried, retryEx) -> {
+						if (product.isCancelled()) {
+							retry.cancel(true);
+						}
+					});
+				}
+			} else {
+				try {
+					product.complete(lastKnown(id, unwrap(ex)));
+				} catch (RuntimeException failure) {
+					product.completeExceptionally(failure);
+				}
+			}
+		});
+		return product;
+	}
+
+	/**
+	 * Whether product lookups should use getProductAsync() rather than blocking threads.
+	 */
+	public boolean isAsyncEnabled() {
+		return productServiceGateway.isAsyncEnabled();
+	}
+
+	/**
+	 * Gets the known products that are already cached. Does not call the product service.
+	 * 
+	 * @param ids non-null collection of product ids.
+	 * 
+	 * @return mutable map of product id to product for the cached, known products.
+	 */
+	public Map<String, Product> getCachedProducts(Collection<String> ids) {
+		return present(products.synchronous().getAllPresent(ids));
+	}
+
+	/**
+	 * Gets several products, fetching all the ids that are not cached in a single multi-id
+	 * request to the product service. Only use when isMultiGetEnabled() is true, otherwise
+	 * the missing ids are fetched one after the other.
+	 * 
+	 * @param ids non-null collection of product ids.
+	 * 
+	 * @return mutable map of product id to product. Unknown product ids are left out.
+	 */
+	public Map<String, Product> getProducts(Collection<String> ids) {
+		try {
+			return present(join(products.getAll(ids)));
+		} catch (RuntimeException ex) {
+			Map<String, Optional<Product>> cached = products.synchronous().getAllPresent(ids);
+			Map<String, Product> found = present(cached);
+			for (String id : ids) {
+				if (!cached.containsKey(id)) {
+					found.put(id, lastKnown(id, ex));
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Replaces the cached copy of a product, e.g. when the product service reports a price change.
+	 * 
+	 * @param product non-null product.
+	 */
+	public void put(Product product) {
+		products.put(product.id(), CompletableFuture.completedFuture(Optional.of(product)));
+	}
+
+	/**
+	 * Whether the product service supports fetching several products in one request.
+	 */
+	public boolean isMultiGetEnabled() {
+		return multiGetEnabled;
+	}
+
+	/**
+	 * Gets the hit, miss and eviction counters of the cache.
+	 */
+	public CacheStats getStats() {
+		return products.synchronous().stats();
+	}
+
+	/**
+	 * Gets the last known good copy of a product after the product service failed, or rethrows
+	 * the failure if there is none or the failure was not caused by the product service.
+	 */
+	private Product lastKnown(String id, RuntimeException ex) {
+		Product product = isUpstreamFailure(ex) ? lastKnown.getIfPresent(id) : null;
+		if (product == null) {
+			throw ex;
+		}
+		return product;
+	}
+
+	private static boolean isUpstreamFailure(RuntimeException ex) {
+		return ex instanceof CallNotPermittedException || ex instanceof BulkheadFullException
+				|| ex instanceof RestClientException || ex instanceof WebClientException;
+	}
+
+	/**
+	 * Waits for a fetch, rethrowing the exception it failed with.
+	 */
+	private static <T> T join(CompletableFuture<T> fetch) {
+		try {
+			return fetch.join();
+		} catch (CompletionException ex) {
+			throw unwrap(ex);
+		}
+	}
+
+	/**
+	 * Fetches a product with the non-blocking client. Cancelling the fetch cancels the call to the product service.
+	 */
+	private CompletableFuture<Optional<Product>> fetchAsync(String id) {
+		return thenApplyCancellable(productServiceGateway.getProductAsync(id), Optional::ofNullable);
+	}
+
+	/**
+	 * Maps the result of a future, passing cancellation of the mapped future back to the original.
+	 */
+	private static <T, R> CompletableFuture<R> thenApplyCancellable(CompletableFuture<T> future, Function<T, R> mapper) {
+		CompletableFuture<R> mapped = future.thenApply(mapper);
+		mapped.whenComplete((result, ex) -> {
+			if (mapped.isCancelled()) {
+				future.cancel(true);
+			}
+		});
+		return mapped;
+	}
+
+	private static <T> void complete(CompletableFuture<T> future, T result, Throwable ex) {
+		if (ex == null) {
+			future.complete(result);
+		} else {
+			future.completeExceptionally(unwrap(ex));
+		}
+	}
+
+	private static RuntimeException unwrap(Throwable ex) {
+		if (ex instanceof CompletionException && ex.getCause() instanceof RuntimeException cause) {
+			return cause;
+		}
+		return ex instanceof RuntimeException runtime ? runtime : new CompletionException(ex);
+	}
+
+	private static Map<String, Product> present(Map<String, Optional<Product>> cached) {
+		Map<String, Product> present = new HashMap<>();
+		cached.forEach((id, product) -> product.ifPresent(p -> present.put(id, p)));
+		return present;
+	}
+
+	/**
+	 * Loads products from the product service, using a multi-id request for bulk loads if enabled.
+	 */
+	private class ProductLoader implements CacheLoader<String, Optional<Product>> {
+
+		private final ProductServiceGateway productServiceGateway;
+
+		ProductLoader(ProductServiceGateway productServiceGateway) {
+			this.productServiceGateway = productServiceGateway;
+		}
+
+		@Override
+		public Optional<Product> load(String id) {
+			return Optional.ofNullable(productServiceGateway.getProduct(id));
+		}
+
+		/**
+		 * Refreshes without holding a thread while the product service responds if the non-blocking client is enabled.
+		 */
+		@Override
+		public CompletableFuture<? extends Optional<Product>> asyncReload(String id, Optional<Product> oldProduct,
+				Executor executor) throws Exception {
+			if (productServiceGateway.isAsyncEnabled()) {
+				return fetchAsync(id);
+			}
+			return CacheLoader.super.asyncReload(id, oldProduct, executor);
+		}
+
+		@Override
+		public Map<? extends String, ? extends Optional<Product>> loadAll(Set<? extends String> ids) throws Exception {
+			if (!multiGetEnabled) {
+				return CacheLoader.super.loadAll(ids);
+			}
+			Map<String, Product> found = productServiceGateway.getProducts(Set.copyOf(ids));
+			Map<String, Optional<Product>> loaded = new HashMap<>();
+			for (String id : ids) {
+				loaded.put(id, Optional.ofNullable(found.get(id)));
+			}
+			return loaded;
+		}
+	}
+
+	/**
+	 * Expires known products after the ttl and unknown product ids after the negative ttl.
+	 */
+	private static class ProductExpiry implements Expiry<String, Optional<Product>> {
+
+		private final long ttlNanos;
+		private final long negativeTtlNanos;
+
+		ProductExpiry(Duration ttl, Duration negativeTtl) {
+			this.ttlNanos = ttl.toNanos();
+			this.negativeTtlNanos = negativeTtl.toNanos();
+		}
+
+		@Override
+		public long expireAfterCreate(String id, Optional<Product> product, long currentTime) {
+			return product.isPresent() ? ttlNanos : negativeTtlNanos;
+		}
+
+		@Override
+		public long expireAfterUpdate(String id, Optional<Product> product, long currentTime, long currentDuration) {
+			return expireAfterCreate(id, product, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String id, Optional<Product> product, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.example.codingexercise.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Fixed-point amount of money: a whole number of hundredths of a currency unit (cents for USD).
+ * Prices are added and converted in hundredths, so they are only rounded once per conversion
+ * and never pick up floating point error from being summed as doubles.
+ * Hundredths are not the minor unit of every currency: JPY and KRW have none and are still held to two
+ * decimal places, as totalPrice has always been sent.
+ * @author tomd
+ *
+ */
+public record Money(long hundredths, String currency) {
+
+    /**
+     * Currency product prices (and so package prices) are held in.
+     */
+    public static final String USD = "USD";
+
+    /**
+     * Number of decimal places held. Always two, whatever the currency's own number of minor units.
+     */
+    public static final int SCALE = 2;
+
+    private static final double HUNDREDTHS_PER_UNIT = 100.0;
+
+    /**
+     * Gets the amount nearest to a decimal amount, e.g. from a request body.
+     */
+    public static Money of(double amount, String currency) {
+        return new Money(Math.round(amount * HUNDREDTHS_PER_UNIT), currency);
+    }
+
+    /**
+     * Converts to another currency, rounding half up to the nearest hundredth.
+     * 
+     * @param exchangeRate    units of the target currency per unit of this currency.
+     * @param targetCurrency  currency of the result.
+     */
+    public Money convert(double exchangeRate, String targetCurrency) {
+        return new Money(Math.round(hundredths * exchangeRate), targetCurrency);
+    }
+
+    /**
+     * Gets the amount as a decimal number of units, as sent in totalPrice.
+     */
+    public double toDouble() {
+        return hundredths / HUNDREDTHS_PER_UNIT;
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(hundredths, SCALE);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString() + " " + currency;
+    }
+}
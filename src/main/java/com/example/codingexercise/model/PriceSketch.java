@@ -0,0 +1,141 @@
+package com.example.codingexercise.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Quantile sketch of prices in minor units (cents), in the manner of DDSketch: each price is counted in a bucket
+ * covering prices within RELATIVE_ACCURACY of each other, so any quantile is returned to within 1% of the true
+ * price whatever the spread of prices. Prices can be added and removed in O(1), and sketches can be merged by
+ * adding their buckets, e.g. to combine the sketches of the nodes of a cluster.
+ * The buckets for every price from 1 cent to Long.MAX_VALUE cents take about 2200 counts (17KB). Only non-empty
+ * buckets are written as JSON.
+ * @author tomd
+ *
+ */
+public final class PriceSketch {
+
+    /**
+     * Most relative difference between a quantile returned and the true price.
+     */
+    public static final double RELATIVE_ACCURACY = 0.01;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    /**
+     * Bucket 0 holds zero prices, bucket i holds prices p with GAMMA^(i-2) < p <= GAMMA^(i-1).
+     */
+    private final long[] counts = new long[index(Long.MAX_VALUE) + 1];
+
+    private long count;
+
+    public PriceSketch() {
+    }
+
+    /**
+     * Builds a sketch from the non-empty buckets written by getBuckets().
+     */
+    @JsonCreator
+    public PriceSketch(@JsonProperty("buckets") Map<Integer, Long> buckets) {
+        buckets.forEach((index, bucketCount) -> {
+            counts[index] = bucketCount;
+            count += bucketCount;
+        });
+    }
+
+    /**
+     * Gets the counts of the non-empty buckets, keyed by bucket index.
+     */
+    @JsonProperty("buckets")
+    public Map<Integer, Long> getBuckets() {
+        Map<Integer, Long> buckets = new TreeMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                buckets.put(i, counts[i]);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Counts a price. Negative prices are counted as zero.
+     */
+    public void add(long minorUnits) {
+        counts[index(minorUnits)]++;
+        count++;
+    }
+
+    /**
+     * Stops counting a price that was added before.
+     */
+    public void remove(long minorUnits) {
+        counts[index(minorUnits)]--;
+        count--;
+    }
+
+    /**
+     * Adds the prices counted by another sketch.
+     */
+    public void merge(PriceSketch other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    public PriceSketch copy() {
+        PriceSketch copy = new PriceSketch();
+        copy.merge(this);
+        return copy;
+    }
+
+    @JsonIgnore
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the price at a quantile, to within RELATIVE_ACCURACY.
+     *
+     * @param quantile between 0 (the lowest price) and 1 (the highest).
+     *
+     * @return the price in minor units, or 0 if no prices are counted.
+     */
+    public long quantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        long rank = (long) (quantile * (count - 1));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += Math.max(counts[i], 0);
+            if (seen > rank) {
+                return value(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int index(long minorUnits) {
+        if (minorUnits <= 0) {
+            return 0;
+        }
+        return (int) Math.ceil(Math.log(minorUnits) / LOG_GAMMA) + 1;
+    }
+
+    /**
+     * Gets the price a bucket stands for, the one with the same relative difference to both ends of the bucket.
+     */
+    private static long value(int index) {
+        if (index == 0) {
+            return 0;
+        }
+        return Math.round(2 * Math.pow(GAMMA, index - 1) / (GAMMA + 1));
+    }
+}
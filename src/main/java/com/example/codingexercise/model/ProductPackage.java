@@ -2,19 +2,35 @@ package com.example.codingexercise.model;
 
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A package of products, as sent and received by the rest API. The total price is held as Money and
+ * sent as the decimal totalPrice.
+ */
 public class ProductPackage {
     private String id;
     private String name;
     private String description;
     private List<String> productIds;
-    private double totalPrice;
+    private Money total;
+    private long version;
 
+    /**
+     * @param totalPrice total price in US dollars.
+     */
+    @JsonCreator
     public ProductPackage(String id, String name, String description, List<String> productIds, double totalPrice) {
+        this(id, name, description, productIds, Money.of(totalPrice, Money.USD));
+    }
+
+    public ProductPackage(String id, String name, String description, List<String> productIds, Money total) {
         this.id = id;
         this.name = name;
         this.description = description;
         this.productIds = productIds;
-        this.totalPrice = totalPrice;
+        this.total = total;
     }
 
     public String getId() {
@@ -50,10 +66,37 @@ public class ProductPackage {
     }
     
     public double getTotalPrice() {
-    	return totalPrice;
+    	return total.toDouble();
     }
     
+    /**
+     * Sets the total price, in US dollars.
+     */
     public void setTotalPrice(double totalPrice) {
-        this.totalPrice = totalPrice;
+        this.total = Money.of(totalPrice, Money.USD);
+    }
+
+    @JsonIgnore
+    public Money getTotal() {
+        return total;
+    }
+
+    @JsonIgnore
+    public void setTotal(Money total) {
+        this.total = total;
+    }
+
+    /**
+     * Version of the package in the repository, changed by every update or reprice. Sent as the ETag
+     * header rather than in the body.
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return version;
+    }
+
+    @JsonIgnore
+    public void setVersion(long version) {
+        this.version = version;
     }
 }
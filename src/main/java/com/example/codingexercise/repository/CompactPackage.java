@@ -0,0 +1,124 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.Money;
+import com.example.codingexercise.model.ProductPackage;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Form in which the PackageRepository holds a product package: the id as a 128 bit UUID, the
+ * product ids as codes from the ProductIdDictionary and the total price as a whole number of cents.
+ * Each package carries the repository version it was last written at.
+ * ProductPackages are only built from it (toProductPackage()) when a package leaves the repository.
+ * Immutable, a change replaces the whole CompactPackage.
+ * @author tomd
+ *
+ */
+final class CompactPackage {
+
+	/**
+	 * Orders package ids the same way as their String form, so pages keep the order of the String ids.
+	 */
+	static final Comparator<UUID> ID_ORDER = (a, b) -> {
+		int compared = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+		return compared != 0 ? compared : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+	};
+
+	private final UUID id;
+	private final String name;
+	private final String description;
+	private final int[] productCodes;
+	private final long totalCents;
+	private final long version;
+
+	CompactPackage(UUID id, String name, String description, int[] productCodes, long totalCents, long version) {
+		this.id = id;
+		this.name = name;
+		// Share a single empty description.
+		this.description = description != null && description.isEmpty() ? "" : description;
+		this.productCodes = productCodes;
+		this.totalCents = totalCents;
+		this.version = version;
+	}
+
+	/**
+	 * Parses a package id, returning null if it is not a UUID (so no package can have it).
+	 */
+	static UUID parseId(String id) {
+		if (id == null || id.length() != 36) {
+			return null;
+		}
+		try {
+			return UUID.fromString(id);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	UUID id() {
+		return id;
+	}
+
+	String name() {
+		return name;
+	}
+
+	String description() {
+		return description;
+	}
+
+	int[] productCodes() {
+		return productCodes;
+	}
+
+	long totalCents() {
+		return totalCents;
+	}
+
+	long version() {
+		return version;
+	}
+
+	/**
+	 * Number of times a product appears in the package.
+	 */
+	int quantity(int productCode) {
+		int quantity = 0;
+		for (int code : productCodes) {
+			if (code == productCode) {
+				quantity++;
+			}
+		}
+		return quantity;
+	}
+
+	/**
+	 * Copy of the package with a different total price, written at a new version.
+	 */
+	CompactPackage withTotalCents(long totalCents, long version) {
+		return new CompactPackage(id, name, description, productCodes, totalCents, version);
+	}
+
+	/**
+	 * Copy of the package written at a new version.
+	 */
+	CompactPackage withVersion(long version) {
+		return new CompactPackage(id, name, description, productCodes, totalCents, version);
+	}
+
+	/**
+	 * Builds the ProductPackage returned by the repository.
+	 */
+	ProductPackage toProductPackage(ProductIdDictionary dictionary) {
+		String[] productIds = new String[productCodes.length];
+		for (int i = 0; i < productCodes.length; i++) {
+			productIds[i] = dictionary.decode(productCodes[i]);
+		}
+		ProductPackage productPackage = new ProductPackage(id.toString(), name, description, List.of(productIds),
+				new Money(totalCents, Money.USD));
+		productPackage.setVersion(version);
+		return productPackage;
+	}
+}
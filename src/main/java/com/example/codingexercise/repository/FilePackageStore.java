@@ -0,0 +1,527 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.Money;
+import com.example.codingexercise.model.ProductPackage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Package store that keeps packages in local files.
+ * Every write is appended to a write-ahead log. A single writer thread appends all the writes
+ * queued since its last fsync and then fsyncs once (group commit), so many concurrent writes
+ * share one fsync. The log is split into numbered segments; a snapshot of the whole repository
+ * is written periodically after which the segments it covers are deleted.
+ * On startup the latest snapshot is read through a memory mapping and the newer log segments
+ * are replayed on top of it.
+ * If appending a batch fails, its writes fail and the segment is cut back to where it ended at the last
+ * fsync, so later writes are not appended after a partial record (replay stops at the first bad record).
+ * If the segment cannot be cut back, every later write fails too.
+ *
+ * Files, in package.persistence.directory:
+ *   wal-N.log       log segment N, a sequence of records.
+ *   snapshot-N.bin  snapshot covering every segment before N, a header followed by records.
+ * A record is [int payload length][int payload CRC32][payload], the payload starts with a type byte.
+ * Package records hold the total price as a long number of USD hundredths; the older records holding it as a
+ * double are still replayed.
+ * @author tomd
+ *
+ */
+public class FilePackageStore implements PackageStore, AutoCloseable {
+
+	private static final int SNAPSHOT_MAGIC = 0x504b4753;
+	private static final int SNAPSHOT_HEADER_SIZE = 12;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+	private static final int MAX_BATCH_SIZE = 4096;
+
+	private static final byte PUT_DOUBLE = 1;
+	private static final byte DELETE = 2;
+	private static final byte PRICE = 3;
+	private static final byte PUT = 4;
+
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+
+	/**
+	 * Queued write telling the writer thread to stop.
+	 */
+	private static final Write STOP = new Write(null, -1, new CompletableFuture<>());
+
+	private final Path directory;
+
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+
+	/**
+	 * Number of the log segment new writes are appended to.
+	 */
+	private final AtomicLong currentSegment = new AtomicLong();
+
+	private final Thread writer;
+
+	/**
+	 * Contents recovered on startup, released once loaded by the repository.
+	 */
+	private StoredPackages recovered;
+
+	/**
+	 * Log segment being written, only used by the writer thread.
+	 */
+	private FileChannel log;
+
+	/**
+	 * Size of the log segment being written at its last fsync, only used by the writer thread.
+	 */
+	private long durableSize;
+
+	/**
+	 * Why the log could not be cut back after a failed write, after which no more writes are made.
+	 * Only used by the writer thread.
+	 */
+	private IOException failure;
+
+	/**
+	 * Opens the store, recovering the contents left by the last run.
+	 *
+	 * @param directory directory holding the log segments and snapshots, created if missing.
+	 *
+	 * @throws IOException if the directory cannot be used or a snapshot cannot be read.
+	 */
+	public FilePackageStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		long lastSegment = recover();
+		currentSegment.set(lastSegment + 1);
+		log = openSegment(currentSegment.get());
+		durableSize = log.size();
+		writer = new Thread(this::writeLoop, "package-store-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public synchronized StoredPackages load() {
+		StoredPackages loaded = recovered;
+		recovered = new StoredPackages(List.of(), Map.of());
+		return loaded;
+	}
+
+	@Override
+	public CompletableFuture<Void> save(ProductPackage productPackage) {
+		return append(encodePackage(productPackage));
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String id) {
+		return append(encode(out -> {
+			out.writeByte(DELETE);
+			writeString(out, id);
+		}));
+	}
+
+	@Override
+	public CompletableFuture<Void> savePrice(String productId, int usdPrice) {
+		return append(encodePrice(productId, usdPrice));
+	}
+
+	@Override
+	public boolean isDurable() {
+		return true;
+	}
+
+	@Override
+	public long startSnapshot() {
+		long nextSegment = currentSegment.incrementAndGet();
+		writes.add(new Write(null, nextSegment, new CompletableFuture<>()));
+		return nextSegment;
+	}
+
+	@Override
+	public void writeSnapshot(long checkpoint, Collection<ProductPackage> productPackages, Map<String, Integer> productPrices) {
+		Path snapshot = directory.resolve(SNAPSHOT_PREFIX + checkpoint + SNAPSHOT_SUFFIX);
+		Path temporary = directory.resolve(SNAPSHOT_PREFIX + checkpoint + SNAPSHOT_SUFFIX + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeLong(checkpoint);
+				for (Map.Entry<String, Integer> price : productPrices.entrySet()) {
+					writeRecord(out, encodePrice(price.getKey(), price.getValue()));
+				}
+				for (ProductPackage productPackage : productPackages) {
+					writeRecord(out, encodePackage(productPackage));
+				}
+				out.flush();
+				channel.force(true);
+			}
+			Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+			// Everything before the checkpoint is now in the snapshot.
+			for (Map.Entry<Long, Path> file : listFiles(LOG_PREFIX, LOG_SUFFIX).headMap(checkpoint).entrySet()) {
+				Files.deleteIfExists(file.getValue());
+			}
+			for (Map.Entry<Long, Path> file : listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(checkpoint).entrySet()) {
+				Files.deleteIfExists(file.getValue());
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Could not write snapshot " + snapshot, ex);
+		}
+	}
+
+	/**
+	 * Stops the writer thread once every queued write has been made durable.
+	 */
+	@Override
+	public void close() throws IOException {
+		writes.add(STOP);
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
+	}
+
+	private CompletableFuture<Void> append(ByteBuffer payload) {
+		CompletableFuture<Void> durable = new CompletableFuture<>();
+		writes.add(new Write(frame(payload), 0, durable));
+		return durable;
+	}
+
+	/**
+	 * Body of the writer thread. Takes every queued write, appends them to the log and fsyncs once
+	 * before completing their futures. If a write fails, the writes of the batch that are not yet durable
+	 * fail and the log is cut back to its last fsync.
+	 */
+	private void writeLoop() {
+		List<Write> batch = new ArrayList<>();
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(writes.take());
+			} catch (InterruptedException ex) {
+				continue;
+			}
+			writes.drainTo(batch, MAX_BATCH_SIZE - 1);
+			running = !batch.contains(STOP);
+			IOException writeFailure = failure;
+			int durable = 0;
+			if (writeFailure == null) {
+				try {
+					for (int i = 0; i < batch.size(); i++) {
+						Write write = batch.get(i);
+						if (write.record() != null) {
+							while (write.record().hasRemaining()) {
+								log.write(write.record());
+							}
+						} else if (write != STOP) {
+							durable = sync(batch, durable, i);
+							log.close();
+							log = openSegment(write.nextSegment());
+							durableSize = log.size();
+						}
+					}
+					durable = sync(batch, durable, batch.size());
+				} catch (IOException ex) {
+					writeFailure = ex;
+					discardUnsynced();
+				}
+			}
+			for (int i = durable; i < batch.size(); i++) {
+				batch.get(i).durable().completeExceptionally(new UncheckedIOException("Could not write package log", writeFailure));
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Fsyncs the log and completes the writes of the batch from start to end.
+	 * 
+	 * @return end, the number of writes of the batch now durable.
+	 */
+	private int sync(List<Write> batch, int start, int end) throws IOException {
+		log.force(false);
+		durableSize = log.size();
+		for (int i = start; i < end; i++) {
+			batch.get(i).durable().complete(null);
+		}
+		return end;
+	}
+
+	/**
+	 * Cuts the log back to its size at the last fsync, dropping the records (possibly partly written) of
+	 * writes that failed. Stops taking writes if that fails as well.
+	 */
+	private void discardUnsynced() {
+		try {
+			log.truncate(durableSize);
+			log.force(false);
+		} catch (IOException ex) {
+			failure = ex;
+		}
+	}
+
+	/**
+	 * Opens a log segment for appending.
+	 */
+	FileChannel openSegment(long segment) throws IOException {
+		return FileChannel.open(directory.resolve(LOG_PREFIX + segment + LOG_SUFFIX), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Rebuilds the contents from the latest snapshot and the log segments written after it.
+	 *
+	 * @return the number of the last segment found, so new writes go to a fresh segment.
+	 */
+	private long recover() throws IOException {
+		Map<String, ProductPackage> productPackages = new LinkedHashMap<>();
+		Map<String, Integer> productPrices = new HashMap<>();
+		TreeMap<Long, Path> snapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		TreeMap<Long, Path> segments = listFiles(LOG_PREFIX, LOG_SUFFIX);
+		long checkpoint = 0;
+		if (!snapshots.isEmpty()) {
+			checkpoint = snapshots.lastKey();
+			readSnapshot(snapshots.lastEntry().getValue(), checkpoint, productPackages, productPrices);
+		}
+		for (Path segment : segments.tailMap(checkpoint).values()) {
+			readSegment(segment, productPackages, productPrices);
+		}
+		recovered = new StoredPackages(new ArrayList<>(productPackages.values()), productPrices);
+		return Math.max(checkpoint, segments.isEmpty() ? 0 : segments.lastKey());
+	}
+
+	/**
+	 * Reads a snapshot through a memory mapping, in windows of at most MAP_WINDOW_SIZE.
+	 */
+	private static void readSnapshot(Path snapshot, long checkpoint, Map<String, ProductPackage> productPackages,
+			Map<String, Integer> productPrices) throws IOException {
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < SNAPSHOT_HEADER_SIZE) {
+				throw new IOException("Invalid snapshot header in " + snapshot);
+			}
+			MappedByteBuffer window = map(channel, 0, SNAPSHOT_HEADER_SIZE);
+			if (window.getInt() != SNAPSHOT_MAGIC || window.getLong() != checkpoint) {
+				throw new IOException("Invalid snapshot header in " + snapshot);
+			}
+			long windowStart = 0;
+			while (windowStart + window.position() < size) {
+				long position = windowStart + window.position();
+				if (window.remaining() < RECORD_HEADER_SIZE) {
+					windowStart = position;
+					window = map(channel, position, RECORD_HEADER_SIZE);
+				}
+				int length = window.getInt(window.position());
+				if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+					throw new IOException("Truncated snapshot " + snapshot);
+				}
+				if (window.remaining() < RECORD_HEADER_SIZE + length) {
+					windowStart = position;
+					window = map(channel, position, RECORD_HEADER_SIZE + length);
+				}
+				int crc = window.getInt(window.position() + 4);
+				ByteBuffer payload = window.slice(window.position() + RECORD_HEADER_SIZE, length);
+				window.position(window.position() + RECORD_HEADER_SIZE + length);
+				if (crc(payload.duplicate()) != crc) {
+					throw new IOException("Corrupt record in snapshot " + snapshot);
+				}
+				apply(payload, productPackages, productPrices);
+			}
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position, long minimumSize) throws IOException {
+		long size = Math.min(channel.size() - position, Math.max(MAP_WINDOW_SIZE, minimumSize));
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	/**
+	 * Replays a log segment. Reading stops at the first incomplete or corrupt record, which can
+	 * only be a write that was never acknowledged because the process stopped before its fsync.
+	 */
+	private static void readSegment(Path segment, Map<String, ProductPackage> productPackages,
+			Map<String, Integer> productPrices) throws IOException {
+		try (InputStream input = Files.newInputStream(segment)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+			while (true) {
+				byte[] payload;
+				int crc;
+				try {
+					int length = in.readInt();
+					crc = in.readInt();
+					if (length < 0) {
+						return;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException ex) {
+					return;
+				}
+				if (crc(ByteBuffer.wrap(payload)) != crc) {
+					return;
+				}
+				apply(ByteBuffer.wrap(payload), productPackages, productPrices);
+			}
+		}
+	}
+
+	private static void apply(ByteBuffer payload, Map<String, ProductPackage> productPackages,
+			Map<String, Integer> productPrices) throws IOException {
+		byte type = payload.get();
+		switch (type) {
+		case PUT, PUT_DOUBLE -> {
+			String id = readString(payload);
+			String name = readString(payload);
+			String description = readString(payload);
+			int productCount = payload.getInt();
+			List<String> productIds = new ArrayList<>(productCount);
+			for (int i = 0; i < productCount; i++) {
+				productIds.add(readString(payload));
+			}
+			Money total = type == PUT ? new Money(payload.getLong(), Money.USD) : Money.of(payload.getDouble(), Money.USD);
+			productPackages.put(id, new ProductPackage(id, name, description, List.copyOf(productIds), total));
+		}
+		case DELETE -> productPackages.remove(readString(payload));
+		case PRICE -> {
+			String productId = readString(payload);
+			productPrices.put(productId, payload.getInt());
+		}
+		default -> throw new IOException("Unknown package record type " + type);
+		}
+	}
+
+	private TreeMap<Long, Path> listFiles(String prefix, String suffix) throws IOException {
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (Stream<Path> paths = Files.list(directory)) {
+			paths.forEach(path -> {
+				String name = path.getFileName().toString();
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), path);
+					} catch (NumberFormatException ex) {
+						// Not one of ours.
+					}
+				}
+			});
+		}
+		return files;
+	}
+
+	private static ByteBuffer encodePackage(ProductPackage productPackage) {
+		return encode(out -> {
+			out.writeByte(PUT);
+			writeString(out, productPackage.getId());
+			writeString(out, productPackage.getName());
+			writeString(out, productPackage.getDescription());
+			out.writeInt(productPackage.getProductIds().size());
+			for (String productId : productPackage.getProductIds()) {
+				writeString(out, productId);
+			}
+			out.writeLong(productPackage.getTotal().hundredths());
+		});
+	}
+
+	private static ByteBuffer encodePrice(String productId, int usdPrice) {
+		return encode(out -> {
+			out.writeByte(PRICE);
+			writeString(out, productId);
+			out.writeInt(usdPrice);
+		});
+	}
+
+	private static ByteBuffer encode(RecordWriter recordWriter) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try {
+			recordWriter.write(new DataOutputStream(bytes));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds the record header (length and CRC) to a payload.
+	 */
+	private static ByteBuffer frame(ByteBuffer payload) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.remaining());
+		record.putInt(payload.remaining());
+		record.putInt(crc(payload.duplicate()));
+		record.put(payload);
+		return record.flip();
+	}
+
+	private static void writeRecord(OutputStream out, ByteBuffer payload) throws IOException {
+		ByteBuffer record = frame(payload);
+		out.write(record.array(), 0, record.limit());
+	}
+
+	private static int crc(ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@FunctionalInterface
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * A queued write. Either a framed record to append or, if record is null, a switch to the next segment.
+	 */
+	private record Write(ByteBuffer record, long nextSegment, CompletableFuture<Void> durable) {
+	}
+}
@@ -0,0 +1,53 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.ProductPackage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Package store that keeps nothing, packages only live in the PackageRepository.
+ * Used when persistence is disabled (package.persistence.enabled=false).
+ * @author tomd
+ *
+ */
+public class InMemoryPackageStore implements PackageStore {
+
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	@Override
+	public StoredPackages load() {
+		return new StoredPackages(List.of(), Map.of());
+	}
+
+	@Override
+	public CompletableFuture<Void> save(ProductPackage productPackage) {
+		return DONE;
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String id) {
+		return DONE;
+	}
+
+	@Override
+	public CompletableFuture<Void> savePrice(String productId, int usdPrice) {
+		return DONE;
+	}
+
+	@Override
+	public boolean isDurable() {
+		return false;
+	}
+
+	@Override
+	public long startSnapshot() {
+		return 0;
+	}
+
+	@Override
+	public void writeSnapshot(long checkpoint, Collection<ProductPackage> productPackages, Map<String, Integer> productPrices) {
+	}
+}
@@ -0,0 +1,118 @@
+package com.example.codingexercise.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.example.codingexercise.dto.PackageChange;
+
+/**
+ * Ordered log of the most recent changes to the packages, used by PackageRepository.getChanges().
+ * Changes are held in a ring of retention entries, so the log never grows however far behind its readers are;
+ * a reader asking for changes that have already been overwritten is told to start again from a full read.
+ * Entries keep the CompactPackage as written, which is usually the same object the repository holds, so the log
+ * costs little more than the ring itself.
+ * Sequence numbers start from the time the log was created (milliseconds shifted left 20 bits), so they keep
+ * increasing across restarts and a sequence from an earlier run is never mistaken for one of this run.
+ * Only appended to while the repository's write lock is held.
+ * @author tomd
+ *
+ */
+final class PackageChangeLog {
+
+	record Entry(long sequence, PackageChange.Type type, UUID id, CompactPackage compactPackage) {
+	}
+
+	private final Entry[] entries;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition appended = lock.newCondition();
+
+	/**
+	 * Sequence number of the last change, or of the start of the log if there are none.
+	 */
+	private volatile long lastSequence;
+
+	PackageChangeLog(int retention) {
+		if (retention < 1) {
+			throw new IllegalArgumentException("retention must be at least 1");
+		}
+		this.entries = new Entry[retention];
+		this.lastSequence = System.currentTimeMillis() << 20;
+	}
+
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Appends a change and wakes the readers waiting for one.
+	 */
+	void append(PackageChange.Type type, UUID id, CompactPackage compactPackage) {
+		lock.lock();
+		try {
+			long sequence = lastSequence + 1;
+			entries[(int) (sequence % entries.length)] = new Entry(sequence, type, id, compactPackage);
+			lastSequence = sequence;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the changes after a sequence number, oldest first.
+	 *
+	 * @param limit most changes to return.
+	 *
+	 * @return the changes, empty if there are none yet, or null if some of the changes after the sequence
+	 *         are no longer held (or the sequence is not one of this log's).
+	 */
+	List<Entry> read(long after, int limit) {
+		lock.lock();
+		try {
+			long last = lastSequence;
+			if (after > last || last - after > entries.length) {
+				return null;
+			}
+			int count = (int) Math.min(limit, last - after);
+			List<Entry> read = new ArrayList<>(count);
+			for (long sequence = after + 1; sequence <= after + count; sequence++) {
+				Entry entry = entries[(int) (sequence % entries.length)];
+				if (entry == null || entry.sequence() != sequence) {
+					// Only the case for sequences before the log started.
+					return null;
+				}
+				read.add(entry);
+			}
+			return read;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until there is a change after a sequence number.
+	 *
+	 * @return true if there is one, false if the timeout passed first.
+	 */
+	boolean await(long after, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (lastSequence <= after) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = appended.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
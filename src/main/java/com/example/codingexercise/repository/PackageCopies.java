@@ -0,0 +1,106 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.model.ProductPackage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Copies packages between the PackageRepositories of the nodes of a cluster: applies the writes copied from
+ * other nodes, and exports every package as copies when the members change. A copied package keeps the
+ * version it had on the node it came from, so an If-Match ETag still matches after the package moves to
+ * another node. Copies are recorded with the package store's copy methods, so they are not copied on.
+ * @author tomd
+ *
+ */
+final class PackageCopies {
+
+	private final PackageRepository repository;
+
+	private final ReentrantLock writeLock;
+
+	private final PackageStoreWrites storeWrites;
+
+	private final PackageStore packageStore;
+
+	private final Map<UUID, CompactPackage> productPackages;
+
+	private final Map<String, Integer> productPrices;
+
+	private final ProductIdDictionary productIdDictionary;
+
+	PackageCopies(PackageRepository repository, ReentrantLock writeLock, PackageStoreWrites storeWrites,
+			PackageStore packageStore, Map<UUID, CompactPackage> productPackages, Map<String, Integer> productPrices,
+			ProductIdDictionary productIdDictionary) {
+		this.repository = repository;
+		this.writeLock = writeLock;
+		this.storeWrites = storeWrites;
+		this.packageStore = packageStore;
+		this.productPackages = productPackages;
+		this.productPrices = productPrices;
+		this.productIdDictionary = productIdDictionary;
+	}
+
+	/**
+	 * Applies copied writes in order. A saved package replaces the package with the same id, a product price
+	 * reprices the packages containing the product, as PackageRepository.reprice() does.
+	 */
+	void apply(List<ReplicatedWrite> writes) {
+		CompletableFuture<Void> stored;
+		writeLock.lock();
+		try {
+			for (ReplicatedWrite write : writes) {
+				switch (write.type()) {
+				case SAVE -> copyPackage(write.productPackage(), write.version());
+				case DELETE -> {
+					UUID id = CompactPackage.parseId(write.id());
+					if (id != null && repository.unlink(id) != null) {
+						storeWrites.add(packageStore.deleteCopy(write.id()));
+					}
+				}
+				case PRICE -> repository.applyPrice(write.productId(), write.usdPrice(), true);
+				}
+			}
+			stored = storeWrites.last();
+		} finally {
+			writeLock.unlock();
+		}
+		storeWrites.await(stored);
+	}
+
+	/**
+	 * Passes the product prices, then every package, as copies to an action while holding the write lock, so no
+	 * write is made in the meantime.
+	 */
+	void export(Consumer<ReplicatedWrite> action) {
+		writeLock.lock();
+		try {
+			productPrices.forEach((productId, usdPrice) -> action.accept(ReplicatedWrite.price(productId, usdPrice)));
+			for (CompactPackage compactPackage : productPackages.values()) {
+				action.accept(ReplicatedWrite.save(compactPackage.toProductPackage(productIdDictionary)));
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds or replaces a package copied from another node and indexes it. Must hold the write lock.
+	 */
+	private void copyPackage(ProductPackage productPackage, long version) {
+		UUID id = CompactPackage.parseId(productPackage.getId());
+		if (id == null) {
+			return;
+		}
+		CompactPackage compactPackage = repository.compact(id, productPackage.getName(), productPackage.getDescription(),
+				productPackage.getProductIds(), productPackage.getTotal().hundredths()).withVersion(version);
+		repository.link(compactPackage);
+		repository.advanceVersion(version);
+		storeWrites.add(packageStore.saveCopy(compactPackage.toProductPackage(productIdDictionary)));
+	}
+}
@@ -1,37 +1,261 @@
 package com.example.codingexercise.repository;
 
-import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.dto.PackageChange;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.gateway.ProductCache;
 import com.example.codingexercise.gateway.dto.Product;
 import com.example.codingexercise.model.ProductPackage;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResourceAccessException;
 
+import java.time.Duration;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * Repository used to store product packages.
  * To keep the data consistent, packages are rejected if they
  * use product Ids that are not stored recognized by the Product Service,
  * i.e. product-service.herokuapp.com/api/v1/products/
+ * Products are looked up through the ProductCache.
+ * Packages are held in a compact form (see CompactPackage and ProductIdDictionary), indexed by id, product id
+ * and the words of their name and description (PackageSearchIndex), and every change is logged
+ * (PackageChangeLog) and counted in the statistics (PackageStatisticsAccumulator). Writes are applied one at a
+ * time under a write lock and sent to the PackageStore (see PackageStoreWrites); reads do not lock.
  * @author tomd
  *
  */
 @Component
 public class PackageRepository {
 	/**
-	 * repository for product packages.
+	 * Expected version passed to update() and patch() to apply the change whatever the current version is.
+	 */
+	public static final long ANY_VERSION = -1;
+
+	/**
+	 * Product code passed to matches() to match packages whatever products they contain.
+	 */
+	private static final int ANY_PRODUCT = -1;
+
+	/**
+	 * repository for product packages, keyed by package id.
+	 */
+    private final Map<UUID, CompactPackage> productPackages = new ConcurrentHashMap<>();
+
+	/**
+	 * Package ids in sorted order, used to page through the repository with a cursor.
+	 */
+    private final ConcurrentSkipListSet<UUID> orderedIds = new ConcurrentSkipListSet<>(CompactPackage.ID_ORDER);
+
+	/**
+	 * Reverse index from product id to the ids (in sorted order) of the packages containing the product.
+	 */
+    private final Map<String, ConcurrentSkipListSet<UUID>> packageIdsByProductId = new ConcurrentHashMap<>();
+
+	/**
+	 * Codes for the product ids held by packages. Only added to while the write lock is held.
+	 */
+    private final ProductIdDictionary productIdDictionary = new ProductIdDictionary();
+
+	/**
+	 * Index of the words in package names and descriptions. Only changed while the write lock is held.
+	 */
+    private final PackageSearchIndex searchIndex;
+
+	/**
+	 * The most recent changes to the packages. Only appended to while the write lock is held.
+	 */
+    private final PackageChangeLog changeLog;
+
+	/**
+	 * Statistics of the packages accepted by statisticsFilter. Only changed while the write lock is held.
+	 */
+    private final PackageStatisticsAccumulator statistics = new PackageStatisticsAccumulator();
+
+	/**
+	 * Chooses the packages counted in the statistics, by id.
 	 */
-    private final List<ProductPackage> productPackages = new ArrayList<>();
+    private volatile Predicate<UUID> statisticsFilter = id -> true;
+
+	/**
+	 * Last known USD price of every product in the reverse index. Used to find out which
+	 * prices have changed and by how much.
+	 */
+    private final Map<String, Integer> productPrices = new ConcurrentHashMap<>();
+
+	/**
+	 * Held while a write changes the packages and their indexes, so writes are applied one at a time.
+	 * Reads do not take the lock. Product ids are validated before the lock is taken.
+	 */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Incremented after every successful write, used to detect a stale snapshot. Packages are
+	 * stamped with the value it takes after the write that changed them.
+	 */
+    private final AtomicLong modificationCount = new AtomicLong();
+
+	/**
+	 * Last list handed out by getAll(), reused until the next write.
+	 */
+    private volatile Snapshot snapshot = new Snapshot(0, List.of());
     
-    private final ProductServiceGateway productServiceGateway;
+    private final ProductCache productCache;
+
+    private final ExecutorService productLookupExecutor;
+
+    private final Duration lookupTimeout;
+
+    private final PackageStore packageStore;
+
+	/**
+	 * Makes the ids of new packages.
+	 */
+    private volatile Supplier<UUID> idGenerator = UUID::randomUUID;
+
+    private final Timer createTimer;
+    private final Timer updateTimer;
+    private final Timer patchTimer;
+    private final Timer deleteTimer;
+    private final Timer repriceTimer;
+    private final Timer getAllTimer;
+    private final Timer getPageTimer;
+    private final Timer getByProductIdTimer;
+    private final Timer batchTimer;
+    private final Timer searchTimer;
+    private final Timer copyTimer;
+
+	/**
+	 * Time taken to look up the products that were not cached.
+	 */
+    private final Timer productLookupTimer;
+
+	/**
+	 * Number of unique product ids validated per create, update or batch.
+	 */
+    private final DistributionSummary validatedProducts;
+
+	/**
+	 * Writes sent to the package store, used to undo the changes of those that fail.
+	 */
+    private final PackageStoreWrites storeWrites;
+
+	/**
+	 * Applies and exports the copies of packages held by other nodes of a cluster.
+	 */
+    private final PackageCopies copies;
     
     @Autowired
-    public PackageRepository(ProductServiceGateway productServiceGateway){
-    	this.productServiceGateway = productServiceGateway;
+    public PackageRepository(ProductCache productCache, PackageStore packageStore,
+    		@Qualifier("productLookupExecutor") ExecutorService productLookupExecutor,
+    		@Value("${product.gateway.lookup-timeout}") Duration lookupTimeout, MeterRegistry meterRegistry,
+    		@Value("${search.ngram-enabled}") boolean searchNgramEnabled,
+    		@Value("${package.changes.retention}") int changeRetention){
+    	this.productCache = productCache;
+    	this.searchIndex = new PackageSearchIndex(searchNgramEnabled);
+    	this.changeLog = new PackageChangeLog(changeRetention);
+    	this.packageStore = packageStore;
+    	this.storeWrites = new PackageStoreWrites(writeLock, new StoredState());
+    	this.copies = new PackageCopies(this, writeLock, storeWrites, packageStore, productPackages, productPrices,
+    			productIdDictionary);
+    	this.productLookupExecutor = productLookupExecutor;
+    	this.lookupTimeout = lookupTimeout;
+    	this.createTimer = operationTimer(meterRegistry, "create");
+    	this.updateTimer = operationTimer(meterRegistry, "update");
+    	this.patchTimer = operationTimer(meterRegistry, "patch");
+    	this.deleteTimer = operationTimer(meterRegistry, "delete");
+    	this.repriceTimer = operationTimer(meterRegistry, "reprice");
+    	this.getAllTimer = operationTimer(meterRegistry, "getAll");
+    	this.getPageTimer = operationTimer(meterRegistry, "getPage");
+    	this.getByProductIdTimer = operationTimer(meterRegistry, "getByProductId");
+    	this.batchTimer = operationTimer(meterRegistry, "batch");
+    	this.searchTimer = operationTimer(meterRegistry, "search");
+    	this.copyTimer = operationTimer(meterRegistry, "copy");
+    	this.productLookupTimer = Timer.builder("package.repository.product.lookups")
+    			.description("Time taken to look up products that were not cached")
+    			.publishPercentileHistogram()
+    			.register(meterRegistry);
+    	this.validatedProducts = DistributionSummary.builder("package.repository.validated.products")
+    			.description("Unique product ids validated per create, update or batch")
+    			.publishPercentileHistogram()
+    			.register(meterRegistry);
+    	Gauge.builder("package.repository.size", productPackages, Map::size)
+    			.description("Number of packages")
+    			.register(meterRegistry);
+    	Gauge.builder("package.repository.products", packageIdsByProductId, Map::size)
+    			.description("Number of products used by at least one package")
+    			.register(meterRegistry);
+    	load();
     }
+
+	private static Timer operationTimer(MeterRegistry meterRegistry, String operation) {
+		return Timer.builder("package.repository.operations")
+				.description("Time taken by package repository operations")
+				.tag("operation", operation)
+				.publishPercentileHistogram()
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Loads the packages kept by the package store and rebuilds the indexes.
+	 */
+	private void load() {
+		PackageStore.StoredPackages stored = packageStore.load();
+		for (ProductPackage productPackage : stored.productPackages()) {
+			CompactPackage compactPackage = compact(UUID.fromString(productPackage.getId()), productPackage.getName(),
+					productPackage.getDescription(), productPackage.getProductIds(),
+					productPackage.getTotal().hundredths()).withVersion(nextVersion());
+			productPackages.put(compactPackage.id(), compactPackage);
+			orderedIds.add(compactPackage.id());
+			indexProductIds(compactPackage);
+			searchIndex.add(compactPackage);
+			countPackage(compactPackage);
+		}
+		stored.productPrices().forEach((productId, usdPrice) -> {
+			if (packageIdsByProductId.containsKey(productId)) {
+				productPrices.put(productId, usdPrice);
+			}
+		});
+		modificationCount.incrementAndGet();
+	}
     
 	/**
 	 * Creates a new productPackage item and adds it to the PackageRepository.
@@ -45,20 +269,149 @@ public class PackageRepository {
 	 *         be created.
 	 */
 	public ProductPackage create(String name, String description, List<String> productIds) {
+		return createTimer.record(() -> createPackage(name, description, productIds));
+	}
+
+	private ProductPackage createPackage(String name, String description, List<String> productIds) {
 		ProductPackage newProductPackage = null;
-		if (name != null && name.length() > 0 && productIds != null) {
+		if (isValid(name, productIds)) {
 			List<Product> products = getProducts(productIds);
 			if (products != null) {
-				newProductPackage = new ProductPackage(UUID.randomUUID().toString(), name, description, productIds,
-						getUsdPriceForProductIds(products));
-				productPackages.add(newProductPackage);
+				CompletableFuture<Void> stored;
+				writeLock.lock();
+				try {
+					newProductPackage = insertPackage(compact(idGenerator.get(), name, description, productIds,
+							getUsdCentsForProducts(products)));
+					stored = storeWrites.last();
+				} finally {
+					writeLock.unlock();
+				}
+				storeWrites.await(stored);
 			}
 		}
 		return newProductPackage;
 	}
 
+	/**
+	 * Sets how the ids of new packages are made. In cluster mode they are chosen so this node is their primary.
+	 */
+	public void setIdGenerator(Supplier<UUID> idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	private static boolean isValid(String name, List<String> productIds) {
+		return name != null && name.length() > 0 && productIds != null;
+	}
+
+	/**
+	 * Applies a batch of creates, updates and deletes in order.
+	 * The product ids of every create and update are de-duplicated across the whole batch and
+	 * validated together, so each unique product is looked up at most once. The batch is then
+	 * applied in a single pass under the write lock and waits once for the package store.
+	 * Unlike create() and update(), an unknown product id only fails the operations that use it.
+	 * 
+	 * @param operations non-null list of operations.
+	 * 
+	 * @return list with, for each operation, the created, updated or deleted ProductPackage, or null
+	 *         if that operation failed (for the same reasons create(), update() and delete() fail).
+	 * 
+	 * @throws ResourceAccessException if the products could not be looked up within the lookup timeout,
+	 *         in which case none of the batch is applied.
+	 */
+	public List<ProductPackage> applyBatch(List<PackageOperation> operations) {
+		return batchTimer.record(() -> applyOperations(operations));
+	}
+
+	private List<ProductPackage> applyOperations(List<PackageOperation> operations) {
+		Set<String> productIds = new HashSet<>();
+		for (PackageOperation operation : operations) {
+			if (operation != null && operation.op() != PackageOperation.Type.DELETE && operation.productIds() != null) {
+				for (String productId : operation.productIds()) {
+					if (productId != null) {
+						productIds.add(productId);
+					}
+				}
+			}
+		}
+		Map<String, Product> found = findProducts(productIds);
+		List<ProductPackage> results = new ArrayList<>(operations.size());
+		CompletableFuture<Void> stored;
+		writeLock.lock();
+		try {
+			for (PackageOperation operation : operations) {
+				results.add(operation == null || operation.op() == null ? null : applyOperation(operation, found));
+			}
+			stored = storeWrites.last();
+		} finally {
+			writeLock.unlock();
+		}
+		storeWrites.await(stored);
+		return results;
+	}
+
+	/**
+	 * Applies one operation of a batch using the products found for the batch. Must hold the write lock.
+	 * 
+	 * @return the created, updated or deleted package, or null if the operation failed.
+	 */
+	private ProductPackage applyOperation(PackageOperation operation, Map<String, Product> found) {
+		if (operation.op() == PackageOperation.Type.DELETE) {
+			UUID id = CompactPackage.parseId(operation.id());
+			return id == null ? null : removePackage(id);
+		}
+		if (!isValid(operation.name(), operation.productIds())) {
+			return null;
+		}
+		List<Product> products = new ArrayList<>(operation.productIds().size());
+		for (String productId : operation.productIds()) {
+			Product product = productId == null ? null : found.get(productId);
+			if (product == null) {
+				return null;
+			}
+			products.add(product);
+		}
+		if (operation.op() == PackageOperation.Type.CREATE) {
+			return insertPackage(compact(idGenerator.get(), operation.name(), operation.description(),
+					operation.productIds(), getUsdCentsForProducts(products)));
+		}
+		UUID id = CompactPackage.parseId(operation.id());
+		if (id == null) {
+			return null;
+		}
+		return replacePackage(compact(id, operation.name(), operation.description() == null ? "" : operation.description(),
+				operation.productIds(), getUsdCentsForProducts(products)));
+	}
+
+	/**
+	 * Gets the known products out of a set of product ids, looking up those that are not cached.
+	 * 
+	 * @param productIds set of unique product ids.
+	 * 
+	 * @return mutable map of product id to product. Unknown product ids are left out.
+	 */
+	private Map<String, Product> findProducts(Set<String> productIds) {
+		validatedProducts.record(productIds.size());
+		Map<String, Product> found = productCache.getCachedProducts(productIds);
+		if (found.size() < productIds.size()) {
+			Set<String> missing = new HashSet<>(productIds);
+			missing.removeAll(found.keySet());
+			found.putAll(productLookupTimer.record(() -> fetchProducts(missing, false)));
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the version of the repository as a whole, which changes after every write.
+	 * Read it before reading packages: the packages read afterwards are at least as new as the version.
+	 */
+	public long getVersion() {
+		return modificationCount.get();
+	}
+
 	/**
 	 * Gets a list of products using their product ids.
+	 * Duplicate ids are only looked up once and ids that are not cached are looked up in parallel,
+	 * so the time taken is bounded by the slowest single lookup.
 	 * 
 	 * @param productIds list of product ids.
 	 * 
@@ -67,35 +420,151 @@ public class PackageRepository {
 	 *         null.
 	 */
 	private List<Product> getProducts(List<String> productIds) {
-		List<Product> products = new ArrayList<>();
+		Set<String> uniqueIds = new LinkedHashSet<>(productIds);
+		validatedProducts.record(uniqueIds.size());
+		Map<String, Product> found = productCache.getCachedProducts(uniqueIds);
+		if (found.size() < uniqueIds.size()) {
+			uniqueIds.removeAll(found.keySet());
+			Map<String, Product> fetched = productLookupTimer.record(() -> fetchProducts(uniqueIds, true));
+			if (fetched == null) {
+				return null;
+			}
+			found.putAll(fetched);
+		}
+		List<Product> products = new ArrayList<>(productIds.size());
 		for (String productId : productIds) {
-			Product product = productServiceGateway.getProduct(productId);
-			if (product != null) {
-				products.add(product);
-			} else {
-				products = null;
-				break;
+			products.add(found.get(productId));
+		}
+		return products;
+	}
+
+	/**
+	 * Fetches products that are not cached. Uses a single multi-id request if the product
+	 * service supports it, the non-blocking client if it is enabled, otherwise looks up each id
+	 * in parallel on the product lookup executor.
+	 * If all ids are required, the remaining lookups are cancelled as soon as one id is found to be invalid.
+	 * 
+	 * @param productIds non-empty set of unique product ids.
+	 * @param allRequired whether an invalid id fails the whole lookup.
+	 * 
+	 * @return map of product id to product. If all ids are required, null unless all product ids were found,
+	 *         otherwise the ids that were not found are left out.
+	 * 
+	 * @throws ResourceAccessException if the products could not be looked up within the lookup timeout.
+	 */
+	private Map<String, Product> fetchProducts(Set<String> productIds, boolean allRequired) {
+		if (productCache.isMultiGetEnabled()) {
+			Map<String, Product> products = productCache.getProducts(productIds);
+			return !allRequired || products.size() == productIds.size() ? products : null;
+		}
+		if (productCache.isAsyncEnabled()) {
+			return fetchProductsAsync(productIds, allRequired);
+		}
+		CompletionService<ProductLookup> lookups = new ExecutorCompletionService<>(productLookupExecutor);
+		List<Future<ProductLookup>> futures = new ArrayList<>(productIds.size());
+		for (String productId : productIds) {
+			futures.add(lookups.submit(() -> new ProductLookup(productId, productCache.getProduct(productId))));
+		}
+		long deadline = System.nanoTime() + lookupTimeout.toNanos();
+		try {
+			Map<String, Product> products = new HashMap<>();
+			for (int i = 0; i < futures.size(); i++) {
+				Future<ProductLookup> done = lookups.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (done == null) {
+					throw new ResourceAccessException("Timed out looking up product ids " + productIds);
+				}
+				ProductLookup lookup = done.get();
+				if (lookup.product() != null) {
+					products.put(lookup.productId(), lookup.product());
+				} else if (allRequired) {
+					return null;
+				}
+			}
+			return products;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ResourceAccessException("Interrupted looking up product ids " + productIds);
+		} catch (ExecutionException ex) {
+			throw lookupFailure(ex);
+		} finally {
+			for (Future<ProductLookup> future : futures) {
+				future.cancel(true);
 			}
 		}
+	}
+
+	/**
+	 * Fetches products with the non-blocking client. Every id is requested at once (the client's
+	 * connection pool bounds how many are in flight) and no thread is held while they are fetched.
+	 * If all ids are required, stops waiting as soon as one id is found to be invalid.
+	 * 
+	 * @param productIds non-empty set of unique product ids.
+	 * @param allRequired whether an invalid id fails the whole lookup.
+	 * 
+	 * @return map of product id to product. If all ids are required, null unless all product ids were found,
+	 *         otherwise the ids that were not found are left out.
+	 */
+	private Map<String, Product> fetchProductsAsync(Set<String> productIds, boolean allRequired) {
+		Map<String, CompletableFuture<Product>> lookups = new HashMap<>();
+		CompletableFuture<Void> invalid = new CompletableFuture<>();
+		for (String productId : productIds) {
+			CompletableFuture<Product> lookup = productCache.getProductAsync(productId);
+			lookup.thenAccept(product -> {
+				if (product == null && allRequired) {
+					invalid.complete(null);
+				}
+			});
+			lookups.put(productId, lookup);
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(lookups.values().toArray(CompletableFuture[]::new));
+		try {
+			CompletableFuture.anyOf(all, invalid).get(lookupTimeout.toNanos(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException ex) {
+			throw new ResourceAccessException("Timed out looking up product ids " + productIds);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ResourceAccessException("Interrupted looking up product ids " + productIds);
+		} catch (ExecutionException ex) {
+			throw lookupFailure(ex);
+		} finally {
+			lookups.values().forEach(lookup -> lookup.cancel(false));
+		}
+		if (invalid.isDone()) {
+			return null;
+		}
+		Map<String, Product> products = new HashMap<>();
+		lookups.forEach((productId, lookup) -> {
+			Product product = lookup.join();
+			if (product != null) {
+				products.put(productId, product);
+			}
+		});
 		return products;
 	}
 
+	private static RuntimeException lookupFailure(ExecutionException ex) {
+		Throwable cause = ex.getCause() instanceof CompletionException ? ex.getCause().getCause() : ex.getCause();
+		return cause instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(cause);
+	}
+
 	/**
-	 * Gets the total USD price for a list of products.
+	 * Gets the total USD price for a list of products, using the recorded price of each product (see
+	 * recordPrices()). Must hold the write lock.
 	 * 
 	 * @param products list of products each product is non-null.
 	 * 
-	 * @return returns
+	 * @return returns the total price in cents.
 	 */
-	private double getUsdPriceForProductIds(List<Product> products) {
-		double totalUsdPrice = 0;
+	private long getUsdCentsForProducts(List<Product> products) {
+		long totalUsdCents = 0;
 
 		if (products != null) {
+			recordPrices(products);
 			for (Product product : products) {
-				totalUsdPrice += product.usdPrice();
+				totalUsdCents += productPrices.get(product.id()) * 100L;
 			}
 		}
-		return totalUsdPrice;
+		return totalUsdCents;
 	}
 
 	/**
@@ -106,26 +575,164 @@ public class PackageRepository {
 	 * @return Returns the productPackage if found else returns null if not found or
 	 *         if id was null/empty.
 	 *         
-	 * SHOULD this method always gets the latest price from the product gateway service 
-	 * for the product list. And update the product package to reflect the latest price.
-	 * TODO Check if need this.
+	 * The total price is kept up to date by reprice() rather than by calling the product
+	 * gateway service on every get.
 	 */
 	public ProductPackage get(String id) {
-		for (ProductPackage p : productPackages) {
-			if (p.getId().equals(id)) {
-				return p;
-			}
-		}
-		return null;
+		UUID key = CompactPackage.parseId(id);
+		CompactPackage compactPackage = key == null ? null : productPackages.get(key);
+		return compactPackage == null ? null : compactPackage.toProductPackage(productIdDictionary);
 	}
     
     /**
      * Gets the list of productPackages.
+     * The returned list is an immutable snapshot that reflects every write completed
+     * before the call. It is shared between callers until the next write. Its ProductPackages
+     * are built as they are read rather than held by the list.
      */
     public List<ProductPackage> getAll() {
-    	return productPackages;
+    	return getAllTimer.record(this::getSnapshot);
+    }
+
+    private List<ProductPackage> getSnapshot() {
+    	long version = modificationCount.get();
+    	Snapshot current = snapshot;
+    	if (current.version() != version) {
+    		current = new Snapshot(version, new ProductPackageList(List.copyOf(productPackages.values())));
+    		snapshot = current;
+    	}
+    	return current.productPackages();
     }
 
+	/**
+	 * Gets a page of product packages ordered by package id.
+	 * 
+	 * @param cursor      id of the last package on the previous page, or null for the first page.
+	 * @param limit       maximum number of packages to return.
+	 * @param namePrefix  if non-null only packages whose name starts with this prefix are returned.
+	 * @param productId   if non-null only packages containing this product id are returned.
+	 * 
+	 * @return up to limit packages with ids after the cursor that match the filters.
+	 */
+	public List<ProductPackage> getPage(String cursor, int limit, String namePrefix, String productId) {
+		return getPageTimer.record(() -> findPage(cursor, limit, namePrefix, productId));
+	}
+
+	private List<ProductPackage> findPage(String cursor, int limit, String namePrefix, String productId) {
+		List<ProductPackage> page = new ArrayList<>(Math.min(limit, 64));
+		ConcurrentSkipListSet<UUID> ids = orderedIds;
+		int productCode = ANY_PRODUCT;
+		if (productId != null) {
+			ids = packageIdsByProductId.get(productId);
+			productCode = productIdDictionary.find(productId);
+			if (ids == null) {
+				return page;
+			}
+		}
+		UUID after = CompactPackage.parseId(cursor);
+		if (cursor != null && after == null) {
+			// Not a package id, so not a cursor handed out by the controller.
+			return page;
+		}
+		for (UUID id : after == null ? ids : ids.tailSet(after, false)) {
+			if (page.size() >= limit) {
+				break;
+			}
+			CompactPackage compactPackage = productPackages.get(id);
+			if (compactPackage != null && matches(compactPackage, namePrefix, productCode)) {
+				page.add(compactPackage.toProductPackage(productIdDictionary));
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Streams the product packages without copying them into a list. Packages created or
+	 * deleted while the stream is consumed may or may not be included.
+	 * 
+	 * @param namePrefix  if non-null only packages whose name starts with this prefix are returned.
+	 * @param productId   if non-null only packages containing this product id are returned.
+	 */
+	public Stream<ProductPackage> stream(String namePrefix, String productId) {
+		if (productId != null) {
+			Set<UUID> ids = packageIdsByProductId.get(productId);
+			if (ids == null) {
+				return Stream.empty();
+			}
+			int productCode = productIdDictionary.find(productId);
+			// Re-check each package as it may have been deleted or updated since the index was read.
+			return ids.stream()
+					.map(productPackages::get)
+					.filter(p -> p != null && matches(p, namePrefix, productCode))
+					.map(p -> p.toProductPackage(productIdDictionary));
+		}
+		return productPackages.values().stream()
+				.filter(p -> matches(p, namePrefix, ANY_PRODUCT))
+				.map(p -> p.toProductPackage(productIdDictionary));
+	}
+
+	/**
+	 * Gets the product packages that contain a product, using the reverse index so the cost
+	 * depends on the number of packages found rather than the size of the repository.
+	 * 
+	 * @param productId non-null String product id.
+	 * 
+	 * @return list of product packages, ordered by package id, that contain the product.
+	 */
+	public List<ProductPackage> getByProductId(String productId) {
+		return getByProductIdTimer.record(() -> findByProductId(productId));
+	}
+
+	private List<ProductPackage> findByProductId(String productId) {
+		Set<UUID> ids = productId == null ? null : packageIdsByProductId.get(productId);
+		if (ids == null) {
+			return List.of();
+		}
+		int productCode = productIdDictionary.find(productId);
+		List<ProductPackage> found = new ArrayList<>(ids.size());
+		for (UUID id : ids) {
+			CompactPackage compactPackage = productPackages.get(id);
+			// Re-check the package as it may have been updated since the index was read.
+			if (compactPackage != null && compactPackage.quantity(productCode) > 0) {
+				found.add(compactPackage.toProductPackage(productIdDictionary));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Searches package names and descriptions. Each word of the query must match a word of the package,
+	 * either the whole word or its start (or, if search.ngram-enabled is set, any part of it). Packages
+	 * are ranked by how well they match, with matches in the name ranked above matches in the description.
+	 * 
+	 * @param query  free text query.
+	 * @param offset number of ranked packages to skip.
+	 * @param limit  maximum number of packages to return.
+	 * 
+	 * @return up to limit matching packages, best match first.
+	 */
+	public List<ProductPackage> search(String query, int offset, int limit) {
+		return searchTimer.record(() -> findMatches(query, offset, limit));
+	}
+
+	private List<ProductPackage> findMatches(String query, int offset, int limit) {
+		List<UUID> ids = searchIndex.search(query, (int) Math.min((long) offset + limit, Integer.MAX_VALUE));
+		List<ProductPackage> page = new ArrayList<>(Math.min(limit, 64));
+		for (int i = offset; i < ids.size() && page.size() < limit; i++) {
+			CompactPackage compactPackage = productPackages.get(ids.get(i));
+			// Deleted while the index was searched.
+			if (compactPackage != null) {
+				page.add(compactPackage.toProductPackage(productIdDictionary));
+			}
+		}
+		return page;
+	}
+
+	private static boolean matches(CompactPackage compactPackage, String namePrefix, int productCode) {
+		return (namePrefix == null || compactPackage.name().startsWith(namePrefix))
+				&& (productCode == ANY_PRODUCT || compactPackage.quantity(productCode) > 0);
+	}
+
 	/**
 	 * Does a full update of a product package (i.e. all fields in the product
 	 * package are updated with new values).
@@ -141,21 +748,154 @@ public class PackageRepository {
 	 *         repository.
 	 */
 	public ProductPackage update(String id, String name, String description, List<String> productIds) {
-		ProductPackage productPackage = null;
-		if (name != null && name.length() > 0 && productIds != null) {
-			for (int i = 0; i < productPackages.size(); i++) {
-				if (productPackages.get(i).getId().equals(id)) {
-					List<Product> products = getProducts(productIds);
-					if (products != null) {
-						productPackage = new ProductPackage(id, name, description == null ? "" : description,
-								productIds, getUsdPriceForProductIds(products));
-						productPackages.add(i, productPackage);
-						return productPackage;
+		return update(id, name, description, productIds, ANY_VERSION);
+	}
+
+	/**
+	 * Does a full update of a product package if it is still at the expected version. The product ids
+	 * are validated without holding the write lock, the version is checked again when the update is applied.
+	 * 
+	 * @param expectedVersion version the package must be at, or ANY_VERSION.
+	 * 
+	 * @return as for update(String, String, String, List).
+	 * 
+	 * @throws VersionMismatchException if the package is not at the expected version.
+	 */
+	public ProductPackage update(String id, String name, String description, List<String> productIds, long expectedVersion) {
+		return updateTimer.record(() -> updatePackage(id, name, description, productIds, expectedVersion));
+	}
+
+	private ProductPackage updatePackage(String id, String name, String description, List<String> productIds,
+			long expectedVersion) {
+		UUID key = CompactPackage.parseId(id);
+		if (key != null && isValid(name, productIds) && productPackages.containsKey(key)) {
+			// Fail before validating the products if the package has already changed.
+			checkVersion(productPackages.get(key), expectedVersion);
+			List<Product> products = getProducts(productIds);
+			if (products != null) {
+				ProductPackage productPackage = null;
+				CompletableFuture<Void> stored;
+				writeLock.lock();
+				try {
+					if (checkVersion(productPackages.get(key), expectedVersion)) {
+						productPackage = replacePackage(compact(key, name, description == null ? "" : description,
+								productIds, getUsdCentsForProducts(products)));
 					}
+					stored = storeWrites.last();
+				} finally {
+					writeLock.unlock();
+				}
+				if (productPackage != null) {
+					storeWrites.await(stored);
+					return productPackage;
 				}
 			}
 		}
-		return productPackage;
+		return null;
+	}
+
+	/**
+	 * Changes some of the fields of a product package, leaving the fields passed as null unchanged.
+	 * Only the product ids that are not already in the package are validated; the prices of the others are
+	 * already known. The change is applied atomically: if the package is changed by another write while the
+	 * new product ids are validated, the patch is worked out again against the new version of the package
+	 * (or, if an expected version is given, fails).
+	 * 
+	 * @param id              non-null String productPackage id.
+	 * @param name            new non-empty name, or null.
+	 * @param description     new description, or null.
+	 * @param productIds      new List of product ids, or null.
+	 * @param expectedVersion version the package must be at, or ANY_VERSION.
+	 * 
+	 * @return the patched ProductPackage, or the current one unchanged if the patch changes nothing. Returns
+	 *         null if the package does not exist, the name is empty or one of the new product ids is not
+	 *         recognized by the product service.
+	 * 
+	 * @throws VersionMismatchException if the package is not at the expected version.
+	 */
+	public ProductPackage patch(String id, String name, String description, List<String> productIds, long expectedVersion) {
+		return patchTimer.record(() -> patchPackage(id, name, description, productIds, expectedVersion));
+	}
+
+	private ProductPackage patchPackage(String id, String name, String description, List<String> productIds,
+			long expectedVersion) {
+		UUID key = CompactPackage.parseId(id);
+		if (key == null || (name != null && name.isEmpty())) {
+			return null;
+		}
+		while (true) {
+			CompactPackage current = productPackages.get(key);
+			if (current == null || !checkVersion(current, expectedVersion)) {
+				return null;
+			}
+			ProductPackage currentPackage = current.toProductPackage(productIdDictionary);
+			if ((name == null || name.equals(currentPackage.getName()))
+					&& (description == null || description.equals(currentPackage.getDescription()))
+					&& (productIds == null || productIds.equals(currentPackage.getProductIds()))) {
+				// Nothing to change, so the version is kept and nothing is written.
+				return currentPackage;
+			}
+			List<Product> addedProducts = List.of();
+			if (productIds != null) {
+				Set<String> addedIds = new LinkedHashSet<>(productIds);
+				addedIds.removeAll(currentPackage.getProductIds());
+				if (!addedIds.isEmpty()) {
+					addedProducts = getProducts(List.copyOf(addedIds));
+					if (addedProducts == null) {
+						return null;
+					}
+				}
+			}
+			ProductPackage productPackage = null;
+			CompletableFuture<Void> stored;
+			writeLock.lock();
+			try {
+				CompactPackage latest = productPackages.get(key);
+				if (latest == null) {
+					return null;
+				}
+				if (latest.version() != current.version()) {
+					// Changed while the new product ids were validated, throws if a version was expected.
+					checkVersion(latest, expectedVersion);
+					continue;
+				}
+				recordPrices(addedProducts);
+				List<String> patchedProductIds = productIds == null ? currentPackage.getProductIds() : productIds;
+				long totalCents = current.totalCents();
+				if (productIds != null) {
+					totalCents = 0;
+					for (String productId : patchedProductIds) {
+						totalCents += productPrices.get(productId) * 100L;
+					}
+				}
+				productPackage = replacePackage(compact(key, name == null ? currentPackage.getName() : name,
+						description == null ? currentPackage.getDescription() : description, patchedProductIds,
+						totalCents));
+				stored = storeWrites.last();
+			} finally {
+				writeLock.unlock();
+			}
+			storeWrites.await(stored);
+			return productPackage;
+		}
+	}
+
+	/**
+	 * Checks a package is at the expected version.
+	 * 
+	 * @return true if the package exists and is at the expected version (or any version is expected),
+	 *         false if the package does not exist.
+	 * 
+	 * @throws VersionMismatchException if the package is at a different version.
+	 */
+	private static boolean checkVersion(CompactPackage compactPackage, long expectedVersion) {
+		if (compactPackage == null) {
+			return false;
+		}
+		if (expectedVersion != ANY_VERSION && compactPackage.version() != expectedVersion) {
+			throw new VersionMismatchException(compactPackage.id().toString(), expectedVersion, compactPackage.version());
+		}
+		return true;
 	}
 
 	/**
@@ -168,14 +908,511 @@ public class PackageRepository {
 	 *         repository.
 	 */
 	public ProductPackage delete(String id) {
-		if (id != null) {
-			for (ProductPackage p : productPackages) {
-				if (p.getId().equals(id)) {
-					productPackages.remove(p);
-					return p;
-				}
+		return deleteTimer.record(() -> deletePackage(id));
+	}
+
+	private ProductPackage deletePackage(String id) {
+		UUID key = CompactPackage.parseId(id);
+		if (key != null) {
+			ProductPackage deleted;
+			CompletableFuture<Void> stored;
+			writeLock.lock();
+			try {
+				deleted = removePackage(key);
+				stored = storeWrites.last();
+			} finally {
+				writeLock.unlock();
+			}
+			if (deleted != null) {
+				storeWrites.await(stored);
 			}
+			return deleted;
 		}
 		return null;
 	}
+
+	/**
+	 * Updates the total price of every package containing a product whose price has changed.
+	 * Only the packages containing the product are touched: each total is adjusted by the
+	 * price difference times the number of times the product appears in the package.
+	 * 
+	 * @param productId non-null String product id.
+	 * @param usdPrice  the new USD price of the product.
+	 * 
+	 * @return the number of packages whose total price changed.
+	 */
+	public int reprice(String productId, int usdPrice) {
+		return repriceTimer.record(() -> repricePackages(productId, usdPrice));
+	}
+
+	private int repricePackages(String productId, int usdPrice) {
+		int repriced = 0;
+		CompletableFuture<Void> stored;
+		writeLock.lock();
+		try {
+			if (productPrices.containsKey(productId)) {
+				repriced = applyPrice(productId, usdPrice, false);
+			}
+			stored = storeWrites.last();
+		} finally {
+			writeLock.unlock();
+		}
+		storeWrites.await(stored);
+		return repriced;
+	}
+
+	/**
+	 * Applies writes copied from other nodes of a cluster, in order (see PackageCopies).
+	 * 
+	 * @param writes non-null list of writes, as sent by the ReplicatingPackageStore of another node.
+	 */
+	public void applyCopies(List<ReplicatedWrite> writes) {
+		copyTimer.record(() -> copies.apply(writes));
+	}
+
+	/**
+	 * Passes the product prices, then every package, as copies to an action while holding the write lock, so no
+	 * write is made in the meantime. Used to copy packages to other nodes when the members of a cluster change.
+	 */
+	public void exportCopies(Consumer<ReplicatedWrite> action) {
+		copies.export(action);
+	}
+
+	/**
+	 * Gets the sequence number of the last change to the packages. Reading the changes after it returns
+	 * the changes made from now on.
+	 */
+	public long getChangeSequence() {
+		return changeLog.getLastSequence();
+	}
+
+	/**
+	 * Gets the changes made to the packages after a sequence number, in the order they were made. Each change
+	 * carries the package as it was written by that change, so a package changed twice appears twice.
+	 * 
+	 * @param after sequence number of the last change already read, as returned by getChangeSequence() or
+	 *              PackageChange.sequence().
+	 * @param limit most changes to return.
+	 * 
+	 * @return the changes, empty if there have been none since, or null if some of them are no longer held,
+	 *         in which case the reader has to read the packages again and continue from getChangeSequence().
+	 */
+	public List<PackageChange> getChanges(long after, int limit) {
+		List<PackageChangeLog.Entry> entries = changeLog.read(after, limit);
+		if (entries == null) {
+			return null;
+		}
+		List<PackageChange> changes = new ArrayList<>(entries.size());
+		for (PackageChangeLog.Entry entry : entries) {
+			CompactPackage compactPackage = entry.compactPackage();
+			changes.add(compactPackage == null
+					? new PackageChange(entry.sequence(), entry.type(), entry.id().toString(), 0, null)
+					: new PackageChange(entry.sequence(), entry.type(), entry.id().toString(), compactPackage.version(),
+							compactPackage.toProductPackage(productIdDictionary)));
+		}
+		return changes;
+	}
+
+	/**
+	 * Waits until there is a change after a sequence number.
+	 * 
+	 * @return true if there is one, false if the timeout passed first.
+	 */
+	public boolean awaitChanges(long after, Duration timeout) throws InterruptedException {
+		return changeLog.await(after, timeout.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the statistics of the packages: their number, the sum and a sketch of their total prices in USD
+	 * cents, and the number of packages using each product. The statistics are kept up to date by every write,
+	 * so this costs the same however many packages there are.
+	 */
+	public PackageStatistics getStatistics() {
+		return statistics.snapshot(productIdDictionary);
+	}
+
+	/**
+	 * Sets which packages are counted in the statistics and counts them again. In cluster mode only the packages
+	 * this node is primary for are counted, so the statistics of the nodes can be added up; this is called again
+	 * whenever the members change.
+	 * 
+	 * @param filter accepts the ids of the packages to count.
+	 */
+	public void setStatisticsFilter(Predicate<UUID> filter) {
+		writeLock.lock();
+		try {
+			statisticsFilter = filter;
+			statistics.clear();
+			for (CompactPackage compactPackage : productPackages.values()) {
+				countPackage(compactPackage);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the repository to the package store so it can discard older writes.
+	 * The repository is only locked while its contents are copied, not while the snapshot is written.
+	 * The copy may hold the changes of writes still in flight, so it is only written once they are all
+	 * durable; if one fails its changes are undone, and the snapshot is left to the next interval.
+	 */
+	@Scheduled(fixedDelayString = "${package.persistence.snapshot-interval}", initialDelayString = "${package.persistence.snapshot-interval}")
+	public void snapshot() {
+		if (!packageStore.isDurable()) {
+			return;
+		}
+		long checkpoint;
+		List<CompactPackage> packages;
+		Map<String, Integer> prices;
+		CompletableFuture<Void> inFlight;
+		writeLock.lock();
+		try {
+			checkpoint = packageStore.startSnapshot();
+			packages = List.copyOf(productPackages.values());
+			prices = Map.copyOf(productPrices);
+			inFlight = storeWrites.inFlight();
+		} finally {
+			writeLock.unlock();
+		}
+		try {
+			storeWrites.await(inFlight);
+		} catch (CompletionException ex) {
+			return;
+		}
+		packageStore.writeSnapshot(checkpoint, new ProductPackageList(packages), prices);
+	}
+
+	/**
+	 * Gets the ids of all products used by at least one package.
+	 */
+	public Set<String> getProductIds() {
+		return Collections.unmodifiableSet(packageIdsByProductId.keySet());
+	}
+
+	/**
+	 * Builds the compact form of a package, encoding its product ids. Must hold the write lock.
+	 * The version is set when the package is added or replaced.
+	 */
+	CompactPackage compact(UUID id, String name, String description, List<String> productIds, long totalCents) {
+		int[] productCodes = new int[productIds.size()];
+		for (int i = 0; i < productCodes.length; i++) {
+			productCodes[i] = productIdDictionary.encode(productIds.get(i));
+		}
+		return new CompactPackage(id, name, description, productCodes, totalCents, 0);
+	}
+
+	/**
+	 * Gets the version the next write will stamp on the packages it changes. Must hold the write lock.
+	 * The modification count itself is only incremented once the write is visible, so getAll() never
+	 * caches a snapshot that misses it.
+	 */
+	private long nextVersion() {
+		return modificationCount.get() + 1;
+	}
+
+	/**
+	 * Adds a new package and indexes it. Must hold the write lock.
+	 * 
+	 * @return the package as written to the package store.
+	 */
+	private ProductPackage insertPackage(CompactPackage newPackage) {
+		CompactPackage compactPackage = newPackage.withVersion(nextVersion());
+		putPackage(compactPackage);
+		orderedIds.add(compactPackage.id());
+		indexProductIds(compactPackage);
+		searchIndex.add(compactPackage);
+		countPackage(compactPackage);
+		changeLog.append(PackageChange.Type.CREATED, compactPackage.id(), compactPackage);
+		modificationCount.incrementAndGet();
+		ProductPackage productPackage = compactPackage.toProductPackage(productIdDictionary);
+		storeWrites.add(packageStore.save(productPackage));
+		return productPackage;
+	}
+
+	/**
+	 * Replaces a package and reindexes it, unless it was deleted while its products were validated.
+	 * Must hold the write lock.
+	 * 
+	 * @return the package as written to the package store, or null if the package no longer exists.
+	 */
+	private ProductPackage replacePackage(CompactPackage newPackage) {
+		if (!productPackages.containsKey(newPackage.id())) {
+			return null;
+		}
+		CompactPackage compactPackage = newPackage.withVersion(nextVersion());
+		CompactPackage previous = putPackage(compactPackage);
+		reindexProductIds(previous, compactPackage);
+		searchIndex.replace(previous, compactPackage);
+		uncountPackage(previous);
+		countPackage(compactPackage);
+		changeLog.append(PackageChange.Type.UPDATED, compactPackage.id(), compactPackage);
+		modificationCount.incrementAndGet();
+		ProductPackage productPackage = compactPackage.toProductPackage(productIdDictionary);
+		storeWrites.add(packageStore.save(productPackage));
+		return productPackage;
+	}
+
+	/**
+	 * Moves the modification count past the version of a package copied from another node, so later writes
+	 * stamp higher versions. Must hold the write lock.
+	 */
+	void advanceVersion(long version) {
+		modificationCount.accumulateAndGet(version, (count, copiedVersion) -> Math.max(count + 1, copiedVersion));
+	}
+
+	/**
+	 * Adds or replaces a package and indexes it without recording the write or changing the modification
+	 * count. Must hold the write lock.
+	 */
+	void link(CompactPackage compactPackage) {
+		UUID id = compactPackage.id();
+		CompactPackage previous = putPackage(compactPackage);
+		if (previous == null) {
+			orderedIds.add(id);
+			indexProductIds(compactPackage);
+			searchIndex.add(compactPackage);
+		} else {
+			reindexProductIds(previous, compactPackage);
+			searchIndex.replace(previous, compactPackage);
+			uncountPackage(previous);
+		}
+		countPackage(compactPackage);
+		changeLog.append(previous == null ? PackageChange.Type.CREATED : PackageChange.Type.UPDATED, id, compactPackage);
+	}
+
+	/**
+	 * Removes a package and unindexes it. Must hold the write lock.
+	 * 
+	 * @return the removed package, or null if there was no package with the id.
+	 */
+	private ProductPackage removePackage(UUID id) {
+		CompactPackage deleted = unlink(id);
+		if (deleted == null) {
+			return null;
+		}
+		storeWrites.add(packageStore.delete(id.toString()));
+		return deleted.toProductPackage(productIdDictionary);
+	}
+
+	/**
+	 * Removes a package and unindexes it without recording the delete. Must hold the write lock.
+	 * 
+	 * @return the removed package, or null if there was no package with the id.
+	 */
+	CompactPackage unlink(UUID id) {
+		CompactPackage deleted = productPackages.remove(id);
+		if (deleted == null) {
+			return null;
+		}
+		storeWrites.packageChanged(id, deleted, null);
+		orderedIds.remove(id);
+		unindexProductIds(deleted);
+		searchIndex.remove(id);
+		uncountPackage(deleted);
+		changeLog.append(PackageChange.Type.DELETED, id, null);
+		modificationCount.incrementAndGet();
+		return deleted;
+	}
+
+	/**
+	 * Records the prices of products just fetched for a create or update that have no recorded price yet.
+	 * A recorded price is kept: the fetched price may come from a cached copy older than a price change
+	 * reported to reprice(), so it must not reprice the packages back. Must hold the write lock.
+	 */
+	private void recordPrices(List<Product> products) {
+		for (Product product : products) {
+			if (!productPrices.containsKey(product.id())) {
+				applyPrice(product.id(), product.usdPrice(), false);
+			}
+		}
+	}
+
+	/**
+	 * Records the price of a product and reprices the packages containing it. Must hold the write lock.
+	 * 
+	 * @param copied whether the price was copied from another node.
+	 */
+	int applyPrice(String productId, int usdPrice, boolean copied) {
+		Integer previousPrice = productPrices.put(productId, usdPrice);
+		storeWrites.priceChanged(productId, previousPrice, usdPrice);
+		if (previousPrice != null && previousPrice == usdPrice) {
+			return 0;
+		}
+		storeWrites.add(copied ? packageStore.savePriceCopy(productId, usdPrice) : packageStore.savePrice(productId, usdPrice));
+		Set<UUID> ids = packageIdsByProductId.get(productId);
+		if (previousPrice == null || ids == null) {
+			return 0;
+		}
+		long priceChangeCents = (usdPrice - previousPrice) * 100L;
+		int productCode = productIdDictionary.find(productId);
+		long version = nextVersion();
+		int repriced = 0;
+		for (UUID id : ids) {
+			CompactPackage p = productPackages.get(id);
+			if (p != null) {
+				CompactPackage repricedPackage = p.withTotalCents(p.totalCents() + p.quantity(productCode) * priceChangeCents,
+						version);
+				putPackage(repricedPackage);
+				uncountPackage(p);
+				countPackage(repricedPackage);
+				changeLog.append(PackageChange.Type.UPDATED, id, repricedPackage);
+				storeWrites.add(packageStore.save(repricedPackage.toProductPackage(productIdDictionary)));
+				repriced++;
+			}
+		}
+		if (repriced > 0) {
+			modificationCount.incrementAndGet();
+		}
+		return repriced;
+	}
+
+	/**
+	 * Puts a package in the map of packages, recording the change. Must hold the write lock.
+	 * 
+	 * @return the package it replaced, or null.
+	 */
+	private CompactPackage putPackage(CompactPackage compactPackage) {
+		CompactPackage previous = productPackages.put(compactPackage.id(), compactPackage);
+		storeWrites.packageChanged(compactPackage.id(), previous, compactPackage);
+		return previous;
+	}
+
+	/**
+	 * Adds a package to the statistics, if the filter accepts it. Must hold the write lock.
+	 */
+	private void countPackage(CompactPackage compactPackage) {
+		if (statisticsFilter.test(compactPackage.id())) {
+			statistics.add(compactPackage);
+		}
+	}
+
+	/**
+	 * Removes a package from the statistics, if the filter accepts it. Must hold the write lock.
+	 */
+	private void uncountPackage(CompactPackage compactPackage) {
+		if (statisticsFilter.test(compactPackage.id())) {
+			statistics.remove(compactPackage);
+		}
+	}
+
+	/**
+	 * Adds a package to the reverse index. Must hold the write lock.
+	 */
+	private void indexProductIds(CompactPackage compactPackage) {
+		for (int productCode : compactPackage.productCodes()) {
+			packageIdsByProductId.computeIfAbsent(productIdDictionary.decode(productCode),
+					k -> new ConcurrentSkipListSet<>(CompactPackage.ID_ORDER)).add(compactPackage.id());
+		}
+	}
+
+	/**
+	 * Moves a package in the reverse index from its previous to its current product ids. Must hold the write lock.
+	 */
+	private void reindexProductIds(CompactPackage previous, CompactPackage current) {
+		for (int productCode : previous.productCodes()) {
+			if (current.quantity(productCode) == 0) {
+				unindexProductId(previous.id(), productCode);
+			}
+		}
+		indexProductIds(current);
+	}
+
+	/**
+	 * Removes a package from the reverse index. Must hold the write lock.
+	 */
+	private void unindexProductIds(CompactPackage compactPackage) {
+		for (int productCode : compactPackage.productCodes()) {
+			unindexProductId(compactPackage.id(), productCode);
+		}
+	}
+
+	private void unindexProductId(UUID packageId, int productCode) {
+		String productId = productIdDictionary.decode(productCode);
+		Set<UUID> ids = packageIdsByProductId.get(productId);
+		if (ids != null) {
+			ids.remove(packageId);
+			if (ids.isEmpty()) {
+				packageIdsByProductId.remove(productId);
+				Integer price = productPrices.remove(productId);
+				if (price != null) {
+					storeWrites.priceChanged(productId, price, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The packages and prices as seen by PackageStoreWrites, to undo the changes of failed writes.
+	 */
+	private class StoredState implements PackageStoreWrites.State {
+
+		@Override
+		public CompactPackage getPackage(UUID id) {
+			return productPackages.get(id);
+		}
+
+		@Override
+		public Integer getPrice(String productId) {
+			return productPrices.get(productId);
+		}
+
+		@Override
+		public void restorePackage(UUID id, CompactPackage previous) {
+			if (previous == null) {
+				unlink(id);
+			} else {
+				link(previous);
+			}
+		}
+
+		@Override
+		public void restorePrice(String productId, Integer previous) {
+			if (previous != null) {
+				productPrices.put(productId, previous);
+			} else if (!packageIdsByProductId.containsKey(productId)) {
+				// Kept while packages use the product, as their totals were worked out with it.
+				productPrices.remove(productId);
+			}
+		}
+
+		@Override
+		public void undone() {
+			modificationCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Result of looking up a single product id, product is null if the id is unknown.
+	 */
+	private record ProductLookup(String productId, Product product) {
+	}
+
+	/**
+	 * List of packages returned by getAll() and the modification count it was built at.
+	 */
+	private record Snapshot(long version, List<ProductPackage> productPackages) {
+	}
+
+	/**
+	 * Immutable list of ProductPackages built from compact packages as they are read.
+	 */
+	private class ProductPackageList extends AbstractList<ProductPackage> implements RandomAccess {
+
+		private final List<CompactPackage> compactPackages;
+
+		ProductPackageList(List<CompactPackage> compactPackages) {
+			this.compactPackages = compactPackages;
+		}
+
+		@Override
+		public ProductPackage get(int index) {
+			return compactPackages.get(index).toProductPackage(productIdDictionary);
+		}
+
+		@Override
+		public int size() {
+			return compactPackages.size();
+		}
+	}
 }
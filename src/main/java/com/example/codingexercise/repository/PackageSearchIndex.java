@@ -0,0 +1,556 @@
+package com.example.codingexercise.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Inverted index over the words (terms) of package names and descriptions, used by PackageRepository.search().
+ * Terms are lower case runs of letters and digits. Each term of a query matches a package if the package has
+ * the same term (exact), a term starting with it (prefix) or, if n-gram matching is enabled, a term containing
+ * it (infix, for typeahead on the middle of a word). Every term of the query must match. Matches in the name
+ * count twice those in the description.
+ * The postings of the terms a query term matches are read in order of the score of the match, so for a single
+ * term query the first packages found are the best matches and the search stops as soon as it has enough.
+ * For longer queries the terms of each package are also kept, as int codes, so candidates can be scored
+ * without reading the packages or comparing Strings. Every package matching the most selective query term is
+ * scored against the other query terms, so no match is missed and the ranking is exact, and a query costs in
+ * proportion to the packages matching its rarest word.
+ * Only changed while the repository's write lock is held; searches do not lock and may see a write in progress,
+ * the repository re-checks the packages found. Term codes are not reused when a term is removed, so a search
+ * holding the code of a removed term cannot match it against a term added later. Once enough codes are unused the
+ * terms are renumbered, and multi-term searches overlapping a renumbering are run again.
+ * @author tomd
+ *
+ */
+final class PackageSearchIndex {
+
+	/**
+	 * Length of the n-grams used for infix matching, query terms shorter than this are only matched as prefixes.
+	 */
+	static final int NGRAM_LENGTH = 3;
+
+	/**
+	 * Most query terms used, the rest of a longer query is ignored.
+	 */
+	private static final int MAX_QUERY_TERMS = 8;
+
+	private static final int EXACT = 3;
+	private static final int PREFIX = 2;
+	private static final int INFIX = 1;
+	private static final int NAME_WEIGHT = 2;
+	private static final int DESCRIPTION_WEIGHT = 1;
+
+	/**
+	 * Unused term codes allowed, beyond the number of terms, before the terms are renumbered.
+	 */
+	private static final int MIN_UNUSED_CODES = 1024;
+
+	/**
+	 * Order of multi-term query results: highest score first, then package id.
+	 */
+	private static final Comparator<Hit> BEST_FIRST = Comparator.comparingInt(Hit::score).reversed()
+			.thenComparing(Hit::id, CompactPackage.ID_ORDER);
+
+	private final NavigableMap<String, Term> terms = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Terms indexed by code, only used by writers. Codes of removed terms are left empty until the terms are
+	 * renumbered.
+	 */
+	private Term[] termsByCode = new Term[1024];
+
+	private int codeCount;
+
+	private int unusedCodes;
+
+	/**
+	 * Incremented before and after the terms are renumbered, so it is odd while they are. A multi-term search is
+	 * run again if it changed while the search ran.
+	 */
+	private volatile int renumbering;
+
+	/**
+	 * Term codes of each package, keyed by package id. Held in a single array per package (the number of name
+	 * terms, the name term codes then the description term codes) so scoring a package reads as little memory
+	 * as possible.
+	 */
+	private final Map<UUID, int[]> documents = new ConcurrentHashMap<>();
+
+	/**
+	 * Terms containing each n-gram, only kept if n-gram matching is enabled.
+	 */
+	private final Map<String, Set<String>> termsByNgram = new ConcurrentHashMap<>();
+
+	private final boolean ngramEnabled;
+
+	PackageSearchIndex(boolean ngramEnabled) {
+		this.ngramEnabled = ngramEnabled;
+	}
+
+	/**
+	 * Splits text into its distinct lower case terms, in order.
+	 */
+	static List<String> tokenize(String text) {
+		if (text == null || text.isEmpty()) {
+			return List.of();
+		}
+		Set<String> tokens = new LinkedHashSet<>();
+		String lowerCase = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+		for (int i = 0; i <= lowerCase.length(); i++) {
+			boolean termChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+			if (termChar && start < 0) {
+				start = i;
+			} else if (!termChar && start >= 0) {
+				tokens.add(lowerCase.substring(start, i));
+				start = -1;
+			}
+		}
+		return List.copyOf(tokens);
+	}
+
+	/**
+	 * Adds a package. Must hold the write lock.
+	 */
+	void add(CompactPackage compactPackage) {
+		List<String> name = tokenize(compactPackage.name());
+		List<String> description = tokenize(compactPackage.description());
+		int[] codes = new int[1 + name.size() + description.size()];
+		codes[0] = name.size();
+		addTerms(compactPackage.id(), name, true, codes, 1);
+		addTerms(compactPackage.id(), description, false, codes, 1 + name.size());
+		documents.put(compactPackage.id(), codes);
+	}
+
+	/**
+	 * Reindexes a package whose name or description may have changed. Must hold the write lock.
+	 */
+	void replace(CompactPackage previous, CompactPackage current) {
+		if (previous.name().equals(current.name()) && Objects.equals(previous.description(), current.description())) {
+			return;
+		}
+		remove(previous.id());
+		add(current);
+	}
+
+	/**
+	 * Removes a package. Must hold the write lock.
+	 */
+	void remove(UUID id) {
+		int[] codes = documents.remove(id);
+		if (codes != null) {
+			for (int i = 1; i < codes.length; i++) {
+				removeTerm(id, codes[i], i <= codes[0]);
+			}
+			if (unusedCodes > Math.max(MIN_UNUSED_CODES, terms.size())) {
+				renumber();
+			}
+		}
+	}
+
+	/**
+	 * Gives the terms consecutive codes from 0, so the codes in use do not grow with every term ever added.
+	 * Must hold the write lock.
+	 */
+	private void renumber() {
+		renumbering++;
+		int[] renumbered = new int[codeCount];
+		Term[] compacted = new Term[Math.max(1024, terms.size() * 2)];
+		int count = 0;
+		for (int code = 0; code < codeCount; code++) {
+			Term term = termsByCode[code];
+			if (term != null) {
+				renumbered[code] = count;
+				term.code = count;
+				compacted[count++] = term;
+			}
+		}
+		for (Map.Entry<UUID, int[]> document : documents.entrySet()) {
+			int[] codes = document.getValue().clone();
+			for (int i = 1; i < codes.length; i++) {
+				codes[i] = renumbered[codes[i]];
+			}
+			document.setValue(codes);
+		}
+		termsByCode = compacted;
+		codeCount = count;
+		unusedCodes = 0;
+		renumbering++;
+	}
+
+	/**
+	 * Finds the packages matching a query, best first. Packages with the same score are in order of the
+	 * term they matched then package id for a single term query, and in package id order otherwise.
+	 *
+	 * @param query  free text query.
+	 * @param wanted number of matches needed, more may be returned.
+	 *
+	 * @return ids of the matching packages in order of score (highest first). Fewer than wanted only if
+	 *         no more packages match.
+	 */
+	List<UUID> search(String query, int wanted) {
+		List<String> queryTerms = tokenize(query);
+		if (queryTerms.isEmpty()) {
+			return List.of();
+		}
+		if (queryTerms.size() == 1) {
+			return searchTerm(queryTerms.get(0), wanted);
+		}
+		if (queryTerms.size() > MAX_QUERY_TERMS) {
+			queryTerms = queryTerms.subList(0, MAX_QUERY_TERMS);
+		}
+		while (true) {
+			int generation = renumbering;
+			if ((generation & 1) == 0) {
+				List<UUID> ids = searchTerms(queryTerms, wanted);
+				if (renumbering == generation) {
+					return ids;
+				}
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Finds the packages matching all of several query terms, scoring them by the term codes of each package.
+	 */
+	private List<UUID> searchTerms(List<String> queryTerms, int wanted) {
+		List<Matches> matches = new ArrayList<>(queryTerms.size());
+		Matches mostSelective = null;
+		for (String queryTerm : queryTerms) {
+			Matches termMatches = matches(queryTerm);
+			matches.add(termMatches);
+			if (mostSelective == null || termMatches.postings() < mostSelective.postings()) {
+				mostSelective = termMatches;
+			}
+		}
+
+		// The wanted best hits, worst first so it is the one dropped when a better hit is found.
+		PriorityQueue<Hit> best = new PriorityQueue<>(Math.min(wanted, 1024), BEST_FIRST.reversed());
+		Set<UUID> scored = new HashSet<>();
+		for (Term term : mostSelective.terms()) {
+			score(term.name, matches, scored, best, wanted);
+			score(term.description, matches, scored, best, wanted);
+		}
+		List<Hit> hits = new ArrayList<>(best);
+		hits.sort(BEST_FIRST);
+		List<UUID> ids = new ArrayList<>(hits.size());
+		for (Hit hit : hits) {
+			ids.add(hit.id());
+		}
+		return ids;
+	}
+
+	/**
+	 * Scores the packages of a term's postings not already scored, keeping the wanted best hits.
+	 */
+	private void score(Postings postings, List<Matches> matches, Set<UUID> scored, PriorityQueue<Hit> best,
+			int wanted) {
+		for (UUID id : postings.ids()) {
+			if (!scored.add(id)) {
+				continue;
+			}
+			int[] codes = documents.get(id);
+			int score = codes == null ? 0 : score(codes, matches);
+			if (score > 0) {
+				best.add(new Hit(id, score));
+				if (best.size() > wanted) {
+					best.poll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the packages matching a single query term. The postings are read best match first, so the
+	 * search stops once enough packages are found. Infix matches score lowest, so are only looked for if
+	 * there are not enough other matches.
+	 */
+	private List<UUID> searchTerm(String queryTerm, int wanted) {
+		Set<UUID> found = new LinkedHashSet<>();
+		collect(prefixTerms(queryTerm), found, wanted);
+		if (found.size() < wanted) {
+			collect(infixTerms(queryTerm), found, wanted);
+		}
+		return new ArrayList<>(found);
+	}
+
+	/**
+	 * Adds the ids of the packages containing the terms to a set, in order of score (the name postings of
+	 * all the terms, then their description postings), until it holds limit ids.
+	 */
+	private static void collect(List<Term> matchedTerms, Set<UUID> ids, int limit) {
+		for (Term term : matchedTerms) {
+			if (!collect(term.name, ids, limit)) {
+				return;
+			}
+		}
+		for (Term term : matchedTerms) {
+			if (!collect(term.description, ids, limit)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return false once the set holds limit ids.
+	 */
+	private static boolean collect(Postings postings, Set<UUID> ids, int limit) {
+		for (UUID id : postings.ids()) {
+			if (ids.size() >= limit) {
+				return false;
+			}
+			ids.add(id);
+		}
+		return ids.size() < limit;
+	}
+
+	/**
+	 * Gets the terms a query term matches, best match first, with the quality of each match.
+	 */
+	private Matches matches(String queryTerm) {
+		List<Term> prefixTerms = prefixTerms(queryTerm);
+		List<Term> infixTerms = infixTerms(queryTerm);
+		List<Term> matchedTerms = new ArrayList<>(prefixTerms.size() + infixTerms.size());
+		long[] codes = new long[prefixTerms.size() + infixTerms.size()];
+		long postings = 0;
+		for (Term term : prefixTerms) {
+			int quality = term.text.length() == queryTerm.length() ? EXACT : PREFIX;
+			codes[matchedTerms.size()] = (long) term.code << 2 | quality;
+			matchedTerms.add(term);
+			postings += term.name.size + term.description.size;
+		}
+		for (Term term : infixTerms) {
+			codes[matchedTerms.size()] = (long) term.code << 2 | INFIX;
+			matchedTerms.add(term);
+			postings += term.name.size + term.description.size;
+		}
+		// Sorted by code, so the quality of the match of a code is found with a binary search.
+		Arrays.sort(codes);
+		return new Matches(matchedTerms, codes, postings);
+	}
+
+	/**
+	 * Gets the term equal to the query term followed by the terms starting with it.
+	 */
+	private List<Term> prefixTerms(String queryTerm) {
+		List<Term> matchedTerms = new ArrayList<>();
+		for (Term term : terms.tailMap(queryTerm, true).values()) {
+			if (!term.text.startsWith(queryTerm)) {
+				break;
+			}
+			matchedTerms.add(term);
+		}
+		return matchedTerms;
+	}
+
+	/**
+	 * Gets the terms that contain a query term other than at their start, using the n-gram index.
+	 */
+	private List<Term> infixTerms(String queryTerm) {
+		if (!ngramEnabled || queryTerm.length() < NGRAM_LENGTH) {
+			return List.of();
+		}
+		Set<String> smallest = null;
+		for (String ngram : ngrams(queryTerm)) {
+			Set<String> texts = termsByNgram.get(ngram);
+			if (texts == null) {
+				return List.of();
+			}
+			if (smallest == null || texts.size() < smallest.size()) {
+				smallest = texts;
+			}
+		}
+		List<Term> matchedTerms = new ArrayList<>();
+		for (String text : smallest) {
+			Term term = text.indexOf(queryTerm, 1) > 0 ? terms.get(text) : null;
+			if (term != null) {
+				matchedTerms.add(term);
+			}
+		}
+		return matchedTerms;
+	}
+
+	/**
+	 * Scores a package against the query terms.
+	 *
+	 * @return the score, or 0 if a query term does not match.
+	 */
+	private static int score(int[] codes, List<Matches> matches) {
+		int nameEnd = 1 + codes[0];
+		int score = 0;
+		for (Matches termMatches : matches) {
+			int termScore = Math.max(NAME_WEIGHT * termMatches.quality(codes, 1, nameEnd),
+					DESCRIPTION_WEIGHT * termMatches.quality(codes, nameEnd, codes.length));
+			if (termScore == 0) {
+				return 0;
+			}
+			score += termScore;
+		}
+		return score;
+	}
+
+	/**
+	 * Adds a package to the name or description postings of its terms, storing the term codes in codes from offset.
+	 */
+	private void addTerms(UUID id, List<String> tokens, boolean name, int[] codes, int offset) {
+		for (int i = 0; i < tokens.size(); i++) {
+			Term term = terms.get(tokens.get(i));
+			if (term == null) {
+				term = addTerm(tokens.get(i));
+			}
+			Postings postings = name ? term.name : term.description;
+			postings.add(id);
+			codes[offset + i] = term.code;
+		}
+	}
+
+	private Term addTerm(String text) {
+		int code = codeCount++;
+		if (code == termsByCode.length) {
+			termsByCode = Arrays.copyOf(termsByCode, code * 2);
+		}
+		Term term = new Term(text, code);
+		termsByCode[code] = term;
+		terms.put(text, term);
+		if (ngramEnabled) {
+			for (String ngram : ngrams(text)) {
+				termsByNgram.computeIfAbsent(ngram, k -> ConcurrentHashMap.newKeySet()).add(text);
+			}
+		}
+		return term;
+	}
+
+	/**
+	 * Removes a package from the name or description postings of a term, and the term once no package has it.
+	 */
+	private void removeTerm(UUID id, int code, boolean name) {
+		Term term = termsByCode[code];
+		Postings postings = name ? term.name : term.description;
+		if (postings.remove(id)) {
+			if (term.name.size == 0 && term.description.size == 0) {
+				removeTerm(term);
+			}
+		}
+	}
+
+	private void removeTerm(Term term) {
+		terms.remove(term.text);
+		termsByCode[term.code] = null;
+		unusedCodes++;
+		if (ngramEnabled) {
+			for (String ngram : ngrams(term.text)) {
+				Set<String> texts = termsByNgram.get(ngram);
+				if (texts != null) {
+					texts.remove(term.text);
+					if (texts.isEmpty()) {
+						termsByNgram.remove(ngram);
+					}
+				}
+			}
+		}
+	}
+
+	private static Set<String> ngrams(String text) {
+		Set<String> ngrams = new LinkedHashSet<>();
+		for (int i = 0; i + NGRAM_LENGTH <= text.length(); i++) {
+			ngrams.add(text.substring(i, i + NGRAM_LENGTH));
+		}
+		return ngrams;
+	}
+
+	/**
+	 * A term with the packages containing it in their name and in their description.
+	 */
+	private static final class Term {
+
+		final String text;
+
+		/**
+		 * Only changed while the write lock is held, when the terms are renumbered.
+		 */
+		volatile int code;
+
+		final Postings name = new Postings();
+
+		final Postings description = new Postings();
+
+		Term(String text, int code) {
+			this.text = text;
+			this.code = code;
+		}
+	}
+
+	/**
+	 * Ids (in sorted order) of the packages containing a term. Only changed while the write lock is held.
+	 * The set is created by the first add, as many terms are only used in names or only in descriptions.
+	 */
+	private static final class Postings {
+
+		private volatile ConcurrentSkipListSet<UUID> ids;
+
+		volatile int size;
+
+		Set<UUID> ids() {
+			Set<UUID> current = ids;
+			return current != null ? current : Set.of();
+		}
+
+		void add(UUID id) {
+			if (ids == null) {
+				ids = new ConcurrentSkipListSet<>(CompactPackage.ID_ORDER);
+			}
+			if (ids.add(id)) {
+				size++;
+			}
+		}
+
+		boolean remove(UUID id) {
+			if (ids != null && ids.remove(id)) {
+				size--;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Terms matched by a query term, best match first, and the total size of their postings.
+	 * Each of the codes is a matched term code shifted left 2 bits, or'ed with the quality of the match.
+	 */
+	private record Matches(List<Term> terms, long[] codes, long postings) {
+
+		/**
+		 * Gets the best quality of match of any of the term codes of a field (codes from start to end), 0 if none match.
+		 */
+		int quality(int[] fieldCodes, int start, int end) {
+			int best = 0;
+			for (int i = start; i < end; i++) {
+				int code = fieldCodes[i];
+				// The quality bits are never 0, so the search returns the insertion point of the code's entry.
+				int entry = -Arrays.binarySearch(codes, (long) code << 2) - 1;
+				if (entry < codes.length && codes[entry] >>> 2 == code) {
+					best = Math.max(best, (int) (codes[entry] & 3));
+				}
+			}
+			return best;
+		}
+	}
+
+	private record Hit(UUID id, int score) {
+	}
+}
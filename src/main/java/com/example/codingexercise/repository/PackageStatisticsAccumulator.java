@@ -0,0 +1,91 @@
+package com.example.codingexercise.repository;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.model.PriceSketch;
+
+/**
+ * Running statistics of the packages, used by PackageRepository.getStatistics(): the number of packages, the sum
+ * and a PriceSketch of their total prices, and the number of packages using each product (by product code).
+ * Packages are added and removed in O(1) per product, so the statistics are never worked out by reading every
+ * package. Only changed while the repository's write lock is held; the methods are synchronized so a snapshot
+ * is never taken half way through a change.
+ * @author tomd
+ *
+ */
+final class PackageStatisticsAccumulator {
+
+	private long count;
+
+	private long totalCents;
+
+	private PriceSketch prices = new PriceSketch();
+
+	/**
+	 * Number of packages using each product, indexed by product code.
+	 */
+	private long[] productUsage = new long[1024];
+
+	synchronized void add(CompactPackage compactPackage) {
+		count++;
+		totalCents += compactPackage.totalCents();
+		prices.add(compactPackage.totalCents());
+		int[] productCodes = compactPackage.productCodes();
+		for (int i = 0; i < productCodes.length; i++) {
+			if (isFirst(productCodes, i)) {
+				if (productCodes[i] >= productUsage.length) {
+					productUsage = Arrays.copyOf(productUsage, Math.max(productUsage.length * 2, productCodes[i] + 1));
+				}
+				productUsage[productCodes[i]]++;
+			}
+		}
+	}
+
+	synchronized void remove(CompactPackage compactPackage) {
+		count--;
+		totalCents -= compactPackage.totalCents();
+		prices.remove(compactPackage.totalCents());
+		int[] productCodes = compactPackage.productCodes();
+		for (int i = 0; i < productCodes.length; i++) {
+			if (isFirst(productCodes, i) && productCodes[i] < productUsage.length) {
+				productUsage[productCodes[i]]--;
+			}
+		}
+	}
+
+	synchronized void clear() {
+		count = 0;
+		totalCents = 0;
+		prices = new PriceSketch();
+		Arrays.fill(productUsage, 0);
+	}
+
+	/**
+	 * Copies the statistics, with product ids in place of product codes.
+	 */
+	synchronized PackageStatistics snapshot(ProductIdDictionary productIdDictionary) {
+		Map<String, Long> usage = new HashMap<>();
+		for (int productCode = 0; productCode < productUsage.length; productCode++) {
+			if (productUsage[productCode] > 0) {
+				usage.put(productIdDictionary.decode(productCode), productUsage[productCode]);
+			}
+		}
+		return new PackageStatistics(count, totalCents, prices.copy(), usage);
+	}
+
+	/**
+	 * Checks a product code is the first of its product in a package, so products used more than once by a
+	 * package count it once.
+	 */
+	private static boolean isFirst(int[] productCodes, int index) {
+		for (int i = 0; i < index; i++) {
+			if (productCodes[i] == productCodes[index]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
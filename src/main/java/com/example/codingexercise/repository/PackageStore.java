@@ -0,0 +1,84 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.ProductPackage;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backend used by the PackageRepository to keep packages across restarts.
+ * Writes are called while the repository write lock is held, so they are recorded in the
+ * order they were applied. Each write returns a future that completes once it is durable,
+ * which the repository waits on after releasing the lock.
+ * @author tomd
+ *
+ */
+public interface PackageStore {
+
+	/**
+	 * Loads the packages and product prices recorded before the last shutdown.
+	 */
+	StoredPackages load();
+
+	/**
+	 * Records a created, updated or repriced package.
+	 */
+	CompletableFuture<Void> save(ProductPackage productPackage);
+
+	/**
+	 * Records a deleted package.
+	 */
+	CompletableFuture<Void> delete(String id);
+
+	/**
+	 * Records the last known price of a product.
+	 */
+	CompletableFuture<Void> savePrice(String productId, int usdPrice);
+
+	/**
+	 * Records a package copied from another node of a cluster. Unlike save(), it is not replicated again.
+	 */
+	default CompletableFuture<Void> saveCopy(ProductPackage productPackage) {
+		return save(productPackage);
+	}
+
+	/**
+	 * Records a delete copied from another node of a cluster, or a package the node no longer holds.
+	 */
+	default CompletableFuture<Void> deleteCopy(String id) {
+		return delete(id);
+	}
+
+	/**
+	 * Records a product price copied from another node of a cluster.
+	 */
+	default CompletableFuture<Void> savePriceCopy(String productId, int usdPrice) {
+		return savePrice(productId, usdPrice);
+	}
+
+	/**
+	 * Whether the store keeps anything, i.e. snapshots are worth taking.
+	 */
+	boolean isDurable();
+
+	/**
+	 * Marks the point in the write order that a new snapshot will cover. Called while
+	 * the repository write lock is held, together with copying the repository contents.
+	 * 
+	 * @return checkpoint to pass to writeSnapshot().
+	 */
+	long startSnapshot();
+
+	/**
+	 * Writes a snapshot of the repository contents as they were when startSnapshot() was called,
+	 * then discards the writes it covers.
+	 */
+	void writeSnapshot(long checkpoint, Collection<ProductPackage> productPackages, Map<String, Integer> productPrices);
+
+	/**
+	 * Packages and product prices loaded from a store.
+	 */
+	record StoredPackages(Collection<ProductPackage> productPackages, Map<String, Integer> productPrices) {
+	}
+}
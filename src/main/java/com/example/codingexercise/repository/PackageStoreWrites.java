@@ -0,0 +1,257 @@
+package com.example.codingexercise.repository;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the PackageRepository has sent to the PackageStore, with the changes to the packages and prices each
+ * write makes durable. The changes made since the last write are made durable by the next one. If the store
+ * fails a write, the changes it did not keep are undone before the failure is thrown, so the repository never
+ * shows a change that would be lost on restart.
+ * Apart from await(), only used while the repository's write lock is held.
+ * @author tomd
+ *
+ */
+final class PackageStoreWrites {
+
+	/**
+	 * The packages and prices the changes were made to. Only called while the write lock is held.
+	 */
+	interface State {
+
+		CompactPackage getPackage(UUID id);
+
+		Integer getPrice(String productId);
+
+		/**
+		 * Puts back the package a change replaced, or removes the package if the change added it.
+		 */
+		void restorePackage(UUID id, CompactPackage previous);
+
+		/**
+		 * Puts back the price a change replaced, or removes the price if the change added it.
+		 */
+		void restorePrice(String productId, Integer previous);
+
+		/**
+		 * Called once the changes of the failed writes are undone.
+		 */
+		void undone();
+	}
+
+	private final ReentrantLock writeLock;
+
+	private final State state;
+
+	/**
+	 * Future of the last write sent to the package store.
+	 */
+	private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Changes made since the last write was sent to the package store.
+	 */
+	private final List<Change> unstoredChanges = new ArrayList<>();
+
+	/**
+	 * Writes sent to the package store, oldest first, with the changes each makes durable. Dropped once
+	 * durable, kept to undo their changes if they fail.
+	 */
+	private final ArrayDeque<StoreWrite> writes = new ArrayDeque<>();
+
+	/**
+	 * Set when a write to the package store fails, until its changes are undone.
+	 */
+	private volatile boolean failed;
+
+	PackageStoreWrites(ReentrantLock writeLock, State state) {
+		this.writeLock = writeLock;
+		this.state = state;
+	}
+
+	/**
+	 * Records a change to a package, either of which is null if there was no package. Must hold the write lock.
+	 */
+	void packageChanged(UUID id, CompactPackage previous, CompactPackage written) {
+		unstoredChanges.add(new Change(id, null, previous, written));
+	}
+
+	/**
+	 * Records a change to the price of a product, either of which is null if there was no price. Must hold the
+	 * write lock.
+	 */
+	void priceChanged(String productId, Integer previous, Integer written) {
+		unstoredChanges.add(new Change(null, productId, previous, written));
+	}
+
+	/**
+	 * Remembers a write sent to the package store, and the changes it makes durable. Must hold the write lock.
+	 */
+	CompletableFuture<Void> add(CompletableFuture<Void> write) {
+		while (!writes.isEmpty() && isDurable(writes.peekFirst().stored())) {
+			writes.pollFirst();
+		}
+		if (!isDurable(write)) {
+			writes.addLast(new StoreWrite(write, List.copyOf(unstoredChanges)));
+			write.whenComplete((stored, ex) -> {
+				if (ex != null) {
+					failed = true;
+				}
+			});
+		}
+		unstoredChanges.clear();
+		last = write;
+		return write;
+	}
+
+	/**
+	 * Gets the last write sent to the package store. As the store makes writes durable in order, waiting for
+	 * it waits for all of them. Must hold the write lock.
+	 */
+	CompletableFuture<Void> last() {
+		return last;
+	}
+
+	/**
+	 * Gets a future completed once every write not yet durable has completed, exceptionally if any of them
+	 * failed. Must hold the write lock.
+	 */
+	CompletableFuture<Void> inFlight() {
+		return CompletableFuture.allOf(writes.stream().map(StoreWrite::stored).toArray(CompletableFuture<?>[]::new));
+	}
+
+	/**
+	 * Waits for writes sent to the package store to be durable. If any write failed, the changes the store
+	 * did not keep are undone first, and the failure is rethrown. Must not hold the write lock.
+	 */
+	void await(CompletableFuture<Void> stored) {
+		try {
+			stored.join();
+		} finally {
+			if (failed) {
+				undoFailedWrites();
+			}
+		}
+	}
+
+	private static boolean isDurable(CompletableFuture<Void> write) {
+		return write.isDone() && !write.isCompletedExceptionally();
+	}
+
+	/**
+	 * Undoes the changes of every failed write to the package store, newest first, so the packages and prices
+	 * are as the store holds them. A change that was since overwritten by a later change is not undone,
+	 * instead the later change is made to undo to the state before both.
+	 */
+	private void undoFailedWrites() {
+		writeLock.lock();
+		try {
+			failed = false;
+			List<StoreWrite> held = new ArrayList<>(writes);
+			for (int i = held.size() - 1; i >= 0; i--) {
+				StoreWrite write = held.get(i);
+				if (!write.stored().isCompletedExceptionally()) {
+					continue;
+				}
+				List<Change> changes = write.changes();
+				for (int j = changes.size() - 1; j >= 0; j--) {
+					undo(changes.get(j), held.subList(i + 1, held.size()));
+				}
+				writes.remove(write);
+			}
+			// The undone changes themselves are not written, the store never had them.
+			unstoredChanges.clear();
+			state.undone();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Undoes one change, or if it was overwritten, moves the later change's previous state back past it.
+	 *
+	 * @param later the writes made after the change that are still held.
+	 */
+	private void undo(Change change, List<StoreWrite> later) {
+		Object current = change.id() != null ? state.getPackage(change.id()) : state.getPrice(change.productId());
+		if (change.isCurrent(current)) {
+			if (change.id() == null) {
+				state.restorePrice(change.productId(), (Integer) change.previous());
+			} else {
+				state.restorePackage(change.id(), (CompactPackage) change.previous());
+			}
+			return;
+		}
+		for (StoreWrite write : later) {
+			for (Change laterChange : write.changes()) {
+				if (laterChange.follows(change)) {
+					laterChange.setPrevious(change.previous());
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A change to a package (or if id is null, to the price of a product) from its previous to its written
+	 * state, either of which is null if there was no package or price.
+	 */
+	private static final class Change {
+
+		private final UUID id;
+
+		private final String productId;
+
+		private final Object written;
+
+		private Object previous;
+
+		Change(UUID id, String productId, Object previous, Object written) {
+			this.id = id;
+			this.productId = productId;
+			this.previous = previous;
+			this.written = written;
+		}
+
+		UUID id() {
+			return id;
+		}
+
+		String productId() {
+			return productId;
+		}
+
+		Object previous() {
+			return previous;
+		}
+
+		void setPrevious(Object previous) {
+			this.previous = previous;
+		}
+
+		/**
+		 * Whether the package or price is still as this change left it. Packages are compared by identity.
+		 */
+		boolean isCurrent(Object current) {
+			return id != null ? current == written : Objects.equals(current, written);
+		}
+
+		/**
+		 * Whether this change was made to the state another change left.
+		 */
+		boolean follows(Change earlier) {
+			return Objects.equals(id, earlier.id) && Objects.equals(productId, earlier.productId) && earlier.isCurrent(previous);
+		}
+	}
+
+	/**
+	 * A write sent to the package store and the changes it makes durable.
+	 */
+	private record StoreWrite(CompletableFuture<Void> stored, List<Change> changes) {
+	}
+}
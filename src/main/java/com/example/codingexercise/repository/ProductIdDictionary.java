@@ -0,0 +1,62 @@
+package com.example.codingexercise.repository;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding of product ids, so packages can hold their product ids as an int array and
+ * every package shares a single String instance per product id.
+ * Codes are never reused or removed; the dictionary grows with the number of different product ids
+ * ever used, which is bounded by the size of the product catalog.
+ * @author tomd
+ *
+ */
+final class ProductIdDictionary {
+
+	private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+
+	/**
+	 * Product ids indexed by code. Replaced, never resized in place, so readers see a complete array.
+	 */
+	private volatile String[] productIds = new String[1024];
+
+	/**
+	 * Number of codes handed out. Guarded by the repository write lock.
+	 */
+	private int size;
+
+	/**
+	 * Gets the code of a product id, adding the product id if it is new. Must hold the repository write lock.
+	 */
+	int encode(String productId) {
+		Integer code = codes.get(productId);
+		if (code != null) {
+			return code;
+		}
+		String[] current = productIds;
+		if (size == current.length) {
+			current = Arrays.copyOf(current, size * 2);
+		}
+		// Written before the code is published in a package or in the codes map.
+		current[size] = productId;
+		productIds = current;
+		codes.put(productId, size);
+		return size++;
+	}
+
+	/**
+	 * Gets the code of a product id, or -1 if the product id has never been encoded.
+	 */
+	int find(String productId) {
+		Integer code = productId == null ? null : codes.get(productId);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * Gets the product id for a code returned by encode().
+	 */
+	String decode(int code) {
+		return productIds[code];
+	}
+}
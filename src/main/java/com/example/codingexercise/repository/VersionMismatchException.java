@@ -0,0 +1,23 @@
+package com.example.codingexercise.repository;
+
+/**
+ * Thrown when a conditional update finds the package at a different version than the caller expected,
+ * i.e. the package was changed since the caller read it.
+ * @author tomd
+ *
+ */
+public class VersionMismatchException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long currentVersion;
+
+	public VersionMismatchException(String id, long expectedVersion, long currentVersion) {
+		super("Package " + id + " is at version " + currentVersion + ", not " + expectedVersion);
+		this.currentVersion = currentVersion;
+	}
+
+	public long getCurrentVersion() {
+		return currentVersion;
+	}
+}
@@ -1,29 +1,136 @@
 package com.example.codingexercise.service;
 
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 import com.example.codingexercise.dto.CurrencyExchanger;
 
 /**
  * Service used to access the currency exchange API.
  * Its main function is to get the exchange rate between two currencies.
+ * The full table of exchange rates for each source currency is cached and refreshed
+ * in the background (currency.exchange.refresh-interval). If a refresh fails the last
+ * good table continues to be used. If the first fetch for a currency fails (e.g. the currency is unknown or
+ * the exchange service is down) the failure is remembered for currency.exchange.failure-ttl, so
+ * lookups in that time get no rate without calling the exchange service again.
+ * Fetches from the exchange service and rate lookups are timed, failed fetches are counted
+ * (upstream.failures with upstream=exchange), as are lookups that find no rate and return -1.
+ * Fetches go through the exchange circuit breaker and bulkhead (see ResilienceConfig), so while the
+ * exchange service is failing they are skipped at once and the last good table is used.
+ * The non-blocking lookups never block the calling thread: if gateway.client.async-enabled is not set
+ * their fetches are made with the rest template on the exchangeFetchExecutor.
+ * A version number is kept that changes whenever a table changes, so converted responses can be cached.
  * @author tomd
  *
  */
 @Component
 public class CurrencyExchangeRateService {
 
+	/**
+	 * Exchange rate URL, relative to currency.exchange.base-url.
+	 */
+	private static final String EXCHANGE_URL = "/latest?from={source}";
+
 	private final RestTemplate restTemplate;
 
+	private final WebClient webClient;
+
+	private final boolean asyncEnabled;
+
+	private final Executor fetchExecutor;
+
+	/**
+	 * Exchange rate tables keyed by upper case source currency.
+	 */
+	private final Map<String, Map<String, Double>> exchangeRateTables = new ConcurrentHashMap<>();
+
+	/**
+	 * First fetches of exchange rate tables that are in progress, keyed by upper case source currency.
+	 * Concurrent requests for the same currency share the fetch.
+	 */
+	private final Map<String, CompletableFuture<Map<String, Double>>> pendingFetches = new ConcurrentHashMap<>();
+
+	/**
+	 * System.nanoTime() after which a source currency whose first fetch failed may be fetched again, keyed by
+	 * upper case source currency.
+	 */
+	private final Map<String, Long> failedFetches = new ConcurrentHashMap<>();
+
+	private final long failureTtlNanos;
+
+	/**
+	 * Incremented whenever an exchange rate table is added or changes.
+	 */
+	private final AtomicLong exchangeRatesVersion = new AtomicLong();
+
+	private final Timer lookupTimer;
+
+	private final Timer fetchTimer;
+
+	private final Counter failures;
+
+	private final Counter missingRates;
+
+	private final CircuitBreaker circuitBreaker;
+
+	private final Bulkhead bulkhead;
+
 	@Autowired
-	public CurrencyExchangeRateService(@Qualifier("currencyExchangeRateRestTemplate") final RestTemplate restTemplate) {
+	public CurrencyExchangeRateService(@Qualifier("currencyExchangeRateRestTemplate") final RestTemplate restTemplate,
+			@Qualifier("currencyExchangeRateWebClient") final WebClient webClient,
+			@Value("${gateway.client.async-enabled}") boolean asyncEnabled,
+			@Qualifier("exchangeFetchExecutor") Executor fetchExecutor,
+			@Value("${currency.exchange.failure-ttl}") Duration failureTtl, MeterRegistry meterRegistry,
+			@Qualifier("exchangeCircuitBreaker") CircuitBreaker circuitBreaker,
+			@Qualifier("exchangeBulkhead") Bulkhead bulkhead) {
 		this.restTemplate = restTemplate;
+		this.webClient = webClient;
+		this.asyncEnabled = asyncEnabled;
+		this.fetchExecutor = fetchExecutor;
+		this.failureTtlNanos = failureTtl.toNanos();
+		this.circuitBreaker = circuitBreaker;
+		this.bulkhead = bulkhead;
+		this.lookupTimer = Timer.builder("currency.exchange.lookups")
+				.description("Time taken to find an exchange rate, including any fetch from the exchange service")
+				.publishPercentileHistogram()
+				.register(meterRegistry);
+		this.fetchTimer = Timer.builder("currency.exchange.fetches")
+				.description("Time taken by calls to the exchange service")
+				.publishPercentileHistogram()
+				.register(meterRegistry);
+		this.failures = Counter.builder("upstream.failures")
+				.description("Failed calls to upstream services")
+				.tag("upstream", "exchange")
+				.register(meterRegistry);
+		this.missingRates = Counter.builder("currency.exchange.missing.rates")
+				.description("Exchange rate lookups that found no rate (returned -1)")
+				.register(meterRegistry);
+		Gauge.builder("currency.exchange.tables", exchangeRateTables, Map::size)
+				.description("Number of cached exchange rate tables")
+				.register(meterRegistry);
 	}
 
 	/**
@@ -37,27 +144,222 @@ public class CurrencyExchangeRateService {
 	 *         could not be found.
 	 */
 	public double getCurrencyExchangeRate(String source, String target) {
+		Timer.Sample sample = Timer.start();
+		double exchangeRate = findCurrencyExchangeRate(source, target);
+		sample.stop(lookupTimer);
+		return exchangeRate;
+	}
 
-		double exchangeRate = -1;
+	private double findCurrencyExchangeRate(String source, String target) {
 		if (source == null || source.length() < 3 || target == null || target.length() < 3) {
+			missingRates.increment();
 			return -1;
 		}
 		if (source.equalsIgnoreCase(target)) {
 			return 1.0d;
 		}
-		try {
-			CurrencyExchanger xChanger = restTemplate.getForObject("https://www.frankfurter.app/latest?from={source}",
-				CurrencyExchanger.class, source.toUpperCase());
-			if (xChanger.base().equalsIgnoreCase(source)) {
-				Map<String, Double> exchangeMap = xChanger.rates();
-				if (exchangeMap != null && exchangeMap.containsKey(target.toUpperCase())) {
-					exchangeRate = exchangeMap.get(target.toUpperCase());
-				}
+		return getExchangeRate(getExchangeRates(source), target);
+	}
+
+	/**
+	 * Gets the exchange rate to convert form source to target currency without blocking the
+	 * calling thread.
+	 * 
+	 * @param source String currency name as defined by
+	 *               https://www.frankfurter.app/latest?from
+	 * @param target String currency name as defined by
+	 *               https://www.frankfurter.app/latest?from
+	 * @return future completed with the exchange rate, or -1.0 if an exchange rate could not be found.
+	 */
+	public CompletableFuture<Double> getCurrencyExchangeRateAsync(String source, String target) {
+		if (source == null || source.length() < 3 || target == null || target.length() < 3) {
+			missingRates.increment();
+			return CompletableFuture.completedFuture(-1.0d);
+		}
+		if (source.equalsIgnoreCase(target)) {
+			return CompletableFuture.completedFuture(1.0d);
+		}
+		return getExchangeRatesAsync(source).thenApply(exchangeMap -> getExchangeRate(exchangeMap, target));
+	}
+
+	/**
+	 * Gets the table of exchange rates from the source currency to every other currency.
+	 * The exchange service is only called the first time a source currency is used, after that
+	 * the cached table is returned.
+	 * 
+	 * @param source String currency name as defined by
+	 *               https://www.frankfurter.app/latest?from
+	 * @return unmodifiable map of upper case target currency to exchange rate, or null if the
+	 *         exchange rates could not be found.
+	 */
+	public Map<String, Double> getExchangeRates(String source) {
+		if (source == null || source.length() < 3) {
+			return null;
+		}
+		Map<String, Double> exchangeMap = exchangeRateTables.get(source.toUpperCase());
+		return exchangeMap != null ? exchangeMap : loadExchangeRates(source.toUpperCase(), false).join();
+	}
+
+	/**
+	 * Gets the table of exchange rates from the source currency without blocking the calling thread.
+	 * The exchange service is not called if the table is cached, or if fetching it failed less than
+	 * currency.exchange.failure-ttl ago.
+	 * 
+	 * @param source String currency name as defined by
+	 *               https://www.frankfurter.app/latest?from
+	 * @return future completed with the unmodifiable map of upper case target currency to exchange
+	 *         rate, or with null if the exchange rates could not be found.
+	 */
+	public CompletableFuture<Map<String, Double>> getExchangeRatesAsync(String source) {
+		if (source == null || source.length() < 3) {
+			return CompletableFuture.completedFuture(null);
+		}
+		String key = source.toUpperCase();
+		Map<String, Double> exchangeMap = exchangeRateTables.get(key);
+		if (exchangeMap != null) {
+			return CompletableFuture.completedFuture(exchangeMap);
+		}
+		return loadExchangeRates(key, true);
+	}
+
+	/**
+	 * Gets an exchange rate table that is not cached, sharing a fetch already in progress.
+	 * 
+	 * @param key         upper case String currency name.
+	 * @param nonBlocking whether the fetch must not block the calling thread.
+	 */
+	private CompletableFuture<Map<String, Double>> loadExchangeRates(String key, boolean nonBlocking) {
+		Long retryAt = failedFetches.get(key);
+		if (retryAt != null) {
+			if (retryAt - System.nanoTime() > 0) {
+				return CompletableFuture.completedFuture(null);
+			}
+			failedFetches.remove(key, retryAt);
+		}
+		CompletableFuture<Map<String, Double>> fetch = new CompletableFuture<>();
+		CompletableFuture<Map<String, Double>> pending = pendingFetches.putIfAbsent(key, fetch);
+		if (pending != null) {
+			return pending;
+		}
+		fetchExchangeRates(key, nonBlocking).whenComplete((fetched, ex) -> {
+			if (fetched != null) {
+				putExchangeRates(key, fetched);
+			} else {
+				failedFetches.put(key, System.nanoTime() + failureTtlNanos);
+			}
+			pendingFetches.remove(key, fetch);
+			fetch.complete(fetched);
+		});
+		return fetch;
+	}
+
+	/**
+	 * Refreshes every cached exchange rate table. Tables that cannot be fetched are left unchanged.
+	 */
+	@Scheduled(fixedDelayString = "${currency.exchange.refresh-interval}", initialDelayString = "${currency.exchange.refresh-interval}")
+	public void refreshExchangeRates() {
+		for (String source : exchangeRateTables.keySet()) {
+			Map<String, Double> exchangeMap = fetchExchangeRates(source, false).join();
+			if (exchangeMap != null) {
+				putExchangeRates(source, exchangeMap);
+			}
+		}
+	}
+
+	/**
+	 * Gets the version of the exchange rates, which changes whenever a table of exchange rates is added or changes.
+	 * Read it before getting a rate: the rates got afterwards are at least as new as the version.
+	 */
+	public long getExchangeRatesVersion() {
+		return exchangeRatesVersion.get();
+	}
+
+	private void putExchangeRates(String source, Map<String, Double> exchangeMap) {
+		Map<String, Double> previous = exchangeRateTables.put(source, exchangeMap);
+		if (!exchangeMap.equals(previous)) {
+			exchangeRatesVersion.incrementAndGet();
+		}
+	}
+
+	private double getExchangeRate(Map<String, Double> exchangeMap, String target) {
+		if (exchangeMap != null) {
+			Double exchangeRate = exchangeMap.get(target.toUpperCase());
+			if (exchangeRate != null) {
+				return exchangeRate;
 			}
+		}
+		missingRates.increment();
+		return -1;
+	}
+
+	/**
+	 * Fetches the table of exchange rates for a source currency from the exchange service, using
+	 * the non-blocking client if gateway.client.async-enabled is set. Otherwise the rest template is used, on the
+	 * exchangeFetchExecutor if the fetch must not block the calling thread.
+	 * 
+	 * @param source      upper case String currency name.
+	 * @param nonBlocking whether the fetch must not block the calling thread.
+	 * @return future completed with the unmodifiable map of target currency to exchange rate, or with
+	 *         null if the exchange service could not be used (or the circuit breaker is open).
+	 */
+	private CompletableFuture<Map<String, Double>> fetchExchangeRates(String source, boolean nonBlocking) {
+		if (asyncEnabled) {
+			Timer.Sample sample = Timer.start();
+			return circuitBreaker.executeCompletionStage(Bulkhead.decorateCompletionStage(bulkhead,
+					() -> webClient.get().uri(EXCHANGE_URL, source).retrieve().bodyToMono(CurrencyExchanger.class).toFuture()))
+					.toCompletableFuture()
+					.handle((xChanger, ex) -> {
+						sample.stop(fetchTimer);
+						if (ex != null) {
+							if (!isRejected(ex instanceof CompletionException ? ex.getCause() : ex)) {
+								failures.increment();
+							}
+							return null;
+						}
+						return toExchangeRates(source, xChanger);
+					});
+		}
+		if (nonBlocking) {
+			return CompletableFuture.supplyAsync(() -> fetchExchangeRatesBlocking(source), fetchExecutor);
+		}
+		return CompletableFuture.completedFuture(fetchExchangeRatesBlocking(source));
+	}
+
+	/**
+	 * Fetches the table of exchange rates for a source currency with the rest template.
+	 * 
+	 * @param source upper case String currency name.
+	 * @return unmodifiable map of target currency to exchange rate, or null if the exchange service could not be
+	 *         used (or the circuit breaker is open).
+	 */
+	private Map<String, Double> fetchExchangeRatesBlocking(String source) {
+		Timer.Sample sample = Timer.start();
+		try {
+			return toExchangeRates(source, circuitBreaker.executeSupplier(
+					Bulkhead.decorateSupplier(bulkhead, () -> restTemplate.getForObject(EXCHANGE_URL, CurrencyExchanger.class, source))));
 		} catch (RestClientException ex) {
-			exchangeRate = -1;
+			// The last good table (if any) is kept.
+			failures.increment();
+			return null;
+		} catch (CallNotPermittedException | BulkheadFullException ex) {
+			return null;
+		} finally {
+			sample.stop(fetchTimer);
 		}
-		return exchangeRate;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Whether a fetch was not made because the circuit breaker is open or the bulkhead is full.
+	 */
+	private static boolean isRejected(Throwable ex) {
+		return ex instanceof CallNotPermittedException || ex instanceof BulkheadFullException;
+	}
+
+	private static Map<String, Double> toExchangeRates(String source, CurrencyExchanger xChanger) {
+		if (xChanger != null && source.equalsIgnoreCase(xChanger.base()) && xChanger.rates() != null) {
+			return Map.copyOf(xChanger.rates());
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,198 @@
+package com.example.codingexercise.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import com.example.codingexercise.dto.PackageChange;
+import com.example.codingexercise.repository.PackageRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Service streaming the changes to the packages (PackageRepository.getChanges()) to subscribers as Server-Sent
+ * Events, so clients can follow the packages without reading them all again.
+ * Each change is sent as an event named after its type (created, updated or deleted) with the change's sequence
+ * number as its id and the PackageChange as JSON data. A subscriber that starts without a sequence number, resumes
+ * from one whose changes are no longer held, or falls behind by more than package.changes.retention changes, is
+ * sent a reset event instead: it should read the packages again, then apply the changes that follow.
+ * Each subscriber has its own thread reading the change log from its own position, so writers never wait
+ * for subscribers and a slow subscriber only slows its own stream; how far it may fall behind is bounded
+ * by the change log. Events are written as text, a batch of up to package.changes.batch-size at a time, so the
+ * response is flushed once per batch rather than once per change.
+ * The number of subscribers (package.changes.subscribers), changes sent (package.changes.sent) and resets
+ * (package.changes.resets) are published.
+ * @author tomd
+ *
+ */
+@Component
+public class PackageChangeFeed {
+
+	/**
+	 * Name of the event telling a subscriber to read the packages again.
+	 */
+	public static final String RESET_EVENT = "reset";
+
+	private static final MediaType EVENT_TEXT = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+
+	private final PackageRepository packageRepository;
+
+	private final ObjectMapper objectMapper;
+
+	private final ExecutorService executor;
+
+	private final int maxSubscribers;
+
+	private final int batchSize;
+
+	private final Duration heartbeatInterval;
+
+	private final Duration subscriptionTimeout;
+
+	private final AtomicInteger subscribers = new AtomicInteger();
+
+	private final Counter sent;
+
+	private final Counter resets;
+
+	@Autowired
+	public PackageChangeFeed(PackageRepository packageRepository, ObjectMapper objectMapper,
+			@Qualifier("packageChangesExecutor") ExecutorService executor,
+			@Value("${package.changes.max-subscribers}") int maxSubscribers,
+			@Value("${package.changes.batch-size}") int batchSize,
+			@Value("${package.changes.heartbeat-interval}") Duration heartbeatInterval,
+			@Value("${package.changes.subscription-timeout}") Duration subscriptionTimeout, MeterRegistry meterRegistry) {
+		this.packageRepository = packageRepository;
+		this.objectMapper = objectMapper;
+		this.executor = executor;
+		this.maxSubscribers = maxSubscribers;
+		this.batchSize = batchSize;
+		this.heartbeatInterval = heartbeatInterval;
+		this.subscriptionTimeout = subscriptionTimeout;
+		Gauge.builder("package.changes.subscribers", subscribers, AtomicInteger::get)
+				.description("Number of subscribers to the package change feed")
+				.register(meterRegistry);
+		this.sent = Counter.builder("package.changes.sent")
+				.description("Package changes sent to subscribers")
+				.register(meterRegistry);
+		this.resets = Counter.builder("package.changes.resets")
+				.description("Subscribers told to read the packages again because their changes were no longer held")
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Starts streaming changes to a new subscriber.
+	 *
+	 * @param after sequence number of the last change the subscriber has, or null to start with a reset event.
+	 *
+	 * @return the emitter to return from the request as text/event-stream, or null if there are already
+	 *         max-subscribers subscribers.
+	 */
+	public ResponseBodyEmitter subscribe(Long after) {
+		if (subscribers.incrementAndGet() > maxSubscribers) {
+			subscribers.decrementAndGet();
+			return null;
+		}
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter(subscriptionTimeout.toMillis());
+		Subscription subscription = new Subscription(emitter);
+		emitter.onCompletion(subscription::close);
+		emitter.onTimeout(subscription::close);
+		emitter.onError(ex -> subscription.close());
+		try {
+			executor.execute(() -> subscription.run(after));
+		} catch (RejectedExecutionException ex) {
+			subscribers.decrementAndGet();
+			throw ex;
+		}
+		return emitter;
+	}
+
+	/**
+	 * One subscriber's position in the change log.
+	 */
+	private class Subscription {
+
+		private final ResponseBodyEmitter emitter;
+
+		private volatile boolean open = true;
+
+		Subscription(ResponseBodyEmitter emitter) {
+			this.emitter = emitter;
+		}
+
+		void close() {
+			open = false;
+		}
+
+		void run(Long after) {
+			try {
+				long sequence = after == null ? reset() : after;
+				while (open) {
+					List<PackageChange> changes = packageRepository.getChanges(sequence, batchSize);
+					if (changes == null) {
+						resets.increment();
+						sequence = reset();
+					} else if (!changes.isEmpty()) {
+						send(changes);
+						sequence = changes.get(changes.size() - 1).sequence();
+					} else if (!packageRepository.awaitChanges(sequence, heartbeatInterval) && open) {
+						emitter.send(":heartbeat\n\n", EVENT_TEXT);
+					}
+				}
+			} catch (IOException | IllegalStateException ex) {
+				// The subscriber has gone, or the subscription has timed out.
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				subscribers.decrementAndGet();
+				emitter.complete();
+			}
+		}
+
+		/**
+		 * Sends a reset event holding the sequence number the following changes start after.
+		 */
+		private long reset() throws IOException {
+			long sequence = packageRepository.getChangeSequence();
+			emitter.send(event(sequence, RESET_EVENT, Long.toString(sequence), new StringBuilder()).toString(), EVENT_TEXT);
+			return sequence;
+		}
+
+		/**
+		 * Sends a batch of changes, flushing the response once.
+		 */
+		private void send(List<PackageChange> changes) throws IOException {
+			StringBuilder events = new StringBuilder();
+			for (PackageChange change : changes) {
+				event(change.sequence(), change.type().name().toLowerCase(Locale.ROOT), objectMapper.writeValueAsString(change),
+						events);
+			}
+			emitter.send(events.toString(), EVENT_TEXT);
+			sent.increment(changes.size());
+		}
+
+		/**
+		 * Appends an event in the text/event-stream format. The data must be a single line, as JSON written
+		 * without indentation is.
+		 */
+		private static StringBuilder event(long sequence, String name, String data, StringBuilder events) {
+			return events.append("id:").append(sequence).append("\nevent:").append(name).append("\ndata:").append(data)
+					.append("\n\n");
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.example.codingexercise.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import com.example.codingexercise.gateway.ProductCache;
+import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.repository.PackageRepository;
+
+/**
+ * Service used to keep package total prices up to date when product prices change.
+ * Price changes are either pushed to priceChanged() or found by polling the product service
+ * (product.reprice.poll-enabled). Only the packages containing a changed product are repriced.
+ * @author tomd
+ *
+ */
+@Component
+public class PackageRepricingService {
+
+	private final PackageRepository packageRepository;
+
+	private final ProductServiceGateway productServiceGateway;
+
+	private final ProductCache productCache;
+
+	private final boolean pollEnabled;
+
+	@Autowired
+	public PackageRepricingService(PackageRepository packageRepository, ProductServiceGateway productServiceGateway,
+			ProductCache productCache, @Value("${product.reprice.poll-enabled}") boolean pollEnabled) {
+		this.packageRepository = packageRepository;
+		this.productServiceGateway = productServiceGateway;
+		this.productCache = productCache;
+		this.pollEnabled = pollEnabled;
+	}
+
+	/**
+	 * Applies the current price of a product to the cache and to every package containing it.
+	 * 
+	 * @param product non-null product with its current USD price.
+	 * 
+	 * @return the number of packages repriced.
+	 */
+	public int priceChanged(Product product) {
+		productCache.put(product);
+		return packageRepository.reprice(product.id(), product.usdPrice());
+	}
+
+	/**
+	 * Fetches the price of every product used by a package and reprices packages whose products have
+	 * changed price. Products that cannot be fetched are skipped until the next poll.
+	 */
+	@Scheduled(fixedDelayString = "${product.reprice.poll-interval}", initialDelayString = "${product.reprice.poll-interval}")
+	public void pollPrices() {
+		if (!pollEnabled) {
+			return;
+		}
+		for (Product product : fetchProducts(Set.copyOf(packageRepository.getProductIds())).values()) {
+			priceChanged(product);
+		}
+	}
+
+	private Map<String, Product> fetchProducts(Set<String> productIds) {
+		if (productCache.isMultiGetEnabled()) {
+			return productServiceGateway.getProducts(productIds);
+		}
+		Map<String, Product> products = new HashMap<>();
+		for (String productId : productIds) {
+			try {
+				Product product = productServiceGateway.getProduct(productId);
+				if (product != null) {
+					products.put(productId, product);
+				}
+			} catch (RestClientException ex) {
+				// Skip, the product is fetched again on the next poll.
+			} catch (CallNotPermittedException | BulkheadFullException ex) {
+				// The product service is unavailable, the rest are fetched on the next poll.
+				break;
+			}
+		}
+		return products;
+	}
+}
@@ -1,8 +1,11 @@
 package com.example.codingexercise;
 
 //import com.example.codingexercise.controller.PackageController;
+import com.example.codingexercise.dto.PackageStatisticsSummary;
 import com.example.codingexercise.model.ProductPackage;
 import com.example.codingexercise.repository.PackageRepository;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.stub.StubUpstreamServer;
 import org.junit.jupiter.api.Test;
 //import org.junit.jupiter.api.extension.ExtendWith;
 //import org.junit.runner.RunWith;
@@ -13,10 +16,26 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
 
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -26,6 +45,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Tests the Package Controller rest API.
+ * The product service and the exchange service are replaced by a local StubUpstreamServer.
  */
 //@SpringBootTest(classes=com.example.codingexercise.controller.PackageController.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 
@@ -48,6 +68,25 @@ class PackageControllerTests {
 	 */
 	private final double [] PRODUCT_PRICE = {899.0, 999.0};
 
+	private static final StubUpstreamServer UPSTREAMS = startUpstreams();
+
+	private static StubUpstreamServer startUpstreams() {
+		try {
+			StubUpstreamServer upstreams = new StubUpstreamServer(0, Duration.ZERO, 0, 0);
+			upstreams.addProduct(new Product("7dgX6XzU3Wds", "Product 1", 899));
+			upstreams.addProduct(new Product("DXSQpv6XVeJm", "Product 2", 999));
+			return upstreams;
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	@DynamicPropertySource
+	static void upstreamProperties(DynamicPropertyRegistry registry) {
+		registry.add("product.gateway.base-url", UPSTREAMS::getProductBaseUrl);
+		registry.add("currency.exchange.base-url", UPSTREAMS::getExchangeBaseUrl);
+	}
+
     @Autowired
     PackageControllerTests(TestRestTemplate restTemplate, PackageRepository packageRepository) {
 		this.restTemplate = restTemplate;
@@ -137,6 +176,12 @@ class PackageControllerTests {
 				HttpMethod.PUT, httpEntity, ProductPackage.class);
 		assertEquals(HttpStatus.OK, updated.getStatusCode(), "Unexpected status code");
 
+		ProductPackage other = packageRepository.create("Test Name 5", "Test Desc 5", List.of(PRODUCT_IDS[0]));
+		ResponseEntity<ProductPackage> mismatched = restTemplate.exchange("/packages/" + other.getId(),
+				HttpMethod.PUT, httpEntity, ProductPackage.class);
+		assertEquals(HttpStatus.BAD_REQUEST, mismatched.getStatusCode(), "Body id not checked against path id");
+		assertEquals("Test Name 5", packageRepository.get(other.getId()).getName(), "Unexpected update");
+
 		ProductPackage updatedProductPackageInRepository = packageRepository.get(initialProductPackage.getId());
 
 		// Changed all the fields via rest put. Only the ids should the same. Check
@@ -160,6 +205,85 @@ class PackageControllerTests {
 
 	}
 
+	/**
+	 * Verify a GET with the current ETag in If-None-Match gets NOT_MODIFIED, until the package changes.
+	 */
+	@Test
+	void conditionalGetPackage() {
+		ProductPackage productPackage = packageRepository.create("Test Name 6", "Test Desc 6", List.of(PRODUCT_IDS[0]));
+		ResponseEntity<ProductPackage> fetched = restTemplate.getForEntity("/packages/{id}", ProductPackage.class, productPackage.getId());
+		String etag = fetched.getHeaders().getETag();
+		assertNotNull(etag, "Missing ETag");
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfNoneMatch(etag);
+		ResponseEntity<ProductPackage> notModified = restTemplate.exchange("/packages/" + productPackage.getId(),
+				HttpMethod.GET, new HttpEntity<>(headers), ProductPackage.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode(), "Unexpected status code");
+
+		packageRepository.update(productPackage.getId(), "Test Name 7", "Test Desc 7", List.of(PRODUCT_IDS[1]));
+		ResponseEntity<ProductPackage> modified = restTemplate.exchange("/packages/" + productPackage.getId(),
+				HttpMethod.GET, new HttpEntity<>(headers), ProductPackage.class);
+		assertEquals(HttpStatus.OK, modified.getStatusCode(), "Unexpected status code");
+		assertEquals("Test Name 7", modified.getBody().getName(), "Unexpected name");
+		assertNotEquals(etag, modified.getHeaders().getETag(), "Unexpected ETag");
+	}
+
+	/**
+	 * Verify a PUT or PATCH with a stale or weak ETag in If-Match gets PRECONDITION_FAILED, and a PATCH only changes
+	 * the given fields.
+	 */
+	@Test
+	void conditionalUpdatePackage() {
+		ProductPackage productPackage = packageRepository.create("Test Name 8", "Test Desc 8", List.of(PRODUCT_IDS[0]));
+		String etag = restTemplate.getForEntity("/packages/{id}", ProductPackage.class, productPackage.getId())
+				.getHeaders().getETag();
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfMatch(etag);
+		ProductPackage changes = new ProductPackage(null, "Test Name 9", null, null, 0);
+		ResponseEntity<ProductPackage> patched = restTemplate.exchange("/packages/" + productPackage.getId(),
+				HttpMethod.PATCH, new HttpEntity<>(changes, headers), ProductPackage.class);
+		assertEquals(HttpStatus.OK, patched.getStatusCode(), "Unexpected status code");
+		assertEquals("Test Name 9", patched.getBody().getName(), "Unexpected name");
+		assertEquals("Test Desc 8", patched.getBody().getDescription(), "Unexpected description");
+		assertNotEquals(etag, patched.getHeaders().getETag(), "Unexpected ETag");
+
+		ProductPackage replacement = new ProductPackage(productPackage.getId(), "Test Name 10", "Test Desc 10",
+				List.of(PRODUCT_IDS[1]), PRODUCT_PRICE[1]);
+		ResponseEntity<ProductPackage> stale = restTemplate.exchange("/packages/" + productPackage.getId(),
+				HttpMethod.PUT, new HttpEntity<>(replacement, headers), ProductPackage.class);
+		assertEquals(HttpStatus.PRECONDITION_FAILED, stale.getStatusCode(), "Unexpected status code");
+		assertEquals("Test Name 9", packageRepository.get(productPackage.getId()).getName(), "Stale update applied");
+
+		HttpHeaders weakHeaders = new HttpHeaders();
+		weakHeaders.setIfMatch("W/" + patched.getHeaders().getETag());
+		ResponseEntity<ProductPackage> weak = restTemplate.exchange("/packages/" + productPackage.getId(),
+				HttpMethod.PATCH, new HttpEntity<>(changes, weakHeaders), ProductPackage.class);
+		assertEquals(HttpStatus.PRECONDITION_FAILED, weak.getStatusCode(), "Weak ETag matched");
+	}
+
+	/**
+	 * Verify search returns the matching packages a page at a time.
+	 */
+	@Test
+	void searchPackages() {
+		ProductPackage first = packageRepository.create("Searchable Alpha", "Test Desc", List.of(PRODUCT_IDS[0]));
+		ProductPackage second = packageRepository.create("Searchable Beta", "Test Desc", List.of(PRODUCT_IDS[1]));
+
+		ResponseEntity<ProductPackage[]> page = restTemplate.getForEntity("/packages/search?q=searchab&limit=1",
+				ProductPackage[].class);
+		assertEquals(HttpStatus.OK, page.getStatusCode(), "Unexpected status code");
+		assertEquals(first.getId().compareTo(second.getId()) < 0 ? first.getId() : second.getId(), page.getBody()[0].getId(),
+				"Unexpected package");
+		assertEquals("1", page.getHeaders().getFirst("X-Next-Offset"), "Unexpected next offset");
+
+		ResponseEntity<ProductPackage[]> alpha = restTemplate.getForEntity("/packages/search?q=alpha searchable",
+				ProductPackage[].class);
+		assertEquals(1, alpha.getBody().length, "Unexpected number of packages");
+		assertEquals(first.getId(), alpha.getBody()[0].getId(), "Unexpected package");
+	}
+
 	/**
 	 * Verify REST delete of product package. 
 	 * 	Steps 1. 
@@ -219,4 +343,143 @@ class PackageControllerTests {
 
 	}
 
+	/**
+	 * Verify a package is sent as CBOR or Smile when the Accept header asks for it, with an ETag of its own.
+	 */
+	@Test
+	void getPackageInBinaryEncodings() {
+		ProductPackage productPackage = packageRepository.create("Test Name 10", "Test Desc 10", List.of(PRODUCT_IDS[0]));
+		String jsonEtag = restTemplate.getForEntity("/packages/{id}", ProductPackage.class, productPackage.getId())
+				.getHeaders().getETag();
+
+		for (MediaType mediaType : List.of(MediaType.APPLICATION_CBOR, new MediaType("application", "x-jackson-smile"))) {
+			HttpHeaders headers = new HttpHeaders();
+			headers.setAccept(List.of(mediaType));
+			ResponseEntity<ProductPackage> fetched = restTemplate.exchange("/packages/" + productPackage.getId(),
+					HttpMethod.GET, new HttpEntity<>(headers), ProductPackage.class);
+			assertEquals(HttpStatus.OK, fetched.getStatusCode(), "Unexpected status code");
+			assertEquals(mediaType, fetched.getHeaders().getContentType(), "Unexpected content type");
+			assertEquals(productPackage.getName(), fetched.getBody().getName(), "Unexpected name");
+			assertEquals(productPackage.getTotalPrice(), fetched.getBody().getTotalPrice(), "Unexpected product price");
+			assertNotEquals(jsonEtag, fetched.getHeaders().getETag(), "Unexpected ETag");
+		}
+	}
+
+	/**
+	 * Verify every response that depends on Accept and Accept-Encoding says so in Vary, NOT_MODIFIED included.
+	 */
+	@Test
+	void varyNegotiatedResponses() {
+		ProductPackage productPackage = packageRepository.create("Test Name 11", "Test Desc 11", List.of(PRODUCT_IDS[0]));
+		for (String path : List.of("/packages/" + productPackage.getId(), "/packages", "/packages/statistics")) {
+			ResponseEntity<byte[]> fetched = restTemplate.getForEntity(path, byte[].class);
+			assertEquals(HttpStatus.OK, fetched.getStatusCode(), "Unexpected status code");
+			assertEquals(List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING), fetched.getHeaders().getVary(),
+					"Unexpected Vary for " + path);
+
+			HttpHeaders headers = new HttpHeaders();
+			headers.setIfNoneMatch(fetched.getHeaders().getETag());
+			ResponseEntity<byte[]> notModified = restTemplate.exchange(path, HttpMethod.GET, new HttpEntity<>(headers),
+					byte[].class);
+			assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode(), "Unexpected status code");
+			assertEquals(List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING), notModified.getHeaders().getVary(),
+					"Unexpected Vary for " + path);
+		}
+	}
+
+	/**
+	 * Verify a list of packages is gzip compressed when the client accepts gzip and the list is large enough.
+	 */
+	@Test
+	void compressPackages() throws IOException, InterruptedException {
+		for (int i = 0; i < 20; i++) {
+			packageRepository.create("Test Name " + i, "Test Desc " + i, List.of(PRODUCT_IDS[0], PRODUCT_IDS[1]));
+		}
+		HttpResponse<InputStream> response = HttpClient.newHttpClient().send(
+				HttpRequest.newBuilder(URI.create(restTemplate.getRootUri() + "/packages"))
+						.header(HttpHeaders.ACCEPT_ENCODING, "gzip").build(), HttpResponse.BodyHandlers.ofInputStream());
+		assertEquals(HttpStatus.OK.value(), response.statusCode(), "Unexpected status code");
+		assertEquals("gzip", response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null), "Expected gzip");
+		assertTrue(response.headers().firstValue(HttpHeaders.ETAG).orElse("").endsWith("-gzip\""), "Unexpected ETag");
+		try (InputStream body = new GZIPInputStream(response.body())) {
+			String json = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+			assertTrue(json.startsWith("[") && json.contains("Test Name 19"), "Unexpected body");
+		}
+	}
+
+	/**
+	 * Verify the statistics count every package and report the percentiles and number of products asked for.
+	 */
+	@Test
+	void getStatistics() {
+		packageRepository.create("Test Name", "Test Desc", List.of(PRODUCT_IDS[0], PRODUCT_IDS[1]));
+
+		ResponseEntity<PackageStatisticsSummary> fetched = restTemplate.getForEntity(
+				"/packages/statistics?percentiles=50,99.9&top=1", PackageStatisticsSummary.class);
+		assertEquals(HttpStatus.OK, fetched.getStatusCode(), "Unexpected status code");
+		assertNotNull(fetched.getHeaders().getETag(), "Missing ETag");
+		PackageStatisticsSummary statistics = fetched.getBody();
+		assertEquals(packageRepository.getAll().size(), statistics.count(), "Unexpected count");
+		assertEquals("USD", statistics.currency(), "Unexpected currency");
+		assertEquals(List.of("p50", "p99.9"), List.copyOf(statistics.percentiles().keySet()), "Unexpected percentiles");
+		assertEquals(1, statistics.topProducts().size(), "Unexpected product count");
+		assertTrue(statistics.maxPrice() >= (PRODUCT_PRICE[0] + PRODUCT_PRICE[1]) * 0.99, "Unexpected highest price");
+
+		// PAB is pegged to USD, so converted at a rate of exactly 1.0, but still reported in PAB.
+		PackageStatisticsSummary converted = restTemplate.getForObject("/packages/statistics?currencyToUse=PAB",
+				PackageStatisticsSummary.class);
+		assertEquals("PAB", converted.currency(), "Unexpected currency");
+		assertEquals(statistics.maxPrice(), converted.maxPrice(), "Unexpected converted price");
+
+		ResponseEntity<Object> rejected = restTemplate.getForEntity("/packages/statistics?percentiles=101", Object.class);
+		assertEquals(HttpStatus.BAD_REQUEST, rejected.getStatusCode(), "Unexpected status code");
+	}
+
+	/**
+	 * Verify the change feed streams the changes after a sequence number, in order, and starts with a reset
+	 * event when the changes asked for are no longer held.
+	 */
+	@Test
+	void streamChanges() throws IOException, InterruptedException {
+		long sequence = packageRepository.getChangeSequence();
+		ProductPackage productPackage = packageRepository.create("Test Name", "Test Desc", List.of(PRODUCT_IDS[0]));
+		packageRepository.update(productPackage.getId(), "Test Name 2", "Test Desc", List.of(PRODUCT_IDS[1]));
+		packageRepository.delete(productPackage.getId());
+
+		List<String> events = readEvents("/packages/changes?since=" + sequence, 3);
+		assertEquals(List.of("created", "updated", "deleted"), events.stream().map(event -> event.split("\n")[1]).toList(),
+				"Unexpected events");
+		assertEquals("id:" + (sequence + 1), events.get(0).split("\n")[0], "Unexpected event id");
+		assertTrue(events.get(0).contains(productPackage.getId()), "Missing package id");
+		assertTrue(events.get(1).contains("\"totalPrice\":" + PRODUCT_PRICE[1]), "Missing package");
+
+		List<String> reset = readEvents("/packages/changes?since=0", 1);
+		assertEquals("reset", reset.get(0).split("\n")[1], "Expected a reset event");
+	}
+
+	/**
+	 * Reads events from an event stream, then closes it. Each event is returned as its lines, with the event
+	 * line reduced to the event name.
+	 */
+	private List<String> readEvents(String path, int count) throws IOException, InterruptedException {
+		HttpResponse<InputStream> response = HttpClient.newHttpClient().send(
+				HttpRequest.newBuilder(URI.create(restTemplate.getRootUri() + path)).header(HttpHeaders.ACCEPT, "text/event-stream")
+						.build(), HttpResponse.BodyHandlers.ofInputStream());
+		assertEquals(HttpStatus.OK.value(), response.statusCode(), "Unexpected status code");
+		List<String> events = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+			StringBuilder event = new StringBuilder();
+			String line;
+			while (events.size() < count && (line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					events.add(event.toString());
+					event.setLength(0);
+				} else if (!line.startsWith(":")) {
+					event.append(line.startsWith("event:") ? line.substring("event:".length()) : line).append('\n');
+				}
+			}
+		}
+		return events;
+	}
+
 }
@@ -0,0 +1,289 @@
+package com.example.codingexercise.cluster;
+
+import com.example.codingexercise.CodingExerciseApplication;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageOperationResult;
+import com.example.codingexercise.dto.PackageStatisticsSummary;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.model.ProductPackage;
+import com.example.codingexercise.repository.PackageRepository;
+import com.example.codingexercise.stub.StubUpstreamServer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests cluster mode with three nodes of the application running in this JVM on localhost. Two nodes start
+ * together, the third joins through a seed node, then one of the first two is removed.
+ * The product service and the exchange service are replaced by a local StubUpstreamServer.
+ */
+class ClusterTests {
+
+	private static final int PACKAGES = 30;
+
+	private static final String SECRET = "test-secret";
+
+	private static TestRestTemplate restTemplate;
+
+	private static StubUpstreamServer upstreams;
+
+	private static final List<ConfigurableApplicationContext> NODES = new ArrayList<>();
+
+	private static final List<String> URLS = new ArrayList<>();
+
+	@BeforeAll
+	static void startNodes() throws IOException {
+		upstreams = new StubUpstreamServer(0, Duration.ZERO, 0, 0);
+		upstreams.addProduct(new Product("p1", "Product 1", 100));
+		upstreams.addProduct(new Product("p2", "Product 2", 250));
+		for (int i = 0; i < 3; i++) {
+			try (ServerSocket socket = new ServerSocket(0)) {
+				URLS.add("http://localhost:" + socket.getLocalPort());
+			}
+		}
+		NODES.add(startNode(0, "--cluster.members=" + URLS.get(1)));
+		NODES.add(startNode(1, "--cluster.members=" + URLS.get(0)));
+		// Uses the application's ObjectMapper to read packages.
+		restTemplate = new TestRestTemplate(NODES.get(0).getBean(RestTemplateBuilder.class));
+	}
+
+	private static ConfigurableApplicationContext startNode(int node, String membership) {
+		String url = URLS.get(node);
+		return new SpringApplicationBuilder(CodingExerciseApplication.class).run(
+				"--server.port=" + url.substring(url.lastIndexOf(':') + 1),
+				"--cluster.enabled=true",
+				"--cluster.self-url=" + url,
+				"--cluster.secret=" + SECRET,
+				membership,
+				"--product.gateway.base-url=" + upstreams.getProductBaseUrl(),
+				"--currency.exchange.base-url=" + upstreams.getExchangeBaseUrl(),
+				"--logging.level.root=ERROR");
+	}
+
+	@AfterAll
+	static void stopNodes() {
+		NODES.forEach(ConfigurableApplicationContext::close);
+		upstreams.close();
+	}
+
+	/**
+	 * Verify packages are readable and writable through any node, are held by two nodes each, and are moved
+	 * when a node joins and when a node leaves, and that the statistics count each package once.
+	 */
+	@Test
+	void joinAndLeave() {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < PACKAGES; i++) {
+			ResponseEntity<ProductPackage> created = restTemplate.postForEntity(URLS.get(i % 2) + "/packages",
+					new ProductPackage(null, "Package " + i, "Desc", List.of("p1"), 0), ProductPackage.class);
+			assertEquals(HttpStatus.OK, created.getStatusCode(), "Unexpected status code");
+			ids.add(created.getBody().getId());
+		}
+		assertHolders(ids, 2, 2);
+		assertReadable(ids, 2);
+		assertEquals(PACKAGES, restTemplate.getForObject(URLS.get(1) + "/packages/statistics", PackageStatisticsSummary.class)
+				.count(), "Unexpected statistics");
+
+		// Third node joins through the first.
+		NODES.add(startNode(2, "--cluster.seed-url=" + URLS.get(0)));
+		waitFor(() -> holders(ids, 3) == 2 * PACKAGES && holdersOk(ids, 3, 2));
+		assertTrue(count(NODES.get(2), ids) > 0, "No packages moved to the new node");
+		assertReadable(ids, 3);
+
+		// Writes through any node go to the primary and are replicated.
+		String updatedId = ids.get(0);
+		restTemplate.put(URLS.get(2) + "/packages/" + updatedId,
+				new ProductPackage(updatedId, "Updated", "Desc", List.of("p1", "p2"), 0));
+		for (int node = 0; node < 3; node++) {
+			ProductPackage productPackage = restTemplate.getForObject(URLS.get(node) + "/packages/" + updatedId,
+					ProductPackage.class);
+			assertEquals("Updated", productPackage.getName(), "Update not forwarded");
+			assertEquals(350.0, productPackage.getTotalPrice(), "Unexpected product price");
+		}
+		assertHolders(List.of(updatedId), 3, 2);
+		HttpHeaders negotiated = new HttpHeaders();
+		negotiated.setAccept(List.of(MediaType.APPLICATION_CBOR));
+		negotiated.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		for (int node = 0; node < 3; node++) {
+			ResponseEntity<byte[]> read = restTemplate.exchange(URLS.get(node) + "/packages/" + updatedId, HttpMethod.GET,
+					new HttpEntity<>(negotiated), byte[].class);
+			assertEquals(MediaType.APPLICATION_CBOR, read.getHeaders().getContentType(), "Accept not forwarded");
+			assertTrue(read.getHeaders().getETag().endsWith("-cbor-gzip\""), "Accept-Encoding not forwarded");
+			assertEquals(List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING), read.getHeaders().getVary(),
+					"Vary not returned");
+		}
+		ResponseEntity<List<PackageOperationResult>> deleted = restTemplate.exchange(URLS.get(1) + "/packages/bulk",
+				HttpMethod.POST, new HttpEntity<>(List.of(
+						new PackageOperation(PackageOperation.Type.DELETE, ids.get(1), null, null, null),
+						new PackageOperation(PackageOperation.Type.DELETE, ids.get(2), null, null, null))),
+				new ParameterizedTypeReference<>() {
+				});
+		assertEquals(List.of(200, 200), deleted.getBody().stream().map(PackageOperationResult::status).toList(),
+				"Unexpected bulk results");
+		List<String> remaining = ids.subList(3, ids.size());
+		assertEquals(0, holders(ids.subList(1, 3), 3), "Delete not replicated");
+
+		// Second node leaves.
+		ResponseEntity<String> left = restTemplate.exchange(URLS.get(0) + "/cluster/members?url=" + URLS.get(1),
+				HttpMethod.DELETE, null, String.class);
+		assertEquals(HttpStatus.OK, left.getStatusCode(), "Unexpected status code");
+		waitFor(() -> count(NODES.get(1), remaining) == 0 && count(NODES.get(0), remaining) == remaining.size()
+				&& count(NODES.get(2), remaining) == remaining.size());
+		ProductPackage[] all = restTemplate.getForObject(URLS.get(2) + "/packages", ProductPackage[].class);
+		assertEquals(remaining.size() + 1, all.length, "Unexpected package count");
+		waitFor(() -> restTemplate.getForObject(URLS.get(0) + "/packages/statistics", PackageStatisticsSummary.class)
+				.count() == remaining.size() + 1);
+	}
+
+	/**
+	 * Verify the header marking requests sent by another node is ignored without the cluster secret, so a
+	 * client cannot skip the routing of writes or the page size limit, and that a node rejects a forwarded write
+	 * of a package it is not the primary of.
+	 */
+	@Test
+	void forwardedOnlyFromMembers() {
+		List<String> members = NODES.get(0).getBean(ClusterMembership.class).getMembers().members();
+		String primary = URLS.get(0);
+		String other = members.stream().filter(node -> !node.equals(primary)).findFirst().orElseThrow();
+		ProductPackage created = restTemplate.postForObject(primary + "/packages",
+				new ProductPackage(null, "Routed", "Desc", List.of("p1"), 0), ProductPackage.class);
+		String id = created.getId();
+
+		HttpHeaders spoofed = new HttpHeaders();
+		spoofed.set(ClusterClient.FORWARDED_HEADER, primary);
+		ResponseEntity<Void> routed = restTemplate.exchange(other + "/packages/" + id, HttpMethod.PUT,
+				new HttpEntity<>(new ProductPackage(id, "Spoofed", "Desc", List.of("p1"), 0), spoofed), Void.class);
+		assertEquals(HttpStatus.OK, routed.getStatusCode(), "Unexpected status code");
+		assertEquals("Spoofed", NODES.get(0).getBean(PackageRepository.class).get(id).getName(), "Write not routed");
+		assertEquals(HttpStatus.BAD_REQUEST, restTemplate.exchange(other + "/packages/search?q=routed&limit=5000",
+				HttpMethod.GET, new HttpEntity<>(spoofed), String.class).getStatusCode(), "Page size not limited");
+
+		HttpHeaders forwarded = new HttpHeaders();
+		forwarded.set(ClusterClient.FORWARDED_HEADER, primary);
+		forwarded.set(ClusterClient.SECRET_HEADER, SECRET);
+		ResponseEntity<Void> misrouted = restTemplate.exchange(other + "/packages/" + id, HttpMethod.PUT,
+				new HttpEntity<>(new ProductPackage(id, "Misrouted", "Desc", List.of("p1"), 0), forwarded), Void.class);
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, misrouted.getStatusCode(), "Write not rejected");
+		assertEquals(HttpStatus.OK, restTemplate.exchange(other + "/packages/search?q=routed&limit=5000", HttpMethod.GET,
+				new HttpEntity<>(forwarded), String.class).getStatusCode(), "Unexpected status code");
+
+		restTemplate.delete(primary + "/packages/" + id);
+	}
+
+	/**
+	 * Verify the ETag of the list of packages is kept until a package is written on another node.
+	 */
+	@Test
+	void listEtag() {
+		List<String> members = NODES.get(0).getBean(ClusterMembership.class).getMembers().members();
+		String other = members.stream().filter(node -> !node.equals(URLS.get(0))).findFirst().orElseThrow();
+		String etag = restTemplate.getForEntity(URLS.get(0) + "/packages", String.class).getHeaders().getETag();
+		assertNotNull(etag, "Missing ETag");
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfNoneMatch(etag);
+		assertEquals(HttpStatus.NOT_MODIFIED, restTemplate.exchange(URLS.get(0) + "/packages", HttpMethod.GET,
+				new HttpEntity<>(headers), String.class).getStatusCode(), "Unexpected status code");
+
+		ProductPackage created = restTemplate.postForObject(other + "/packages",
+				new ProductPackage(null, "Elsewhere", "Desc", List.of("p1"), 0), ProductPackage.class);
+		waitFor(() -> restTemplate.exchange(URLS.get(0) + "/packages", HttpMethod.GET, new HttpEntity<>(headers),
+				String.class).getStatusCode() == HttpStatus.OK);
+		restTemplate.delete(other + "/packages/" + created.getId());
+	}
+
+	/**
+	 * Checks every package is held by the expected number of the first nodes.
+	 */
+	private static void assertHolders(List<String> ids, int nodes, int expected) {
+		assertTrue(holdersOk(ids, nodes, expected), "Unexpected number of copies");
+	}
+
+	private static boolean holdersOk(List<String> ids, int nodes, int expected) {
+		for (String id : ids) {
+			if (holders(List.of(id), nodes) != expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the copies of the packages held by the first nodes.
+	 */
+	private static int holders(List<String> ids, int nodes) {
+		int holders = 0;
+		for (int node = 0; node < nodes; node++) {
+			holders += count(NODES.get(node), ids);
+		}
+		return holders;
+	}
+
+	private static int count(ConfigurableApplicationContext node, List<String> ids) {
+		PackageRepository packageRepository = node.getBean(PackageRepository.class);
+		int count = 0;
+		for (String id : ids) {
+			if (packageRepository.get(id) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Checks every package can be read through each of the first nodes, and the full list is the same on each.
+	 */
+	private static void assertReadable(List<String> ids, int nodes) {
+		for (int node = 0; node < nodes; node++) {
+			for (String id : ids) {
+				ResponseEntity<ProductPackage> read = restTemplate.getForEntity(URLS.get(node) + "/packages/" + id,
+						ProductPackage.class);
+				assertEquals(HttpStatus.OK, read.getStatusCode(), "Unexpected status code");
+				assertNotNull(read.getHeaders().getETag(), "Missing ETag");
+			}
+			ProductPackage[] all = restTemplate.getForObject(URLS.get(node) + "/packages", ProductPackage[].class);
+			Set<String> listed = new HashSet<>();
+			for (ProductPackage productPackage : all) {
+				listed.add(productPackage.getId());
+			}
+			assertEquals(new HashSet<>(ids), listed, "Unexpected packages");
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) {
+		long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for packages to move");
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.example.codingexercise.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the assignment of packages to nodes by the consistent hash ring.
+ */
+class ConsistentHashRingTests {
+
+	private static final List<String> NODES = List.of("http://a:8080", "http://b:8080", "http://c:8080");
+
+	private static final List<UUID> IDS = ids(10000);
+
+	/**
+	 * Verify each package has the configured number of distinct owners, primary first, and that the owners do not
+	 * depend on the order the nodes are given in.
+	 */
+	@Test
+	void owners() {
+		ConsistentHashRing ring = new ConsistentHashRing(NODES, 128, 2);
+		ConsistentHashRing reversed = new ConsistentHashRing(List.of(NODES.get(2), NODES.get(1), NODES.get(0)), 128, 2);
+		for (UUID id : IDS) {
+			List<String> owners = ring.owners(id);
+			assertEquals(2, new HashSet<>(owners).size(), "Unexpected owners");
+			assertEquals(ring.primary(id), owners.get(0), "Unexpected primary");
+			assertEquals(owners, reversed.owners(id), "Owners depend on node order");
+		}
+		assertEquals(1, new ConsistentHashRing(List.of("http://a:8080"), 128, 2).owners(IDS.get(0)).size(),
+				"Unexpected owners");
+		assertThrows(IllegalArgumentException.class, () -> new ConsistentHashRing(List.of(), 128, 2));
+	}
+
+	/**
+	 * Verify packages are spread evenly and that adding a node only moves the packages it takes.
+	 */
+	@Test
+	void rebalance() {
+		ConsistentHashRing ring = new ConsistentHashRing(NODES, 128, 2);
+		List<String> grown = new ArrayList<>(NODES);
+		grown.add("http://d:8080");
+		ConsistentHashRing grownRing = new ConsistentHashRing(grown, 128, 2);
+
+		Map<String, Integer> primaries = new HashMap<>();
+		int moved = 0;
+		for (UUID id : IDS) {
+			primaries.merge(ring.primary(id), 1, Integer::sum);
+			String primary = grownRing.primary(id);
+			if (!primary.equals(ring.primary(id))) {
+				moved++;
+				assertEquals("http://d:8080", primary, "Package moved between existing nodes");
+			}
+		}
+		for (int count : primaries.values()) {
+			assertTrue(Math.abs(count - IDS.size() / 3) < IDS.size() / 10, "Uneven spread " + primaries);
+		}
+		assertTrue(Math.abs(moved - IDS.size() / 4) < IDS.size() / 10, "Unexpected moved count " + moved);
+	}
+
+	private static List<UUID> ids(int count) {
+		List<UUID> ids = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(UUID.nameUUIDFromBytes(Integer.toString(i).getBytes()));
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,165 @@
+package com.example.codingexercise.cluster;
+
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.model.ProductPackage;
+import com.example.codingexercise.repository.InMemoryPackageStore;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the ReplicatingPackageStore of the first of three nodes, with a ClusterClient that records the writes
+ * sent to the other nodes instead of sending them.
+ */
+class ReplicatingPackageStoreTests {
+
+	private static final String SELF = "http://a:8080";
+
+	private static final String HOLDER = "http://b:8080";
+
+	private static final String OTHER = "http://c:8080";
+
+	private final ClusterMembership membership = new ClusterMembership(true, SELF, new String[] { HOLDER, OTHER }, 128, 2,
+			"secret");
+
+	private final RecordingClusterClient clusterClient = new RecordingClusterClient(membership);
+
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final ReplicatingPackageStore store = new ReplicatingPackageStore(new InMemoryPackageStore(), membership,
+			clusterClient, executor, 100, Duration.ofMillis(20), 3, meterRegistry);
+
+	@AfterEach
+	void tearDown() {
+		clusterClient.slow.countDown();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Verify a write only waits for the nodes holding its package, not for a slow node that does not.
+	 */
+	@Test
+	void waitsOnlyForHolders() throws Exception {
+		clusterClient.slow = new CountDownLatch(1);
+		// Made by another thread, as another repository operation would be.
+		CompletableFuture<Void> slowWrite = CompletableFuture.supplyAsync(() -> store.save(productPackage(OTHER)), executor)
+				.get(5, TimeUnit.SECONDS);
+
+		store.save(productPackage(HOLDER)).get(5, TimeUnit.SECONDS);
+		assertEquals(1, clusterClient.received(HOLDER).size(), "Write not replicated");
+		assertFalse(slowWrite.isDone(), "Slow node not waited for");
+
+		clusterClient.slow.countDown();
+		slowWrite.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Verify writes to an unavailable node are not waited for but are kept and sent, in order, once it is back,
+	 * and that writes past cluster.replication.max-hints are dropped and counted.
+	 */
+	@Test
+	void keepsWritesForUnavailableNode() throws Exception {
+		clusterClient.unavailable.add(OTHER);
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			ProductPackage productPackage = productPackage(OTHER);
+			store.save(productPackage).get(5, TimeUnit.SECONDS);
+			ids.add(productPackage.getId());
+		}
+		assertEquals(3.0, meterRegistry.get("cluster.replication.hints").gauge().value(), "Unexpected hints");
+		assertEquals(1.0, meterRegistry.get("cluster.replication.failures").counter().count(), "Unexpected failures");
+
+		clusterClient.unavailable.remove(OTHER);
+		waitFor(() -> clusterClient.received(OTHER).size() == 3);
+		assertEquals(ids.subList(0, 3), clusterClient.received(OTHER).stream().map(ReplicatedWrite::id).toList(),
+				"Unexpected writes");
+		waitFor(() -> meterRegistry.get("cluster.replication.hints").gauge().value() == 0);
+
+		ProductPackage productPackage = productPackage(OTHER);
+		store.save(productPackage).get(5, TimeUnit.SECONDS);
+		assertEquals(productPackage.getId(), clusterClient.received(OTHER).get(3).id(), "Write not waited for");
+	}
+
+	/**
+	 * Makes a package held by this node, as its primary, and one other node.
+	 */
+	private ProductPackage productPackage(String holder) {
+		UUID id = UUID.randomUUID();
+		while (!membership.getRing().owners(id).equals(List.of(SELF, holder))) {
+			id = UUID.randomUUID();
+		}
+		return new ProductPackage(id.toString(), "Package", "Desc", List.of("p1"), 100.0);
+	}
+
+	private static void waitFor(BooleanSupplier condition) {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for writes to be sent");
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	private static final class RecordingClusterClient extends ClusterClient {
+
+		private final Map<String, List<ReplicatedWrite>> received = new ConcurrentHashMap<>();
+
+		private final Set<String> unavailable = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Writes to OTHER wait for this latch.
+		 */
+		private volatile CountDownLatch slow = new CountDownLatch(0);
+
+		RecordingClusterClient(ClusterMembership membership) {
+			super(null, membership, new SimpleMeterRegistry());
+		}
+
+		@Override
+		public void replicate(String node, List<ReplicatedWrite> writes) {
+			if (node.equals(OTHER)) {
+				try {
+					slow.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (unavailable.contains(node)) {
+				throw new PeerUnavailableException(node, "unavailable", null);
+			}
+			received(node).addAll(writes);
+		}
+
+		List<ReplicatedWrite> received(String node) {
+			return received.computeIfAbsent(node, k -> new CopyOnWriteArrayList<>());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.example.codingexercise.gateway;
+
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.stub.StubUpstreamServer;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the Product Cache against a counting product service gateway.
+ */
+class ProductCacheTests {
+
+	private final AtomicInteger gatewayCalls = new AtomicInteger();
+
+	private final ProductCache productCache = new ProductCache(new ProductServiceGateway(null, null, false, new SimpleMeterRegistry(),
+			CircuitBreaker.ofDefaults("product"), Bulkhead.ofDefaults("product")) {
+		@Override
+		public Product getProduct(String id) {
+			gatewayCalls.incrementAndGet();
+			return "p1".equals(id) ? new Product("p1", "Product 1", 100) : null;
+		}
+	}, 100, Duration.ofMinutes(10), Duration.ofMinutes(5), Duration.ofSeconds(30), false);
+
+	/**
+	 * Verify known and unknown product ids are only fetched once.
+	 */
+	@Test
+	void cachesKnownAndUnknownProducts() {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(100, productCache.getProduct("p1").usdPrice(), "Unexpected product price");
+			assertNull(productCache.getProduct("unknown"), "Unexpected product");
+		}
+		assertEquals(2, gatewayCalls.get(), "Unexpected product service calls");
+		assertEquals(4, productCache.getStats().hitCount(), "Unexpected hit count");
+		assertEquals(2, productCache.getStats().missCount(), "Unexpected miss count");
+	}
+
+	/**
+	 * Verify an expired product is still returned while the product service circuit breaker is open,
+	 * but a product that was never fetched is not.
+	 */
+	@Test
+	void returnsLastKnownProductWhileUpstreamUnavailable() throws InterruptedException {
+		CircuitBreaker circuitBreaker = CircuitBreaker.ofDefaults("product");
+		AtomicBoolean available = new AtomicBoolean(true);
+		ProductCache shortLivedCache = new ProductCache(new ProductServiceGateway(null, null, false, new SimpleMeterRegistry(),
+				circuitBreaker, Bulkhead.ofDefaults("product")) {
+			@Override
+			public Product getProduct(String id) {
+				if (!available.get()) {
+					throw CallNotPermittedException.createCallNotPermittedException(circuitBreaker);
+				}
+				return new Product(id, "Product " + id, 100);
+			}
+		}, 100, Duration.ofMillis(20), Duration.ofMinutes(5), Duration.ofMillis(20), false);
+
+		assertEquals(100, shortLivedCache.getProduct("p1").usdPrice(), "Unexpected product price");
+		available.set(false);
+		Thread.sleep(50);
+		assertEquals(100, shortLivedCache.getProduct("p1").usdPrice(), "Expected last known product");
+		assertThrows(CallNotPermittedException.class, () -> shortLivedCache.getProduct("p2"), "Unexpected product");
+	}
+
+	/**
+	 * Verify non-blocking lookups share one call to the product service and cache known and unknown product ids.
+	 */
+	@Test
+	void getProductAsync() throws Exception {
+		try (StubUpstreamServer stub = new StubUpstreamServer(0, Duration.ZERO, 0, 10)) {
+			ProductCache asyncCache = asyncProductCache(stub, Bulkhead.ofDefaults("product"));
+
+			CompletableFuture<Product> first = asyncCache.getProductAsync("product-1");
+			CompletableFuture<Product> second = asyncCache.getProductAsync("product-1");
+			assertEquals("product-1", first.get(5, TimeUnit.SECONDS).id(), "Unexpected product");
+			assertEquals("product-1", second.get(5, TimeUnit.SECONDS).id(), "Unexpected product");
+			assertNull(asyncCache.getProductAsync("unknown").get(5, TimeUnit.SECONDS), "Unexpected product");
+			assertNull(asyncCache.getProductAsync("unknown").get(5, TimeUnit.SECONDS), "Unexpected product");
+			assertEquals(2, asyncCache.getStats().missCount(), "Unexpected miss count");
+		}
+	}
+
+	/**
+	 * Verify cancelling a non-blocking lookup only cancels the call to the product service once every caller
+	 * waiting on it has cancelled, and the next lookup calls the product service again.
+	 */
+	@Test
+	void cancelGetProductAsync() throws Exception {
+		try (StubUpstreamServer stub = new StubUpstreamServer(0, Duration.ofSeconds(30), 0, 10)) {
+			Bulkhead bulkhead = Bulkhead.ofDefaults("product");
+			int maxCalls = bulkhead.getBulkheadConfig().getMaxConcurrentCalls();
+			ProductCache asyncCache = asyncProductCache(stub, bulkhead);
+
+			CompletableFuture<Product> first = asyncCache.getProductAsync("product-1");
+			CompletableFuture<Product> second = asyncCache.getProductAsync("product-1");
+			assertEquals(maxCalls - 1, bulkhead.getMetrics().getAvailableConcurrentCalls(), "Expected one call in flight");
+
+			first.cancel(false);
+			assertFalse(second.isDone(), "Lookup cancelled by another caller");
+			assertEquals(maxCalls - 1, bulkhead.getMetrics().getAvailableConcurrentCalls(), "Call cancelled while still awaited");
+
+			second.cancel(false);
+			assertEquals(maxCalls, bulkhead.getMetrics().getAvailableConcurrentCalls(), "Call not cancelled");
+
+			CompletableFuture<Product> third = asyncCache.getProductAsync("product-1");
+			assertFalse(third.isDone(), "Cancelled fetch was cached");
+			assertEquals(maxCalls - 1, bulkhead.getMetrics().getAvailableConcurrentCalls(), "Expected a new call");
+			third.cancel(false);
+		}
+	}
+
+	private static ProductCache asyncProductCache(StubUpstreamServer stub, Bulkhead bulkhead) {
+		WebClient webClient = WebClient.builder().baseUrl(stub.getProductBaseUrl()).build();
+		return new ProductCache(new ProductServiceGateway(null, webClient, true, new SimpleMeterRegistry(),
+				CircuitBreaker.ofDefaults("product"), bulkhead), 100, Duration.ofMinutes(10), Duration.ofMinutes(5),
+				Duration.ofSeconds(30), false);
+	}
+}
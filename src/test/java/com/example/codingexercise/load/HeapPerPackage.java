@@ -0,0 +1,100 @@
+package com.example.codingexercise.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.example.codingexercise.gateway.ProductCache;
+import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.repository.InMemoryPackageStore;
+import com.example.codingexercise.repository.PackageRepository;
+
+/**
+ * Measures the heap used per package held by the PackageRepository.
+ * Packages use 1 to 5 products from a fixed catalog, and every product id is a new String
+ * instance, as it would be when parsed from a request body. The heap in use is measured
+ * after a full GC before and after the packages are created.
+ * <p>
+ * Run:
+ * <pre>
+ * mvn -B test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.codingexercise.load.HeapPerPackage \
+ *     -Dexec.args="[packages] [catalogSize] [searchNgramEnabled]"
+ * </pre>
+ * @author tomd
+ *
+ */
+public class HeapPerPackage {
+
+	public static void main(String[] args) throws Exception {
+		int packages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int catalogSize = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		boolean ngramEnabled = args.length > 2 ? Boolean.parseBoolean(args[2]) : true;
+
+		Random random = new Random(42);
+		List<String> catalog = new ArrayList<>(catalogSize);
+		for (int i = 0; i < catalogSize; i++) {
+			catalog.add(randomProductId(random));
+		}
+		ProductServiceGateway gateway = new ProductServiceGateway(null, null, false, new SimpleMeterRegistry(),
+				CircuitBreaker.ofDefaults("product"), Bulkhead.ofDefaults("product")) {
+			@Override
+			public Product getProduct(String id) {
+				return new Product(id, "Product " + id, 100 + id.charAt(0));
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		// The change log is kept to one entry, it is a fixed size ring rather than a cost per package.
+		PackageRepository packageRepository = new PackageRepository(new ProductCache(gateway, catalogSize * 2L,
+				Duration.ofHours(1), Duration.ofHours(1), Duration.ofHours(1), false), new InMemoryPackageStore(),
+				executor, Duration.ofSeconds(30), new SimpleMeterRegistry(), ngramEnabled, 1);
+		// Fill the product cache and prices first so only the packages are measured.
+		for (String productId : catalog) {
+			packageRepository.delete(packageRepository.create("Warm up", "", List.of(productId)).getId());
+		}
+
+		long before = usedHeap();
+		for (int i = 0; i < packages; i++) {
+			List<String> productIds = new ArrayList<>(5);
+			for (int j = random.nextInt(1, 6); j > 0; j--) {
+				productIds.add(new String(catalog.get(random.nextInt(catalogSize))));
+			}
+			packageRepository.create("Package " + i, "Description of package " + i, productIds);
+		}
+		long after = usedHeap();
+
+		System.out.printf("packages=%d catalog=%d ngram=%b heap=%.1f MB bytes/package=%d%n", packages, catalogSize,
+				ngramEnabled, (after - before) / (1024.0 * 1024.0), (after - before) / packages);
+		executor.shutdownNow();
+		// Keep the repository reachable until after the measurement.
+		System.out.println("repository size=" + packageRepository.getProductIds().size() + " products in use");
+	}
+
+	private static String randomProductId(Random random) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+		StringBuilder id = new StringBuilder(12);
+		for (int i = 0; i < 12; i++) {
+			id.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return id.toString();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,71 @@
+package com.example.codingexercise.load;
+
+import java.util.Arrays;
+
+/**
+ * Records request latencies and reports their percentiles.
+ * Exact (every latency is kept), which is fine for load tests of a few million requests.
+ * @author tomd
+ *
+ */
+public class LatencyRecorder {
+
+	private long[] latencies = new long[1024];
+
+	private int count;
+
+	private boolean sorted;
+
+	/**
+	 * Records one latency.
+	 * 
+	 * @param nanos latency in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = nanos;
+		sorted = false;
+	}
+
+	/**
+	 * Adds every latency recorded by another recorder to this one.
+	 */
+	public synchronized void add(LatencyRecorder other) {
+		long[] otherLatencies;
+		int otherCount;
+		synchronized (other) {
+			otherLatencies = other.latencies;
+			otherCount = other.count;
+		}
+		if (count + otherCount > latencies.length) {
+			latencies = Arrays.copyOf(latencies, Math.max(latencies.length * 2, count + otherCount));
+		}
+		System.arraycopy(otherLatencies, 0, latencies, count, otherCount);
+		count += otherCount;
+		sorted = false;
+	}
+
+	public synchronized int count() {
+		return count;
+	}
+
+	/**
+	 * Gets a percentile of the recorded latencies.
+	 * 
+	 * @param percentile between 0 and 100, e.g. 99.9.
+	 * @return the latency in milliseconds, or NaN if nothing has been recorded.
+	 */
+	public synchronized double percentileMillis(double percentile) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		if (!sorted) {
+			Arrays.sort(latencies, 0, count);
+			sorted = true;
+		}
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return latencies[Math.max(0, Math.min(count - 1, index))] / 1e6;
+	}
+}
@@ -0,0 +1,345 @@
+package com.example.codingexercise.load;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.example.codingexercise.CodingExerciseApplication;
+import com.example.codingexercise.stub.StubUpstreamServer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Drives a mixed CRUD and converted-GET workload against the application and reports throughput
+ * and p50/p99/p99.9 latency per operation.
+ * <p>
+ * Unless --target is given, a StubUpstreamServer and the application are started in this JVM, with the
+ * application's product.gateway.base-url and currency.exchange.base-url pointing at the stub.
+ * Options (all optional, as --name=value):
+ * <ul>
+ * <li>--target: URL of an already running application, e.g. http://localhost:8080, or a comma separated list
+ * of the nodes of a cluster, which requests are spread over</li>
+ * <li>--nodes: number of in-process nodes to run in cluster mode (default 1, cluster mode disabled)</li>
+ * <li>--concurrency: number of clients sending requests back to back (default 64)</li>
+ * <li>--duration / --warmup: ISO-8601 durations of the measured run and the warm up (default PT30S / PT10S)</li>
+ * <li>--packages: packages created before the run (default 1000)</li>
+ * <li>--stub.latency, --stub.error-rate, --stub.catalog-size: StubUpstreamServer settings (default PT0.02S, 0, 1000)</li>
+ * </ul>
+ * Any other --name=value options are passed to the in-process application, e.g. --threads.virtual.enabled=true.
+ * <pre>
+ * mvn -B test-compile org.codehaus.mojo:exec-maven-plugin:3.1.0:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.codingexercise.load.LoadHarness -Dexec.args="--concurrency=128 --duration=PT60S"
+ * </pre>
+ * @author tomd
+ *
+ */
+public class LoadHarness {
+
+	/**
+	 * Operations in the workload, with their share of requests in percent.
+	 */
+	enum Operation {
+		CREATE(10), UPDATE(10), DELETE(5), GET(35), GET_CONVERTED(25), LIST_CONVERTED(15);
+
+		private final int percent;
+
+		Operation(int percent) {
+			this.percent = percent;
+		}
+
+		static Operation pick(int roll) {
+			for (Operation operation : values()) {
+				roll -= operation.percent;
+				if (roll < 0) {
+					return operation;
+				}
+			}
+			return GET;
+		}
+	}
+
+	private static final String[] CURRENCIES = { "GBP", "EUR", "JPY", "CAD" };
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+	private final List<String> targets;
+
+	private final List<String> productIds;
+
+	/**
+	 * Ids of the packages that currently exist. Guarded by itself.
+	 */
+	private final List<String> packageIds = new ArrayList<>();
+
+	LoadHarness(List<String> targets, List<String> productIds) {
+		this.targets = targets;
+		this.productIds = productIds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		List<String> applicationArgs = new ArrayList<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") && equals > 0 ? arg.substring(2, equals) : null;
+			if (name != null && (name.startsWith("stub.") || List.of("target", "nodes", "concurrency", "duration", "warmup", "packages").contains(name))) {
+				options.put(name, arg.substring(equals + 1));
+			} else {
+				applicationArgs.add(arg);
+			}
+		}
+		int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+		Duration duration = Duration.parse(options.getOrDefault("duration", "PT30S"));
+		Duration warmup = Duration.parse(options.getOrDefault("warmup", "PT10S"));
+		int packages = Integer.parseInt(options.getOrDefault("packages", "1000"));
+		int catalogSize = Integer.parseInt(options.getOrDefault("stub.catalog-size", "1000"));
+		int nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+
+		if (options.containsKey("target")) {
+			List<String> productIds = new ArrayList<>();
+			for (int i = 0; i < catalogSize; i++) {
+				productIds.add("product-" + i);
+			}
+			new LoadHarness(List.of(options.get("target").split(",")), productIds).run(concurrency, packages, warmup, duration);
+			return;
+		}
+		try (StubUpstreamServer upstreams = new StubUpstreamServer(0,
+				Duration.parse(options.getOrDefault("stub.latency", "PT0.02S")),
+				Double.parseDouble(options.getOrDefault("stub.error-rate", "0")), catalogSize)) {
+			applicationArgs.add("--product.gateway.base-url=" + upstreams.getProductBaseUrl());
+			applicationArgs.add("--currency.exchange.base-url=" + upstreams.getExchangeBaseUrl());
+			applicationArgs.add("--logging.level.root=ERROR");
+			List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+			try {
+				List<String> targets = new ArrayList<>();
+				if (nodes == 1) {
+					ConfigurableApplicationContext context = startApplication(applicationArgs, "--server.port=0");
+					contexts.add(context);
+					targets.add("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+				} else {
+					for (int i = 0; i < nodes; i++) {
+						try (ServerSocket socket = new ServerSocket(0)) {
+							targets.add("http://localhost:" + socket.getLocalPort());
+						}
+					}
+					String secret = UUID.randomUUID().toString();
+					for (String target : targets) {
+						contexts.add(startApplication(applicationArgs, "--server.port=" + URI.create(target).getPort(),
+								"--cluster.enabled=true", "--cluster.self-url=" + target, "--cluster.secret=" + secret,
+								"--cluster.members=" + String.join(",", targets)));
+					}
+				}
+				new LoadHarness(targets, upstreams.getCatalogIds()).run(concurrency, packages, warmup, duration);
+			} finally {
+				contexts.forEach(ConfigurableApplicationContext::close);
+			}
+		}
+	}
+
+	private static ConfigurableApplicationContext startApplication(List<String> applicationArgs, String... nodeArgs) {
+		List<String> args = new ArrayList<>(applicationArgs);
+		args.addAll(List.of(nodeArgs));
+		return new SpringApplicationBuilder(CodingExerciseApplication.class).run(args.toArray(String[]::new));
+	}
+
+	void run(int concurrency, int packages, Duration warmup, Duration duration) throws InterruptedException {
+		System.out.printf("target=%s concurrency=%d packages=%d warmup=%s duration=%s%n", String.join(",", targets), concurrency, packages,
+				warmup, duration);
+		for (int i = 0; i < packages; i++) {
+			execute(Operation.CREATE);
+		}
+		drive(concurrency, warmup);
+		Map<Operation, Stats> results = drive(concurrency, duration);
+
+		Stats total = new Stats();
+		System.out.printf("%-15s %10s %8s %10s %10s %10s%n", "operation", "requests", "errors", "p50 ms", "p99 ms", "p99.9 ms");
+		for (Map.Entry<Operation, Stats> result : results.entrySet()) {
+			print(result.getKey().name(), result.getValue());
+			total.add(result.getValue());
+		}
+		print("ALL", total);
+		System.out.printf("throughput=%.0f req/s%n", (total.latencies.count() + total.errors.get()) / (duration.toMillis() / 1000.0));
+	}
+
+	private static void print(String name, Stats stats) {
+		System.out.printf("%-15s %10d %8d %10.2f %10.2f %10.2f%n", name, stats.latencies.count() + stats.errors.get(),
+				stats.errors.get(), stats.latencies.percentileMillis(50), stats.latencies.percentileMillis(99),
+				stats.latencies.percentileMillis(99.9));
+	}
+
+	/**
+	 * Runs concurrency clients, each sending one request after the other, for the duration.
+	 */
+	private Map<Operation, Stats> drive(int concurrency, Duration duration) throws InterruptedException {
+		long end = System.nanoTime() + duration.toNanos();
+		List<Map<Operation, Stats>> clientResults = new ArrayList<>();
+		List<Thread> clients = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			Map<Operation, Stats> results = new EnumMap<>(Operation.class);
+			for (Operation operation : Operation.values()) {
+				results.put(operation, new Stats());
+			}
+			clientResults.add(results);
+			Thread client = new Thread(() -> {
+				while (System.nanoTime() < end) {
+					Operation operation = Operation.pick(ThreadLocalRandom.current().nextInt(100));
+					long start = System.nanoTime();
+					if (execute(operation)) {
+						results.get(operation).latencies.record(System.nanoTime() - start);
+					} else {
+						results.get(operation).errors.incrementAndGet();
+					}
+				}
+			}, "load-client-" + i);
+			clients.add(client);
+			client.start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		Map<Operation, Stats> merged = new EnumMap<>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			Stats stats = new Stats();
+			clientResults.forEach(results -> stats.add(results.get(operation)));
+			merged.put(operation, stats);
+		}
+		return merged;
+	}
+
+	/**
+	 * Sends one request for the operation.
+	 * 
+	 * @return true if it succeeded.
+	 */
+	private boolean execute(Operation operation) {
+		try {
+			switch (operation) {
+			case CREATE: {
+				HttpResponse<String> response = send(HttpRequest.newBuilder(uri("/packages")).POST(packageBody(null)));
+				if (response.statusCode() == 200) {
+					JsonNode created = objectMapper.readTree(response.body());
+					synchronized (packageIds) {
+						packageIds.add(created.get("id").asText());
+					}
+					return true;
+				}
+				return false;
+			}
+			case UPDATE: {
+				String id = randomPackageId();
+				return id != null && send(HttpRequest.newBuilder(uri("/packages/" + id)).PUT(packageBody(id))).statusCode() == 200;
+			}
+			case DELETE: {
+				String id = removeRandomPackageId();
+				if (id == null) {
+					return true;
+				}
+				// Keep the number of packages steady.
+				return send(HttpRequest.newBuilder(uri("/packages/" + id)).DELETE()).statusCode() == 200
+						&& execute(Operation.CREATE);
+			}
+			case GET: {
+				String id = randomPackageId();
+				return id != null && send(HttpRequest.newBuilder(uri("/packages/" + id)).GET()).statusCode() == 200;
+			}
+			case GET_CONVERTED: {
+				String id = randomPackageId();
+				return id != null && send(HttpRequest.newBuilder(uri("/packages/" + id + "?currencyToUse=" + randomCurrency()))
+						.GET()).statusCode() == 200;
+			}
+			case LIST_CONVERTED:
+				return send(HttpRequest.newBuilder(uri("/packages?limit=50&currencyToUse=" + randomCurrency())).GET())
+						.statusCode() == 200;
+			default:
+				return false;
+			}
+		} catch (IOException ex) {
+			return false;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+		return client.send(request.header("Content-Type", "application/json").timeout(Duration.ofSeconds(30)).build(),
+				HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * Builds the URI of a request, spreading requests over the targets.
+	 */
+	private URI uri(String path) {
+		return URI.create(targets.get(ThreadLocalRandom.current().nextInt(targets.size())) + path);
+	}
+
+	private HttpRequest.BodyPublisher packageBody(String id) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<String> ids = new ArrayList<>();
+		for (int i = random.nextInt(1, 4); i > 0; i--) {
+			ids.add(productIds.get(random.nextInt(productIds.size())));
+		}
+		Map<String, Object> body = new HashMap<>();
+		body.put("id", id);
+		body.put("name", "Load " + random.nextInt(1000));
+		body.put("description", "Load test package");
+		body.put("productIds", ids);
+		return HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body));
+	}
+
+	private String randomPackageId() {
+		synchronized (packageIds) {
+			return packageIds.isEmpty() ? null : packageIds.get(ThreadLocalRandom.current().nextInt(packageIds.size()));
+		}
+	}
+
+	private String removeRandomPackageId() {
+		synchronized (packageIds) {
+			if (packageIds.isEmpty()) {
+				return null;
+			}
+			int index = ThreadLocalRandom.current().nextInt(packageIds.size());
+			String id = packageIds.get(index);
+			packageIds.set(index, packageIds.get(packageIds.size() - 1));
+			packageIds.remove(packageIds.size() - 1);
+			return id;
+		}
+	}
+
+	private static String randomCurrency() {
+		return CURRENCIES[ThreadLocalRandom.current().nextInt(CURRENCIES.length)];
+	}
+
+	/**
+	 * Latencies of the successful requests and count of failed requests for an operation.
+	 */
+	private static class Stats {
+
+		private final LatencyRecorder latencies = new LatencyRecorder();
+
+		private final AtomicInteger errors = new AtomicInteger();
+
+		void add(Stats other) {
+			latencies.add(other.latencies);
+			errors.addAndGet(other.errors.get());
+		}
+	}
+}
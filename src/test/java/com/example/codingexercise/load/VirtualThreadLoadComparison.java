@@ -0,0 +1,143 @@
+package com.example.codingexercise.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import com.example.codingexercise.CodingExerciseApplication;
+import com.example.codingexercise.config.VirtualThreads;
+import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.gateway.dto.Product;
+
+/**
+ * Compares how many concurrent POST /packages requests the application sustains with the
+ * platform thread pools and with threads.virtual.enabled.
+ * The product service is replaced by an in-process gateway that sleeps for a fixed latency, and every
+ * request uses new product ids so each one blocks on the gateway.
+ * <p>
+ * Run (virtual mode needs a Java 21 JVM):
+ * <pre>
+ * mvn -B test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.codingexercise.load.VirtualThreadLoadComparison \
+ *     -Dexec.args="[concurrency] [requests] [latencyMillis]"
+ * </pre>
+ * @author tomd
+ *
+ */
+public class VirtualThreadLoadComparison {
+
+	private static final int PRODUCTS_PER_PACKAGE = 3;
+
+	public static void main(String[] args) throws Exception {
+		int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+		System.out.printf("concurrency=%d requests=%d gateway latency=%dms%n", concurrency, requests, latencyMillis);
+		run(false, concurrency, requests, latencyMillis);
+		if (VirtualThreads.isSupported()) {
+			run(true, concurrency, requests, latencyMillis);
+		} else {
+			System.out.println("virtual: skipped, needs Java 21 (running " + Runtime.version() + ")");
+		}
+	}
+
+	private static void run(boolean virtual, int concurrency, int requests, long latencyMillis) throws Exception {
+		SlowGateway.latencyMillis = latencyMillis;
+		try (ConfigurableApplicationContext context = new SpringApplicationBuilder(CodingExerciseApplication.class, SlowGateway.class)
+				.run("--server.port=0", "--threads.virtual.enabled=" + virtual, "--logging.level.root=WARN")) {
+			int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+			HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+			URI uri = URI.create("http://localhost:" + port + "/packages");
+
+			// Warm up the server and JIT before measuring.
+			drive(client, uri, Math.min(concurrency, 50), 500);
+			Result result = drive(client, uri, concurrency, requests);
+			System.out.printf("%-8s throughput=%.0f req/s p50=%.0fms p99=%.0fms max=%.0fms errors=%d%n",
+					virtual ? "virtual" : "platform", result.throughput(), result.latencies().percentileMillis(50),
+					result.latencies().percentileMillis(99), result.latencies().percentileMillis(100), result.errors());
+		}
+	}
+
+	private static Result drive(HttpClient client, URI uri, int concurrency, int requests) throws InterruptedException {
+		Semaphore inFlight = new Semaphore(concurrency);
+		LatencyRecorder latencies = new LatencyRecorder();
+		AtomicInteger errors = new AtomicInteger();
+		List<CompletableFuture<?>> sent = new ArrayList<>(requests);
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			inFlight.acquire();
+			long sentAt = System.nanoTime();
+			sent.add(client.sendAsync(packageRequest(uri), HttpResponse.BodyHandlers.discarding())
+					.whenComplete((response, ex) -> {
+						if (ex != null || response.statusCode() != 200) {
+							errors.incrementAndGet();
+						} else {
+							latencies.record(System.nanoTime() - sentAt);
+						}
+						inFlight.release();
+					}));
+		}
+		CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)).exceptionally(ex -> null).join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return new Result(requests / seconds, latencies, errors.get());
+	}
+
+	private static HttpRequest packageRequest(URI uri) {
+		StringBuilder productIds = new StringBuilder();
+		for (int i = 0; i < PRODUCTS_PER_PACKAGE; i++) {
+			productIds.append(i == 0 ? "" : ",").append('"').append(UUID.randomUUID()).append('"');
+		}
+		String body = "{\"name\":\"Load\",\"description\":\"Load test\",\"productIds\":[" + productIds + "]}";
+		return HttpRequest.newBuilder(uri).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body)).build();
+	}
+
+	private record Result(double throughput, LatencyRecorder latencies, int errors) {
+	}
+
+	/**
+	 * Replaces the product service with one that answers every id after a fixed delay.
+	 * Deliberately not a @Configuration class so that component scanning in the Spring Boot tests
+	 * does not pick it up.
+	 */
+	static class SlowGateway {
+
+		static volatile long latencyMillis;
+
+		@Bean
+		@Primary
+		ProductServiceGateway slowProductServiceGateway() {
+			return new ProductServiceGateway(null, null, false, new SimpleMeterRegistry(),
+					CircuitBreaker.ofDefaults("product"), Bulkhead.ofDefaults("product")) {
+				@Override
+				public Product getProduct(String id) {
+					try {
+						Thread.sleep(latencyMillis);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					return new Product(id, "Product " + id, 100);
+				}
+			};
+		}
+	}
+}
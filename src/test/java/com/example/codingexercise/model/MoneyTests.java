@@ -0,0 +1,34 @@
+package com.example.codingexercise.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the fixed-point Money type.
+ */
+class MoneyTests {
+
+	/**
+	 * Verify decimal amounts that are not exact as doubles are held as the nearest hundredth.
+	 */
+	@Test
+	void of() {
+		assertEquals(new Money(30, Money.USD), Money.of(0.1 + 0.2, Money.USD), "Unexpected amount");
+		assertEquals(new Money(1_000_000_000_01L, Money.USD), Money.of(1_000_000_000.01, Money.USD), "Unexpected amount");
+		assertEquals(0.3, Money.of(0.1 + 0.2, Money.USD).toDouble(), "Unexpected decimal amount");
+	}
+
+	/**
+	 * Verify a conversion is rounded half up to the nearest hundredth of the target currency, even one with no
+	 * minor unit.
+	 */
+	@Test
+	void convert() {
+		Money price = new Money(899, Money.USD);
+		assertEquals(new Money(719, "GBP"), price.convert(0.8, "GBP"), "Unexpected converted amount");
+		assertEquals(new Money(2, "EUR"), new Money(1, Money.USD).convert(1.5, "EUR"), "Unexpected rounding");
+		assertEquals("7.19 GBP", price.convert(0.8, "GBP").toString(), "Unexpected String form");
+		assertEquals("1258.60 JPY", price.convert(140.0, "JPY").toString(), "Unexpected String form");
+	}
+}
@@ -0,0 +1,63 @@
+package com.example.codingexercise.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the PriceSketch quantile sketch.
+ */
+class PriceSketchTests {
+
+	/**
+	 * Verify quantiles are within the relative accuracy of the true prices, over prices spread across several
+	 * orders of magnitude.
+	 */
+	@Test
+	void quantiles() {
+		Random random = new Random(42);
+		long[] prices = new long[100000];
+		PriceSketch sketch = new PriceSketch();
+		for (int i = 0; i < prices.length; i++) {
+			prices[i] = (long) Math.exp(random.nextDouble() * 20);
+			sketch.add(prices[i]);
+		}
+		Arrays.sort(prices);
+		for (double quantile : new double[] {0, 0.01, 0.25, 0.5, 0.9, 0.99, 0.999, 1}) {
+			long expected = prices[(int) (quantile * (prices.length - 1))];
+			assertTrue(Math.abs(sketch.quantile(quantile) - expected) <= Math.max(1, expected * PriceSketch.RELATIVE_ACCURACY),
+					"Quantile " + quantile + " out of range");
+		}
+		assertEquals(0, new PriceSketch().quantile(0.5), "Unexpected empty quantile");
+		assertThrows(IllegalArgumentException.class, () -> sketch.quantile(1.5));
+	}
+
+	/**
+	 * Verify removing prices and merging sketches give the same quantiles as adding the prices to one sketch.
+	 */
+	@Test
+	void removeAndMerge() {
+		PriceSketch low = new PriceSketch();
+		PriceSketch high = new PriceSketch();
+		for (int price = 0; price < 1000; price++) {
+			low.add(price);
+			high.add(price + 1000);
+		}
+		high.add(5000000);
+		high.remove(5000000);
+		PriceSketch merged = low.copy();
+		merged.merge(high);
+
+		assertEquals(2000, merged.getCount(), "Unexpected count");
+		assertEquals(1000, merged.quantile(0.5), 10, "Unexpected median");
+		assertEquals(1999, merged.quantile(1), 20, "Unexpected maximum");
+		assertEquals(0, merged.quantile(0), "Unexpected minimum");
+		assertEquals(merged.getBuckets(), new PriceSketch(merged.getBuckets()).getBuckets(), "Unexpected buckets");
+		assertEquals(1000, low.getCount(), "Merge changed its source");
+	}
+}
@@ -0,0 +1,56 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.ProductPackage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests the compact package form and the product id dictionary it uses.
+ */
+class CompactPackageTests {
+
+	/**
+	 * Verify package ids are ordered as their String form is, including ids with the top bit set.
+	 */
+	@Test
+	void idOrderMatchesStringOrder() {
+		List<UUID> ids = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			ids.add(UUID.randomUUID());
+		}
+		ids.add(UUID.fromString("ffffffff-ffff-4fff-bfff-ffffffffffff"));
+		ids.add(UUID.fromString("00000000-0000-4000-8000-000000000000"));
+
+		List<UUID> byString = new ArrayList<>(ids);
+		byString.sort(Comparator.comparing(UUID::toString));
+		ids.sort(CompactPackage.ID_ORDER);
+		assertEquals(byString, ids, "Unexpected id order");
+	}
+
+	/**
+	 * Verify a package built from the compact form has the same fields it was created with.
+	 */
+	@Test
+	void toProductPackage() {
+		ProductIdDictionary dictionary = new ProductIdDictionary();
+		UUID id = UUID.randomUUID();
+		List<String> productIds = List.of("p1", "p2", "p1");
+		int[] productCodes = productIds.stream().mapToInt(dictionary::encode).toArray();
+
+		ProductPackage productPackage = new CompactPackage(id, "Name", "Desc", productCodes, 45099, 7).toProductPackage(dictionary);
+		assertEquals(id.toString(), productPackage.getId(), "Unexpected id");
+		assertEquals(productIds, productPackage.getProductIds(), "Unexpected product ids");
+		assertEquals(450.99, productPackage.getTotalPrice(), "Unexpected total price");
+		assertEquals(7, productPackage.getVersion(), "Unexpected version");
+		assertEquals(-1, dictionary.find("unknown"), "Unexpected product code");
+		assertNull(CompactPackage.parseId("not-a-package-id"), "Unexpected package id");
+	}
+}
@@ -0,0 +1,93 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.model.Money;
+import com.example.codingexercise.model.ProductPackage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the File Package Store recovers its contents from the write-ahead log and snapshots.
+ */
+class FilePackageStoreTests {
+
+	@TempDir
+	Path directory;
+
+	/**
+	 * Verify writes are replayed from the log after a restart.
+	 */
+	@Test
+	void recoversFromLog() throws IOException {
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			store.savePrice("p1", 100);
+			store.save(new ProductPackage("a", "Name A", null, List.of("p1"), 100));
+			store.save(new ProductPackage("b", "Name B", "Desc B", List.of("p1", "p1"), 200));
+			store.save(new ProductPackage("a", "Name A2", "Desc A2", List.of("p1"), 100));
+			store.delete("b").join();
+		}
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			PackageStore.StoredPackages stored = store.load();
+			assertEquals(1, stored.productPackages().size(), "Unexpected package count");
+			ProductPackage recovered = stored.productPackages().iterator().next();
+			assertEquals("Name A2", recovered.getName(), "Unexpected name");
+			assertEquals("Desc A2", recovered.getDescription(), "Unexpected description");
+			assertEquals(Map.of("p1", 100), stored.productPrices(), "Unexpected prices");
+		}
+	}
+
+	/**
+	 * Verify package totals are replayed exactly, in hundredths, from both the log and a snapshot.
+	 */
+	@Test
+	void recoversExactTotals() throws IOException {
+		Money large = new Money(9_007_199_254_740_993L, Money.USD);
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			store.save(new ProductPackage("a", "Name A", "Desc A", List.of("p1"), large)).join();
+			long checkpoint = store.startSnapshot();
+			store.save(new ProductPackage("b", "Name B", "Desc B", List.of("p1"), large)).join();
+			store.writeSnapshot(checkpoint, List.of(new ProductPackage("a", "Name A", "Desc A", List.of("p1"), large)),
+					Map.of());
+		}
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			assertEquals(List.of(large, large),
+					store.load().productPackages().stream().map(ProductPackage::getTotal).toList(), "Unexpected totals");
+		}
+	}
+
+	/**
+	 * Verify a snapshot replaces the log segments it covers and later writes are replayed on top of it.
+	 */
+	@Test
+	void recoversFromSnapshotAndLog() throws IOException {
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			store.save(new ProductPackage("a", "Name A", "Desc A", List.of("p1"), 100));
+			ProductPackage b = new ProductPackage("b", "Name B", "Desc B", List.of("p2"), 200);
+			store.save(b).join();
+			long checkpoint = store.startSnapshot();
+			store.delete("a");
+			store.save(new ProductPackage("c", "Name C", "Desc C", List.of(), 0)).join();
+			store.writeSnapshot(checkpoint, List.of(new ProductPackage("a", "Name A", "Desc A", List.of("p1"), 100), b),
+					Map.of("p1", 100, "p2", 200));
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(List.of("snapshot-2.bin", "wal-2.log"),
+					files.map(f -> f.getFileName().toString()).sorted().toList(), "Unexpected files");
+		}
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			PackageStore.StoredPackages stored = store.load();
+			assertEquals(List.of("b", "c"), stored.productPackages().stream().map(ProductPackage::getId).sorted().toList(),
+					"Unexpected packages");
+			assertEquals(Map.of("p1", 100, "p2", 200), stored.productPrices(), "Unexpected prices");
+		}
+	}
+}
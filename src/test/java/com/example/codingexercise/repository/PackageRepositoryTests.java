@@ -0,0 +1,701 @@
+package com.example.codingexercise.repository;
+
+import com.example.codingexercise.dto.PackageChange;
+import com.example.codingexercise.dto.PackageOperation;
+import com.example.codingexercise.dto.PackageOperation.Type;
+import com.example.codingexercise.dto.PackageStatistics;
+import com.example.codingexercise.dto.ReplicatedWrite;
+import com.example.codingexercise.gateway.ProductCache;
+import com.example.codingexercise.gateway.ProductServiceGateway;
+import com.example.codingexercise.gateway.dto.Product;
+import com.example.codingexercise.model.ProductPackage;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the Package Repository without the product service, using a fixed catalog of products.
+ */
+class PackageRepositoryTests {
+
+	private static final Map<String, Product> CATALOG = Map.of(
+			"p1", new Product("p1", "Product 1", 100),
+			"p2", new Product("p2", "Product 2", 250));
+
+	private final AtomicInteger gatewayCalls = new AtomicInteger();
+
+	private final ExecutorService productLookupExecutor = Executors.newFixedThreadPool(4);
+
+	private final ProductServiceGateway productServiceGateway = new ProductServiceGateway(null, null, false,
+			new SimpleMeterRegistry(), CircuitBreaker.ofDefaults("product"), Bulkhead.ofDefaults("product")) {
+		@Override
+		public Product getProduct(String id) {
+			gatewayCalls.incrementAndGet();
+			return CATALOG.get(id);
+		}
+	};
+
+	private PackageRepository packageRepository;
+
+	@TempDir
+	Path directory;
+
+	@BeforeEach
+	void setUp() {
+		packageRepository = packageRepository(new InMemoryPackageStore());
+	}
+
+	private PackageRepository packageRepository(PackageStore packageStore) {
+		return new PackageRepository(new ProductCache(productServiceGateway, 100,
+				Duration.ofMinutes(10), Duration.ofMinutes(5), Duration.ofSeconds(30), false),
+				packageStore, productLookupExecutor, Duration.ofSeconds(5), new SimpleMeterRegistry(),
+				true, 1000);
+	}
+
+	@AfterEach
+	void tearDown() {
+		productLookupExecutor.shutdownNow();
+	}
+
+	/**
+	 * Verify an update replaces the existing package rather than adding a second copy.
+	 */
+	@Test
+	void updateReplacesPackage() {
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1"));
+		ProductPackage updated = packageRepository.update(created.getId(), "Name 2", "Desc 2", List.of("p1", "p2"));
+
+		assertNotNull(updated, "Unexpected update failure");
+		assertEquals(1, packageRepository.getAll().size(), "Unexpected package count");
+		assertEquals(350.0, packageRepository.get(created.getId()).getTotalPrice(), "Unexpected product price");
+	}
+
+	/**
+	 * Verify a product id used twice is looked up once but priced twice.
+	 */
+	@Test
+	void duplicateProductIds() {
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1", "p2", "p1"));
+
+		assertEquals(450.0, created.getTotalPrice(), "Unexpected product price");
+		assertEquals(2, gatewayCalls.get(), "Unexpected product service calls");
+	}
+
+	/**
+	 * Verify packages with unknown product ids, and updates of unknown packages, are rejected.
+	 */
+	@Test
+	void rejectsUnknownIds() {
+		assertNull(packageRepository.create("Name", "Desc", List.of("p1", "unknown")), "Unexpected package");
+		assertNull(packageRepository.update("missing", "Name", "Desc", List.of("p1")), "Unexpected package");
+		assertEquals(0, packageRepository.getAll().size(), "Unexpected package count");
+	}
+
+	/**
+	 * Verify getAll() reuses its snapshot until the repository changes.
+	 */
+	@Test
+	void getAllSnapshot() {
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1"));
+		List<ProductPackage> first = packageRepository.getAll();
+		assertSame(first, packageRepository.getAll(), "Snapshot should be reused");
+
+		packageRepository.delete(created.getId());
+		assertEquals(1, first.size(), "Snapshot should not change");
+		assertEquals(0, packageRepository.getAll().size(), "Unexpected package count");
+	}
+
+	/**
+	 * Verify paging through the repository with a cursor and filters.
+	 */
+	@Test
+	void getPage() {
+		for (int i = 0; i < 5; i++) {
+			packageRepository.create("Name " + i, "Desc", List.of(i % 2 == 0 ? "p1" : "p2"));
+		}
+		packageRepository.create("Other", "Desc", List.of("p1"));
+
+		List<ProductPackage> first = packageRepository.getPage(null, 2, "Name", null);
+		List<ProductPackage> second = packageRepository.getPage(first.get(1).getId(), 2, "Name", null);
+		List<ProductPackage> third = packageRepository.getPage(second.get(1).getId(), 2, "Name", null);
+		assertEquals(2, first.size(), "Unexpected page size");
+		assertEquals(2, second.size(), "Unexpected page size");
+		assertEquals(1, third.size(), "Unexpected page size");
+		assertTrue(first.get(1).getId().compareTo(second.get(0).getId()) < 0, "Pages out of order");
+
+		assertEquals(3, packageRepository.getPage(null, 10, "Name", "p1").size(), "Unexpected filtered count");
+		assertEquals(4, packageRepository.stream(null, "p1").count(), "Unexpected streamed count");
+		assertEquals(3, packageRepository.stream("Name", "p1").count(), "Unexpected streamed count");
+
+		// Packages deleted while the stream is read are skipped.
+		Iterator<ProductPackage> streamed = packageRepository.stream(null, "p1").iterator();
+		String read = streamed.next().getId();
+		for (ProductPackage productPackage : packageRepository.getByProductId("p1")) {
+			if (!productPackage.getId().equals(read)) {
+				packageRepository.delete(productPackage.getId());
+			}
+		}
+		assertFalse(streamed.hasNext(), "Deleted package streamed");
+	}
+
+	/**
+	 * Verify the product id reverse index follows creates, updates and deletes.
+	 */
+	@Test
+	void getByProductId() {
+		ProductPackage first = packageRepository.create("Name 1", "Desc", List.of("p1"));
+		ProductPackage second = packageRepository.create("Name 2", "Desc", List.of("p1", "p2"));
+		assertEquals(2, packageRepository.getByProductId("p1").size(), "Unexpected package count");
+
+		packageRepository.update(first.getId(), "Name 1", "Desc", List.of("p2"));
+		assertEquals(List.of(second.getId()), packageRepository.getByProductId("p1").stream().map(ProductPackage::getId).toList(),
+				"Unexpected packages");
+		assertEquals(2, packageRepository.getByProductId("p2").size(), "Unexpected package count");
+
+		packageRepository.delete(second.getId());
+		assertEquals(0, packageRepository.getByProductId("p1").size(), "Unexpected package count");
+		assertEquals(1, packageRepository.getByProductId("p2").size(), "Unexpected package count");
+	}
+
+	/**
+	 * Verify a price change only reprices the packages containing the product, once per use of the product.
+	 */
+	@Test
+	void reprice() {
+		ProductPackage first = packageRepository.create("Name 1", "Desc", List.of("p1", "p1", "p2"));
+		ProductPackage second = packageRepository.create("Name 2", "Desc", List.of("p2"));
+
+		assertEquals(1, packageRepository.reprice("p1", 150), "Unexpected repriced count");
+		assertEquals(550.0, packageRepository.get(first.getId()).getTotalPrice(), "Unexpected product price");
+		assertEquals(250.0, packageRepository.get(second.getId()).getTotalPrice(), "Unexpected product price");
+		assertEquals(0, packageRepository.reprice("unused", 150), "Unexpected repriced count");
+	}
+
+	/**
+	 * Verify a cached product price older than a reported price change does not reprice packages back when a
+	 * package using the product is created or updated.
+	 */
+	@Test
+	void repriceKeptOverCachedPrice() {
+		ProductPackage first = packageRepository.create("Name 1", "Desc", List.of("p1"));
+		packageRepository.reprice("p1", 150);
+
+		// The product cache still has the old price of p1.
+		ProductPackage second = packageRepository.create("Name 2", "Desc", List.of("p1", "p2"));
+		assertEquals(400.0, second.getTotalPrice(), "Unexpected product price");
+		ProductPackage updated = packageRepository.update(second.getId(), "Name 2", "Desc", List.of("p1", "p1"));
+		assertEquals(300.0, updated.getTotalPrice(), "Unexpected product price");
+		assertEquals(150.0, packageRepository.get(first.getId()).getTotalPrice(), "Unexpected product price");
+	}
+
+	/**
+	 * Verify a batch looks up each unique product id once and reports a result per operation.
+	 */
+	@Test
+	void applyBatch() {
+		ProductPackage existing = packageRepository.create("Existing", "Desc", List.of("p1"));
+		gatewayCalls.set(0);
+
+		List<ProductPackage> results = packageRepository.applyBatch(List.of(
+				new PackageOperation(Type.CREATE, null, "Name 1", "Desc", List.of("p1", "p2")),
+				new PackageOperation(Type.CREATE, null, "Name 2", "Desc", List.of("p2", "unknown")),
+				new PackageOperation(Type.UPDATE, existing.getId(), "Existing 2", "Desc", List.of("p2", "p2")),
+				new PackageOperation(Type.UPDATE, "missing", "Name 3", "Desc", List.of("p1")),
+				new PackageOperation(Type.DELETE, "missing", null, null, null)));
+
+		assertEquals(350.0, results.get(0).getTotalPrice(), "Unexpected product price");
+		assertNull(results.get(1), "Unexpected package with unknown product");
+		assertEquals(500.0, results.get(2).getTotalPrice(), "Unexpected product price");
+		assertNull(results.get(3), "Unexpected update of unknown package");
+		assertNull(results.get(4), "Unexpected delete of unknown package");
+		assertEquals(2, packageRepository.getAll().size(), "Unexpected package count");
+		assertEquals(2, gatewayCalls.get(), "Unexpected product service calls");
+	}
+
+	/**
+	 * Verify a conditional update is only applied at the expected version.
+	 */
+	@Test
+	void updateIfVersionMatches() {
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1"));
+		ProductPackage updated = packageRepository.update(created.getId(), "Name 2", "Desc", List.of("p2"),
+				created.getVersion());
+		assertNotNull(updated, "Update at the current version not applied");
+		assertTrue(updated.getVersion() > created.getVersion(), "Version not incremented");
+
+		assertThrows(VersionMismatchException.class, () -> packageRepository.update(created.getId(), "Name 3", "Desc",
+				List.of("p1"), created.getVersion()));
+		assertEquals("Name 2", packageRepository.get(created.getId()).getName(), "Stale update applied");
+	}
+
+	/**
+	 * Verify a patch only changes the given fields and only looks up the new product ids.
+	 */
+	@Test
+	void patch() {
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1"));
+		gatewayCalls.set(0);
+
+		ProductPackage renamed = packageRepository.patch(created.getId(), "Name 2", null, null,
+				PackageRepository.ANY_VERSION);
+		assertEquals("Desc", renamed.getDescription(), "Unexpected description");
+		assertEquals(List.of("p1"), renamed.getProductIds(), "Unexpected product ids");
+		assertEquals(100.0, renamed.getTotalPrice(), "Unexpected product price");
+
+		ProductPackage added = packageRepository.patch(created.getId(), null, null, List.of("p1", "p2"),
+				renamed.getVersion());
+		assertEquals("Name 2", added.getName(), "Unexpected name");
+		assertEquals(350.0, added.getTotalPrice(), "Unexpected product price");
+		assertEquals(1, gatewayCalls.get(), "Unexpected product service calls");
+
+		assertNull(packageRepository.patch(created.getId(), null, null, List.of("unknown"), PackageRepository.ANY_VERSION),
+				"Unexpected patch with unknown product");
+		assertThrows(VersionMismatchException.class, () -> packageRepository.patch(created.getId(), "Name 3", null,
+				null, renamed.getVersion()));
+		assertEquals(added.getVersion(), packageRepository.get(created.getId()).getVersion(), "Unexpected change");
+
+		ProductPackage unchanged = packageRepository.patch(created.getId(), "Name 2", null, List.of("p1", "p2"),
+				added.getVersion());
+		assertEquals(added.getVersion(), unchanged.getVersion(), "Empty patch changed the version");
+	}
+
+	/**
+	 * Verify search matches whole words, word prefixes and word infixes, ranks name matches first and
+	 * follows updates and deletes.
+	 */
+	@Test
+	void search() {
+		ProductPackage inName = packageRepository.create("Gift Box", "Small", List.of("p1"));
+		ProductPackage inDescription = packageRepository.create("Hamper", "A gift for anyone", List.of("p1"));
+		ProductPackage other = packageRepository.create("Toolkit", "Giftwrapped tools", List.of("p2"));
+
+		assertEquals(List.of(inName.getId(), inDescription.getId(), other.getId()), ids(packageRepository.search("gift", 0, 10)),
+				"Unexpected ranking");
+		assertEquals(List.of(inName.getId()), ids(packageRepository.search("GIFT sm", 0, 10)), "Unexpected match of all words");
+		assertEquals(List.of(other.getId()), ids(packageRepository.search("wrap", 0, 10)), "Unexpected infix match");
+		assertEquals(List.of(inDescription.getId()), ids(packageRepository.search("gift", 1, 1)), "Unexpected page");
+
+		packageRepository.update(other.getId(), "Toolkit", "Tools", List.of("p2"));
+		packageRepository.delete(inName.getId());
+		assertEquals(List.of(inDescription.getId()), ids(packageRepository.search("gift", 0, 10)), "Index not updated");
+		assertEquals(List.of(), packageRepository.search("!!", 0, 10), "Unexpected match of empty query");
+	}
+
+	/**
+	 * Verify queries matching more than a thousand packages, or words starting with more than a thousand
+	 * different terms, find and page through every match.
+	 */
+	@Test
+	void searchManyMatches() {
+		int count = 1500;
+		for (int i = 0; i < count; i++) {
+			packageRepository.create("Gift item" + i, "Box", List.of("p1"));
+		}
+		ProductPackage best = packageRepository.create("Gift Box", "Small", List.of("p1"));
+
+		assertEquals(best.getId(), packageRepository.search("gift box", 0, 1).get(0).getId(), "Unexpected ranking");
+		Set<String> found = new HashSet<>();
+		for (int offset = 0; offset <= count; offset += 100) {
+			found.addAll(ids(packageRepository.search("gift box", offset, 100)));
+		}
+		assertEquals(count + 1, found.size(), "Unexpected matches of all words");
+		assertEquals(count - 1000, packageRepository.search("item", 1000, 1000).size(), "Unexpected prefix matches");
+	}
+
+	/**
+	 * Verify search stays correct while names change through many more words than are ever indexed at once,
+	 * so the term codes are renumbered.
+	 */
+	@Test
+	void searchNameChurn() {
+		ProductPackage kept = packageRepository.create("Gift Box", "Small", List.of("p1"));
+		ProductPackage renamed = packageRepository.create("Word0 Box", "Small", List.of("p1"));
+		for (int i = 1; i <= 5000; i++) {
+			packageRepository.update(renamed.getId(), "Word" + i + " Box", "Small", List.of("p1"));
+		}
+
+		assertEquals(List.of(kept.getId()), ids(packageRepository.search("gift box", 0, 10)), "Unexpected matches");
+		assertEquals(List.of(renamed.getId()), ids(packageRepository.search("word5000 small", 0, 10)),
+				"Unexpected matches");
+		assertEquals(List.of(), packageRepository.search("word4999 small", 0, 10), "Removed word matched");
+	}
+
+	/**
+	 * Verify copied writes keep the version they were made at, reprice copied packages and are indexed like
+	 * local writes, and that later local writes get higher versions.
+	 */
+	@Test
+	void applyCopies() {
+		String id = "00000000-0000-0000-0000-000000000001";
+		ProductPackage copy = new ProductPackage(id, "Copied Box", "Desc", List.of("p1", "p1"), 200.0);
+		copy.setVersion(500);
+		packageRepository.applyCopies(List.of(ReplicatedWrite.price("p1", 100), ReplicatedWrite.save(copy)));
+
+		assertEquals(500, packageRepository.get(id).getVersion(), "Unexpected version");
+		assertEquals(List.of(id), ids(packageRepository.getByProductId("p1")), "Unexpected product index");
+		assertEquals(List.of(id), ids(packageRepository.search("copied", 0, 10)), "Unexpected search index");
+
+		packageRepository.applyCopies(List.of(ReplicatedWrite.price("p1", 110)));
+		assertEquals(220.0, packageRepository.get(id).getTotalPrice(), "Unexpected product price");
+		ProductPackage renamed = packageRepository.patch(id, "Renamed", null, null, packageRepository.get(id).getVersion());
+		assertTrue(renamed.getVersion() > 500, "Unexpected version");
+
+		packageRepository.applyCopies(List.of(ReplicatedWrite.delete(id)));
+		assertNull(packageRepository.get(id), "Unexpected package");
+		assertEquals(List.of(), packageRepository.getByProductId("p1"), "Unexpected product index");
+	}
+
+	/**
+	 * Verify every change is logged in order with the package as written, and that changes no longer held are
+	 * reported as such.
+	 */
+	@Test
+	void changes() {
+		long start = packageRepository.getChangeSequence();
+		ProductPackage created = packageRepository.create("Name", "Desc", List.of("p1"));
+		packageRepository.reprice("p1", 120);
+		packageRepository.delete(created.getId());
+
+		List<PackageChange> changes = packageRepository.getChanges(start, 10);
+		assertEquals(List.of(PackageChange.Type.CREATED, PackageChange.Type.UPDATED, PackageChange.Type.DELETED),
+				changes.stream().map(PackageChange::type).toList(), "Unexpected changes");
+		assertEquals(List.of(start + 1, start + 2, start + 3), changes.stream().map(PackageChange::sequence).toList(),
+				"Unexpected sequence numbers");
+		assertEquals(100.0, changes.get(0).productPackage().getTotalPrice(), "Unexpected product price");
+		assertEquals(120.0, changes.get(1).productPackage().getTotalPrice(), "Unexpected product price");
+		assertTrue(changes.get(1).version() > changes.get(0).version(), "Unexpected version");
+		assertEquals(created.getId(), changes.get(2).id(), "Unexpected package id");
+		assertNull(changes.get(2).productPackage(), "Unexpected package");
+		assertEquals(List.of(), packageRepository.getChanges(start + 3, 10), "Unexpected changes");
+		assertEquals(1, packageRepository.getChanges(start, 1).size(), "Unexpected limit");
+
+		// The repository holds the last 1000 changes.
+		ProductPackage updated = packageRepository.create("Name", "Desc", List.of("p1"));
+		for (int i = 0; i < 1000; i++) {
+			packageRepository.update(updated.getId(), "Name " + i, "Desc", List.of("p1"));
+		}
+		assertNull(packageRepository.getChanges(start, 10), "Changes should no longer be held");
+		assertNull(packageRepository.getChanges(0, 10), "Sequence is not one of the log's");
+		assertEquals(10, packageRepository.getChanges(packageRepository.getChangeSequence() - 10, 100).size(),
+				"Unexpected changes");
+	}
+
+	/**
+	 * Verify the statistics follow creates, updates, reprices and deletes, and only count the packages
+	 * the filter accepts.
+	 */
+	@Test
+	void statistics() {
+		ProductPackage first = packageRepository.create("First", "Desc", List.of("p1", "p1"));
+		ProductPackage second = packageRepository.create("Second", "Desc", List.of("p1", "p2"));
+		PackageStatistics statistics = packageRepository.getStatistics();
+		assertEquals(2, statistics.count(), "Unexpected count");
+		assertEquals(55000, statistics.totalCents(), "Unexpected total");
+		assertEquals(Map.of("p1", 2L, "p2", 1L), statistics.productUsage(), "Unexpected product usage");
+
+		packageRepository.reprice("p1", 110);
+		packageRepository.update(second.getId(), "Second", "Desc", List.of("p2"));
+		statistics = packageRepository.getStatistics();
+		assertEquals(47000, statistics.totalCents(), "Unexpected total");
+		assertEquals(Map.of("p1", 1L, "p2", 1L), statistics.productUsage(), "Unexpected product usage");
+		assertEquals(22000, statistics.prices().quantile(0), 220, "Unexpected lowest price");
+		assertEquals(25000, statistics.prices().quantile(1), 250, "Unexpected highest price");
+
+		packageRepository.setStatisticsFilter(id -> id.toString().equals(first.getId()));
+		assertEquals(1, packageRepository.getStatistics().count(), "Unexpected filtered count");
+		packageRepository.delete(first.getId());
+		packageRepository.delete(second.getId());
+		statistics = packageRepository.getStatistics();
+		assertEquals(0, statistics.count(), "Unexpected count");
+		assertEquals(0, statistics.totalCents(), "Unexpected total");
+		assertEquals(Map.of(), statistics.productUsage(), "Unexpected product usage");
+	}
+
+	/**
+	 * Verify a write the package store fails is undone, so the packages match what the store kept, and the
+	 * repository takes writes again once the store recovers.
+	 */
+	@Test
+	void undoesFailedStoreWrites() {
+		AtomicBoolean failing = new AtomicBoolean();
+		PackageRepository repository = packageRepository(new InMemoryPackageStore() {
+			@Override
+			public CompletableFuture<Void> save(ProductPackage productPackage) {
+				return failing.get() ? failed() : super.save(productPackage);
+			}
+
+			@Override
+			public CompletableFuture<Void> delete(String id) {
+				return failing.get() ? failed() : super.delete(id);
+			}
+
+			@Override
+			public CompletableFuture<Void> savePrice(String productId, int usdPrice) {
+				return failing.get() ? failed() : super.savePrice(productId, usdPrice);
+			}
+
+			private CompletableFuture<Void> failed() {
+				return CompletableFuture.failedFuture(new UncheckedIOException(new IOException("Disk full")));
+			}
+		});
+		ProductPackage created = repository.create("Name", "Desc", List.of("p1"));
+		failing.set(true);
+
+		assertThrows(CompletionException.class, () -> repository.update(created.getId(), "Renamed", "Desc", List.of("p1", "p2")));
+		ProductPackage kept = repository.get(created.getId());
+		assertEquals("Name", kept.getName(), "Failed update kept");
+		assertEquals(created.getVersion(), kept.getVersion(), "Unexpected version");
+		assertEquals(List.of("p1"), kept.getProductIds(), "Failed update kept");
+		assertTrue(repository.getByProductId("p2").isEmpty(), "Failed update still indexed");
+		assertThrows(CompletionException.class, () -> repository.reprice("p1", 150));
+		assertEquals(100.0, repository.get(created.getId()).getTotalPrice(), "Failed reprice kept");
+		assertThrows(CompletionException.class, () -> repository.create("Other", "Desc", List.of("p1")));
+		assertThrows(CompletionException.class, () -> repository.delete(created.getId()));
+		assertEquals(List.of(created.getId()), ids(repository.getAll()), "Failed writes kept");
+		assertEquals(1, repository.getStatistics().count(), "Unexpected count");
+		assertEquals(10000, repository.getStatistics().totalCents(), "Unexpected total");
+
+		failing.set(false);
+		assertEquals("Renamed", repository.update(created.getId(), "Renamed", "Desc", List.of("p1")).getName(),
+				"Unexpected name");
+	}
+
+	/**
+	 * Verify a snapshot taken while a write is in flight is only written once the write is durable, so a
+	 * write that then fails and is undone is not kept by the snapshot.
+	 */
+	@Test
+	void snapshotWaitsForStoreWrites() throws Exception {
+		AtomicReference<CompletableFuture<Void>> pending = new AtomicReference<>();
+		List<Collection<ProductPackage>> snapshots = new CopyOnWriteArrayList<>();
+		PackageRepository repository = packageRepository(new InMemoryPackageStore() {
+			@Override
+			public CompletableFuture<Void> save(ProductPackage productPackage) {
+				CompletableFuture<Void> write = pending.get();
+				return write != null ? write : super.save(productPackage);
+			}
+
+			@Override
+			public boolean isDurable() {
+				return true;
+			}
+
+			@Override
+			public void writeSnapshot(long checkpoint, Collection<ProductPackage> productPackages,
+					Map<String, Integer> productPrices) {
+				snapshots.add(List.copyOf(productPackages));
+			}
+		});
+		ProductPackage created = repository.create("Name", "Desc", List.of("p1"));
+		pending.set(new CompletableFuture<>());
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> update = executor.submit(() -> repository.update(created.getId(), "Renamed", "Desc", List.of("p1")));
+			while (!repository.get(created.getId()).getName().equals("Renamed")) {
+				Thread.onSpinWait();
+			}
+			Future<?> snapshot = executor.submit(repository::snapshot);
+			Thread.sleep(100);
+			assertTrue(snapshots.isEmpty(), "Snapshot written with a write in flight");
+
+			pending.get().completeExceptionally(new UncheckedIOException(new IOException("Disk full")));
+			assertThrows(ExecutionException.class, () -> update.get(5, TimeUnit.SECONDS));
+			snapshot.get(5, TimeUnit.SECONDS);
+			assertTrue(snapshots.isEmpty(), "Snapshot written with a failed write");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		pending.set(null);
+		repository.snapshot();
+		assertEquals(List.of("Name"), names(List.copyOf(snapshots.get(0))), "Unexpected snapshot");
+	}
+
+	/**
+	 * Verify a write the file store fails part way through is not recovered after a restart, while the writes
+	 * acknowledged before and after it are.
+	 */
+	@Test
+	void recoversWritesAfterFailedStoreWrite() throws IOException {
+		AtomicBoolean failNextWrite = new AtomicBoolean();
+		String first;
+		String third;
+		try (FilePackageStore store = new FilePackageStore(directory) {
+			@Override
+			FileChannel openSegment(long segment) throws IOException {
+				return new FailingFileChannel(super.openSegment(segment), failNextWrite);
+			}
+		}) {
+			PackageRepository repository = packageRepository(store);
+			first = repository.create("First", "Desc", List.of("p1")).getId();
+			failNextWrite.set(true);
+			assertThrows(CompletionException.class, () -> repository.create("Second", "Desc", List.of("p1")));
+			third = repository.create("Third", "Desc", List.of("p1")).getId();
+			assertEquals(List.of("First", "Third"), names(repository.getAll()), "Unexpected packages");
+		}
+		try (FilePackageStore store = new FilePackageStore(directory)) {
+			PackageRepository recovered = packageRepository(store);
+			assertEquals(List.of("First", "Third"), names(recovered.getAll()), "Unexpected recovered packages");
+			assertNotNull(recovered.get(first), "First package not recovered");
+			assertNotNull(recovered.get(third), "Third package not recovered");
+		}
+	}
+
+	private static List<String> names(List<ProductPackage> productPackages) {
+		return productPackages.stream().map(ProductPackage::getName).sorted().toList();
+	}
+
+	private static List<String> ids(List<ProductPackage> productPackages) {
+		return productPackages.stream().map(ProductPackage::getId).toList();
+	}
+
+	/**
+	 * File channel that writes half of a record and then fails, when asked to, as a full disk might.
+	 */
+	private static class FailingFileChannel extends FileChannel {
+
+		private final FileChannel channel;
+
+		private final AtomicBoolean failNextWrite;
+
+		FailingFileChannel(FileChannel channel, AtomicBoolean failNextWrite) {
+			this.channel = channel;
+			this.failNextWrite = failNextWrite;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (failNextWrite.getAndSet(false)) {
+				ByteBuffer half = src.duplicate();
+				half.limit(src.position() + src.remaining() / 2);
+				channel.write(half);
+				throw new IOException("Disk full");
+			}
+			return channel.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return channel.read(dst, position);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return channel.transferFrom(src, position, count);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+}
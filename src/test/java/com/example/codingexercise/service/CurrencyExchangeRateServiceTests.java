@@ -0,0 +1,113 @@
+package com.example.codingexercise.service;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.ExpectedCount.once;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+/**
+ * Tests the Currency Exchange Rate Service against a mock exchange service.
+ */
+class CurrencyExchangeRateServiceTests {
+
+	private static final String USD_URL = "https://www.frankfurter.app/latest?from=USD";
+
+	private final RestTemplate restTemplate = new RestTemplateBuilder().rootUri("https://www.frankfurter.app").build();
+
+	private final MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+
+	/**
+	 * Threads the exchange service was called on for the non-blocking lookups.
+	 */
+	private final List<Thread> fetchThreads = new CopyOnWriteArrayList<>();
+
+	private final CurrencyExchangeRateService currencyExchangeRateService = new CurrencyExchangeRateService(restTemplate, null, false,
+			task -> ForkJoinPool.commonPool().execute(() -> {
+				fetchThreads.add(Thread.currentThread());
+				task.run();
+			}), Duration.ofSeconds(30), new SimpleMeterRegistry(), CircuitBreaker.ofDefaults("exchange"), Bulkhead.ofDefaults("exchange"));
+
+	/**
+	 * Verify the exchange rate table is fetched once and the last good table is kept when a refresh fails.
+	 */
+	@Test
+	void cachesExchangeRateTable() {
+		server.expect(once(), requestTo(USD_URL)).andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess("{\"amount\":1.0,\"base\":\"USD\",\"date\":\"2023-06-01\",\"rates\":{\"GBP\":0.8,\"EUR\":0.9}}",
+						MediaType.APPLICATION_JSON));
+		server.expect(once(), requestTo(USD_URL)).andRespond(withServerError());
+
+		assertEquals(0.8, currencyExchangeRateService.getCurrencyExchangeRate("USD", "gbp"), "Unexpected rate");
+		assertEquals(0.9, currencyExchangeRateService.getCurrencyExchangeRate("usd", "EUR"), "Unexpected rate");
+		assertEquals(-1, currencyExchangeRateService.getCurrencyExchangeRate("USD", "XXX"), "Unexpected rate");
+
+		currencyExchangeRateService.refreshExchangeRates();
+		assertEquals(0.8, currencyExchangeRateService.getCurrencyExchangeRate("USD", "GBP"), "Unexpected rate");
+		server.verify();
+	}
+
+	/**
+	 * Verify a failed fetch is remembered, so an unknown currency does not call the exchange service on every lookup.
+	 */
+	@Test
+	void cachesFailedFetch() {
+		server.expect(once(), requestTo("https://www.frankfurter.app/latest?from=XXX")).andRespond(withServerError());
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(-1, currencyExchangeRateService.getCurrencyExchangeRate("XXX", "USD"), "Unexpected rate");
+		}
+		server.verify();
+	}
+
+	/**
+	 * Verify the non-blocking lookups fetch on the executor rather than the calling thread when the
+	 * non-blocking client is disabled, and share one fetch.
+	 */
+	@Test
+	void getCurrencyExchangeRateAsync() throws Exception {
+		server.expect(once(), requestTo(USD_URL))
+				.andRespond(withSuccess("{\"amount\":1.0,\"base\":\"USD\",\"date\":\"2023-06-01\",\"rates\":{\"GBP\":0.8,\"EUR\":0.9}}",
+						MediaType.APPLICATION_JSON));
+
+		CompletableFuture<Double> gbp = currencyExchangeRateService.getCurrencyExchangeRateAsync("USD", "GBP");
+		CompletableFuture<Double> eur = currencyExchangeRateService.getCurrencyExchangeRateAsync("usd", "eur");
+		assertEquals(0.8, gbp.get(5, TimeUnit.SECONDS), "Unexpected rate");
+		assertEquals(0.9, eur.get(5, TimeUnit.SECONDS), "Unexpected rate");
+		assertEquals(-1, currencyExchangeRateService.getCurrencyExchangeRateAsync("USD", "XXX").get(5, TimeUnit.SECONDS),
+				"Unexpected rate");
+		server.verify();
+		assertEquals(1, fetchThreads.size(), "Expected one fetch on the executor");
+		assertNotEquals(Thread.currentThread(), fetchThreads.get(0), "Fetched on the calling thread");
+
+		// The blocking lookup fetches on the calling thread.
+		server.reset();
+		server.expect(once(), requestTo("https://www.frankfurter.app/latest?from=GBP")).andRespond(withServerError());
+		assertEquals(-1, currencyExchangeRateService.getCurrencyExchangeRate("GBP", "USD"), "Unexpected rate");
+		server.verify();
+		assertEquals(1, fetchThreads.size(), "Blocking lookup fetched on the executor");
+		assertTrue(currencyExchangeRateService.getCurrencyExchangeRateAsync("GBP", "USD").isDone(),
+				"Failed fetch not remembered");
+	}
+}
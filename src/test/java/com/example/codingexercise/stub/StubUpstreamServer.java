@@ -0,0 +1,258 @@
+package com.example.codingexercise.stub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.example.codingexercise.dto.CurrencyExchanger;
+import com.example.codingexercise.gateway.dto.Product;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the product service and the exchange service, for tests and load tests.
+ * <ul>
+ * <li>GET /api/v1/products/{id} and GET /api/v1/products?ids=a,b,c answer from a catalog of
+ * catalogSize products with ids product-0, product-1, ... plus any added with addProduct().</li>
+ * <li>GET /latest?from={currency} answers with a fixed exchange rate table.</li>
+ * </ul>
+ * Every response is delayed by the configured latency, and the configured fraction of requests
+ * fail with 503 Service Unavailable.
+ * <p>
+ * Can be run on its own, e.g. to load test a separately started application:
+ * <pre>
+ * mvn -B test-compile org.codehaus.mojo:exec-maven-plugin:3.1.0:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.codingexercise.stub.StubUpstreamServer \
+ *     -Dexec.args="[port] [latency e.g. PT0.05S] [errorRate e.g. 0.01] [catalogSize]"
+ * </pre>
+ * @author tomd
+ *
+ */
+public class StubUpstreamServer implements AutoCloseable {
+
+	private static final String PRODUCTS_PATH = "/api/v1/products";
+
+	private static final String EXCHANGE_PATH = "/latest";
+
+	/**
+	 * Value of one US dollar in each currency.
+	 */
+	private static final Map<String, Double> USD_RATES = Map.of("USD", 1.0d, "GBP", 0.79d, "EUR", 0.92d,
+			"JPY", 140.0d, "CAD", 1.35d, "AUD", 1.5d, "CHF", 0.9d, "PAB", 1.0d);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final Map<String, Product> extraProducts = new ConcurrentHashMap<>();
+
+	private final Duration latency;
+
+	private final double errorRate;
+
+	private final int catalogSize;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Creates and starts the stub server.
+	 * 
+	 * @param port        port to listen on, 0 for any free port.
+	 * @param latency     delay added to every response.
+	 * @param errorRate   fraction (0 to 1) of requests that fail with 503 Service Unavailable.
+	 * @param catalogSize number of generated products (product-0 to product-(catalogSize - 1)).
+	 * @throws IOException if the server cannot listen on the port.
+	 */
+	public StubUpstreamServer(int port, Duration latency, double errorRate, int catalogSize) throws IOException {
+		this.latency = latency;
+		this.errorRate = errorRate;
+		this.catalogSize = catalogSize;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 1000);
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "stub-upstream");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.createContext(PRODUCTS_PATH, this::handleProducts);
+		server.createContext(EXCHANGE_PATH, this::handleExchangeRates);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Adds a product to the catalog (or replaces one), e.g. to change its price.
+	 */
+	public void addProduct(Product product) {
+		extraProducts.put(product.id(), product);
+	}
+
+	/**
+	 * @return the value to use for product.gateway.base-url.
+	 */
+	public String getProductBaseUrl() {
+		return getExchangeBaseUrl() + "/api/v1";
+	}
+
+	/**
+	 * @return the value to use for currency.exchange.base-url.
+	 */
+	public String getExchangeBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the ids of the generated products.
+	 */
+	public List<String> getCatalogIds() {
+		List<String> ids = new ArrayList<>(catalogSize);
+		for (int i = 0; i < catalogSize; i++) {
+			ids.add("product-" + i);
+		}
+		return ids;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private Product findProduct(String id) {
+		Product product = extraProducts.get(id);
+		if (product == null && id.startsWith("product-")) {
+			try {
+				int n = Integer.parseInt(id.substring("product-".length()));
+				if (n >= 0 && n < catalogSize) {
+					product = new Product(id, "Product " + n, 100 + (n * 37) % 9900);
+				}
+			} catch (NumberFormatException ex) {
+				// Not a generated id.
+			}
+		}
+		return product;
+	}
+
+	private void handleProducts(HttpExchange exchange) throws IOException {
+		if (!delayOrFail(exchange)) {
+			return;
+		}
+		String path = exchange.getRequestURI().getPath();
+		if (path.length() > PRODUCTS_PATH.length() + 1) {
+			Product product = findProduct(path.substring(PRODUCTS_PATH.length() + 1));
+			if (product == null) {
+				send(exchange, 404, null);
+			} else {
+				send(exchange, 200, product);
+			}
+			return;
+		}
+		String ids = queryParameter(exchange, "ids");
+		List<Product> products = new ArrayList<>();
+		if (ids != null) {
+			for (String id : ids.split(",")) {
+				Product product = findProduct(id);
+				if (product != null) {
+					products.add(product);
+				}
+			}
+		}
+		send(exchange, 200, products);
+	}
+
+	private void handleExchangeRates(HttpExchange exchange) throws IOException {
+		if (!delayOrFail(exchange)) {
+			return;
+		}
+		String from = queryParameter(exchange, "from");
+		Double sourceRate = from == null ? null : USD_RATES.get(from.toUpperCase());
+		if (sourceRate == null) {
+			send(exchange, 404, Map.of("message", "not found"));
+			return;
+		}
+		Map<String, Double> rates = new LinkedHashMap<>();
+		USD_RATES.forEach((currency, usdRate) -> {
+			if (!currency.equalsIgnoreCase(from)) {
+				rates.put(currency, usdRate / sourceRate);
+			}
+		});
+		send(exchange, 200, new CurrencyExchanger(1.0d, from.toUpperCase(), LocalDate.now().toString(), rates));
+	}
+
+	/**
+	 * Waits for the configured latency, then fails the request if it is picked as an error.
+	 * 
+	 * @return true if the request should be answered.
+	 */
+	private boolean delayOrFail(HttpExchange exchange) throws IOException {
+		if (!latency.isZero()) {
+			try {
+				Thread.sleep(latency.toMillis(), latency.toNanosPart() % 1_000_000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+			send(exchange, 503, null);
+			return false;
+		}
+		return true;
+	}
+
+	private void send(HttpExchange exchange, int status, Object body) throws IOException {
+		try (exchange) {
+			if (body == null) {
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			byte[] json = objectMapper.writeValueAsBytes(body);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, json.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(json);
+			}
+		}
+	}
+
+	private static String queryParameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+				return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+			}
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+		Duration latency = args.length > 1 ? Duration.parse(args[1]) : Duration.ZERO;
+		double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+		int catalogSize = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		StubUpstreamServer stub = new StubUpstreamServer(port, latency, errorRate, catalogSize);
+		System.out.println("product.gateway.base-url=" + stub.getProductBaseUrl());
+		System.out.println("currency.exchange.base-url=" + stub.getExchangeBaseUrl());
+		// The server threads are daemons, so wait here until the process is stopped.
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException ex) {
+			stub.close();
+		}
+	}
+}